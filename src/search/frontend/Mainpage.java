@@ -2,6 +2,7 @@ package search.frontend;
 
 import search.external.PorterStemmer;
 import search.kvs.KVSClient;
+import search.kvs.Row;
 
 import static search.webserver.Server.*;
 
@@ -12,7 +13,10 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -75,9 +79,12 @@ public class Mainpage {
                 // split the string by comma
                 String[] urls = urlString.split(",");
 
-                // pagerank and score
+                // pagerank and score, with one request per worker for all
+                // urls of the word
+                Map<String, Row> ranks = fetchRows("pt-pageranks", Arrays.asList(urls), "rank");
+                Map<String, Double> candidates = new LinkedHashMap<>();
                 for (String url : urls) {
-                    double pagerank = fetchPageRank(url);
+                    double pagerank = pageRankOf(ranks.get(url));
 
                     if (pagerank == 0.0) {
                         if (urls.length >= 10) {
@@ -86,11 +93,15 @@ public class Mainpage {
                         pagerank = 0.15;
                     }
                     double titleScore = 1.0;
-                    double finalScore = 0.3 * pagerank + 0.5 * titleScore;
+                    candidates.put(url, 0.3 * pagerank + 0.5 * titleScore);
+                }
 
-                    String[] details = fetchPageDetails(url);
+                Map<String, Row> pages = fetchRows("pt-crawl", candidates.keySet(), "url", "page");
+                for (Map.Entry<String, Double> candidate : candidates.entrySet()) {
+                    String url = candidate.getKey();
+                    String[] details = pageDetailsOf(pages.get(url));
                     if (!details[0].isEmpty()) {
-                        urlScores.put(url, urlScores.getOrDefault(url, 0.0) + finalScore);
+                        urlScores.put(url, urlScores.getOrDefault(url, 0.0) + candidate.getValue());
                         pageDetails.put(url, details);
                     }
                 }
@@ -166,36 +177,29 @@ public class Mainpage {
         return urls.toString();
     }
 
-    private static double fetchPageRank(String url) {
-        double pageRank = 0.0;
-        HttpURLConnection con = null;
+    // Reads the given columns of many rows of a table at once. Rows that
+    // cannot be read are missing from the result.
+    private static Map<String, Row> fetchRows(String table, Collection<String> keys, String... columns) {
+        if (keys.isEmpty()) {
+            return new HashMap<>();
+        }
         try {
-            kvsClient.numWorkers();
-            String workerAddress = kvsClient.getWorkerAddress(kvsClient.workerIndexForKey(url));
-
-            URL urlObj = new URL("http://" + workerAddress + "/data/pt-pageranks/" + url + "/rank");
-            con = (HttpURLConnection) urlObj.openConnection();
-            con.setRequestMethod("GET");
-
-            // Set timeouts
-            con.setConnectTimeout(10000);
-            con.setReadTimeout(3000);
-
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            String inputLine;
-            if ((inputLine = in.readLine()) != null) {
-                pageRank = Double.parseDouble(inputLine);
-            }
-            in.close();
-
+            return kvsClient.multiGet(table, keys, columns);
         } catch (Exception e) {
+            return new HashMap<>();
+        }
+    }
 
-        } finally {
-            if (con != null) {
-                con.disconnect();
-            }
+    private static double pageRankOf(Row row) {
+        String rank = row == null ? null : row.get("rank");
+        if (rank == null) {
+            return 0.0;
+        }
+        try {
+            return Double.parseDouble(rank.split("\n", 2)[0].trim());
+        } catch (NumberFormatException e) {
+            return 0.0;
         }
-        return pageRank;
     }
 
     private static double fetchtfidf(String word) {
@@ -233,89 +237,37 @@ public class Mainpage {
         return tfidfScore;
     }
 
-    private static String fetchOriginalUrl(String urlKey) {
-        StringBuilder result = new StringBuilder();
-        HttpURLConnection con = null;
-        try {
-            kvsClient.numWorkers();
-            String workerAddress = kvsClient.getWorkerAddress(kvsClient.workerIndexForKey(urlKey));
-
-            URL url = new URL("http://" + workerAddress + "/data/pt-crawl/" + urlKey + "/url");
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-
-            // Set timeouts
-            con.setConnectTimeout(10000);
-            con.setReadTimeout(3000);
-
-            result = new StringBuilder();
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                result.append(inputLine);
-            }
-            in.close();
-        } catch (Exception e) {
-
-        } finally {
-            if (con != null) {
-                con.disconnect();
-            }
-        }
-
-        return result.toString();
-    }
-
-    private static String[] fetchPageDetails(String urlKey) {
+    private static String[] pageDetailsOf(Row crawled) {
         String originalUrl = "";
         String title = "";
         String snippet = "";
 
         // original URL
-        originalUrl = fetchOriginalUrl(urlKey);
+        if (crawled != null && crawled.get("url") != null) {
+            originalUrl = crawled.get("url").replace("\n", "").replace("\r", "");
+        }
 
         if (originalUrl.isEmpty()) {
             return new String[] { "", title, snippet };
         }
-        if (!originalUrl.isEmpty()) {
-            // page content
-            String pageContent = fetchPageContent(urlKey);
-            title = extractTitle(pageContent);
-            snippet = extractSnippet(pageContent);
-        }
+
+        // page content
+        String pageContent = pageContentOf(crawled.get("page"));
+        title = extractTitle(pageContent);
+        snippet = extractSnippet(pageContent);
 
         return new String[] { originalUrl, title, snippet };
     }
 
-    private static String fetchPageContent(String urlKey) {
+    // Keeps the lines of a page that hold its title or a paragraph.
+    private static String pageContentOf(String page) {
         StringBuilder pageContent = new StringBuilder();
-        HttpURLConnection con = null;
-        try {
-            kvsClient.numWorkers();
-            String workerAddress = kvsClient.getWorkerAddress(kvsClient.workerIndexForKey(urlKey));
-
-            URL url = new URL("http://" + workerAddress + "/data/pt-crawl/" + urlKey + "/page");
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-
-            // Set timeouts
-            con.setConnectTimeout(10000);
-            con.setReadTimeout(3000);
-
-            pageContent = new StringBuilder();
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                if (inputLine.contains("<title>") || inputLine.contains("<p>")) {
-                    pageContent.append(inputLine).append("\n");
-                }
-            }
-            in.close();
-        } catch (Exception e) {
-
-        } finally {
-            if (con != null) {
-                con.disconnect();
+        if (page == null) {
+            return "";
+        }
+        for (String line : page.split("\r?\n|\r")) {
+            if (line.contains("<title>") || line.contains("<p>")) {
+                pageContent.append(line).append("\n");
             }
         }
         return pageContent.toString();
@@ -4,11 +4,14 @@ import search.tools.Logger;
 import search.webserver.Server;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static search.webserver.Server.*;
 
 public class Coordinator {
-    protected static Map<String, WorkerNode> workers = new HashMap<>();
+    protected static Map<String, WorkerNode> workers = new ConcurrentHashMap<>();
+    // Workers that have been taken out of service; their pings are ignored.
+    protected static final Set<String> retired = ConcurrentHashMap.newKeySet();
     private static final Logger logger = Logger.getLogger(Coordinator.class);
 
     public static Vector<String> getWorkers() {
@@ -65,6 +68,11 @@ public class Coordinator {
                 workerId = req.ip();
             }
 
+            if (retired.contains(workerId + port)) {
+                res.status(200, "OK");
+                return "Retired";
+            }
+
             // Adding or updating the worker data
             WorkerNode worker;
             if (workers.containsKey(workerId + port)) {
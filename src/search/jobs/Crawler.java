@@ -17,6 +17,9 @@ import java.util.stream.Collectors;
 
 public class Crawler {
     public static Logger logger = Logger.getLogger(Crawler.class);
+    // How long, in milliseconds, the row of a host in pt-host is kept after
+    // the host was last crawled.
+    static final long HOST_TTL = 24L * 60 * 60 * 1000;
 
     // Serialize an object to a byte array
     private static byte[] serialize(Serializable obj) {
@@ -37,6 +40,11 @@ public class Crawler {
 
         if (args.length >= 1) {
             context.output("OK");
+            try {
+                kvs.setTtl("pt-host", HOST_TTL);
+            } catch (IOException e) {
+                logger.error("    could not set the TTL of pt-host", e);
+            }
             List<String> seedURLs = Arrays.stream(args).toList();
             seedURLs = seedURLs.stream().map(Crawler::normalizeSeedURL).toList();
             int iteration = 0;
@@ -509,34 +517,18 @@ public class Crawler {
         String hostDomainHashedKey = Hasher.hash(hostDomain);
 
         try {
-            if (kvs.existsRow("pt-host", hostDomainHashedKey)) {
-                byte[] value = kvs.get("pt-host", hostDomainHashedKey, "timeStamp");
-                if (value != null) {
-                    String timeStamp = new String(value, "UTF-8");
-                    long timeStampLong = Long.parseLong(timeStamp);
-                    if (System.currentTimeMillis() - timeStampLong > interval) { // more than 1 sec
-                        kvs.put("pt-host", hostDomainHashedKey, "timeStamp",
-                                String.valueOf(System.currentTimeMillis()).getBytes());
-                        logger.info("    step4===check crawl delay: update time to"
-                                + String.valueOf(System.currentTimeMillis()));
-                        return true;
-                    } else {
-                        return false;
-                    }
-                } else {
-                    kvs.put("pt-host", hostDomainHashedKey, "timeStamp",
-                            String.valueOf(System.currentTimeMillis()).getBytes());
-                    logger.info("    step4===check crawl delay: create time stamp"
-                            + String.valueOf(System.currentTimeMillis()));
-                    return true;
-                }
-            } else {
-                kvs.put("pt-host", hostDomainHashedKey, "timeStamp",
-                        String.valueOf(System.currentTimeMillis()).getBytes());
-                logger.info("    step4===check crawl delay: create time stamp"
-                        + String.valueOf(System.currentTimeMillis()));
-                return true;
+            byte[] value = kvs.get("pt-host", hostDomainHashedKey, "timeStamp");
+            long now = System.currentTimeMillis();
+            if (value != null && now - Long.parseLong(new String(value, "UTF-8")) <= interval) {
+                return false;
             }
+            // of the workers that find the delay over at the same time, only
+            // the one that replaces the time stamp it read may crawl
+            boolean claimed = kvs.compareAndSet("pt-host", hostDomainHashedKey, "timeStamp", value,
+                    String.valueOf(now).getBytes());
+            logger.info("    step4===check crawl delay: "
+                    + (claimed ? "update time to " + now : "taken by another worker"));
+            return claimed;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -1,6 +1,7 @@
 package search.jobs;
 
 import search.external.PorterStemmer;
+import search.kvs.ScanFilter;
 import search.spark.*;
 
 import java.util.ArrayList;
@@ -18,7 +19,7 @@ public class Indexer {
             String page = row.get("page");
             // String extracted = removeTagsAndPunctuation(page).toLowerCase();
             return row.get("url") + "," + page;
-        }, true);
+        }, true, new ScanFilter().columns("url", "page"));
         data.saveAsTable("pt-data");
 
         SparkPairRDD pairs = null;
@@ -17,6 +17,7 @@ import search.Spark.SparkContext;
 import search.Spark.SparkPair;
 import search.Spark.SparkPairRDD;
 import search.Spark.SparkRDD;
+import search.kvs.ScanFilter;
 import search.tools.Hasher;
 import search.tools.URLParser;
 
@@ -29,7 +30,8 @@ public class PageRank {
         }
 
         // step 3: lead the data to pagerank
-        SparkRDD crawledData = context.fromTable("pt-crawl", row -> row.get("url") + "," + row.get("page"), true);
+        SparkRDD crawledData = context.fromTable("pt-crawl", row -> row.get("url") + "," + row.get("page"), true,
+                new ScanFilter().columns("url", "page"));
         crawledData.saveAsTable("pt-data");
         SparkPairRDD stateTable = crawledData.mapToPair(s -> {
             String[] values = s.split(",", 2);
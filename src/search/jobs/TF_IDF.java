@@ -6,6 +6,7 @@ import search.Spark.SparkPair;
 import search.Spark.SparkPairRDD;
 import search.Spark.SparkRDD;
 import search.kvs.Row;
+import search.kvs.ScanFilter;
 
 import java.util.Arrays;
 import java.util.Map;
@@ -23,14 +24,9 @@ import static search.tools.Hasher.hash;
 public class TF_IDF {
     public static void run(SparkContext context, String[] args) throws Exception {
         // Implementation will go here
-        SparkRDD rawRDD = context.fromTable("pt-crawl", (Row row) -> {
-            if (row.get("url").length() < 100 && "200".equals(row.get("responseCode")) && row.get("contentType") != null
-                    && row.get("contentType").contains("text/html")) {
-                return row.get("url") + "," + row.get("page");
-            } else {
-                return null;
-            }
-        }, true);
+        SparkRDD rawRDD = context.fromTable("pt-crawl", (Row row) -> row.get("url") + "," + row.get("page"), true,
+                new ScanFilter().columns("url", "page").maxLength("url", 99).equalTo("responseCode", "200")
+                        .contains("contentType", "text/html"));
         rawRDD.saveAsTable("pt-data");
 
         // Use mapToPair to convert to PairRDD
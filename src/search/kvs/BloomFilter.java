@@ -0,0 +1,130 @@
+package search.kvs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A BloomFilter answers whether a row key may be in a table. A negative answer
+ * is definite, so a caller can skip the lookup; a positive answer is wrong
+ * with a small probability, which is chosen when the filter is created.
+ *
+ * Keys are hashed from their UTF-8 bytes with a fixed function, so a filter
+ * built by a worker can be serialized with toBytes() and queried by a client
+ * in another JVM.
+ */
+public class BloomFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final int capacity;
+    private int count;
+
+    private BloomFilter(int numBits, int numHashes, int capacity) {
+        this.bits = new long[(numBits + 63) / 64];
+        this.numBits = bits.length * 64;
+        this.numHashes = numHashes;
+        this.capacity = capacity;
+    }
+
+    // Creates a filter that answers wrongly for about the given fraction of
+    // absent keys while it holds no more than capacity keys.
+    public static BloomFilter create(int capacity, double falsePositiveRate) {
+        capacity = Math.max(capacity, 64);
+        double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long numBits = Math.min(Integer.MAX_VALUE - 63, (long) Math.ceil(capacity * bitsPerKey));
+        int numHashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+        return new BloomFilter((int) numBits, numHashes, capacity);
+    }
+
+    public synchronized void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    // Returns false if the key has definitely not been added.
+    public synchronized boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the number of keys that have been added, counting duplicates.
+    public synchronized int count() {
+        return count;
+    }
+
+    // Checks whether the filter holds more keys than it was sized for, after
+    // which its false positive rate goes up.
+    public synchronized boolean isFull() {
+        return count > capacity;
+    }
+
+    public synchronized byte[] toBytes() {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + bits.length * 8);
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(numBits);
+            out.writeInt(numHashes);
+            out.writeInt(capacity);
+            out.writeInt(count);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static BloomFilter fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int numBits = in.readInt();
+        int numHashes = in.readInt();
+        if (numBits <= 0 || numBits % 64 != 0 || numHashes <= 0 || bytes.length != 16 + numBits / 8) {
+            throw new IOException("Malformed Bloom filter");
+        }
+        BloomFilter filter = new BloomFilter(numBits, numHashes, in.readInt());
+        filter.count = in.readInt();
+        for (int i = 0; i < filter.bits.length; i++) {
+            filter.bits[i] = in.readLong();
+        }
+        return filter;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes of the key, followed by the
+    // MurmurHash3 finalizer to spread the bits.
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
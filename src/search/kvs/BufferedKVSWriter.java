@@ -0,0 +1,199 @@
+package search.kvs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A BufferedKVSWriter collects the columns that are written to one table and
+ * sends them in bulk, with one request per worker (see
+ * KVSClient.mergeRows()). Columns written to the same row are merged into one
+ * row first; a later value for the same column replaces an earlier one.
+ *
+ * The buffer is sent once it holds about flushBytes bytes, or once its oldest
+ * column has waited flushMillis. The requests to the workers go out in
+ * parallel and in the background, while the next buffer fills up; if that one
+ * is full before they have been answered, put() waits for them, so a writer
+ * never holds more than two buffers. Nothing waits while holding the lock on
+ * the writer, so the timer that sends the buffers of all writers never
+ * blocks on one of them.
+ *
+ * Failures of background writes are thrown by the next call to put(),
+ * flush() or close(). The columns are only known to have been written once
+ * flush() or close() has returned. A writer may be used by several threads.
+ */
+public class BufferedKVSWriter implements Closeable {
+    static final int FLUSH_BYTES = Integer.getInteger("kvs.writeBufferBytes", 1 << 20);
+    static final long FLUSH_MILLIS = Long.getLong("kvs.writeBufferMillis", 1000);
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "kvs-writer-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final KVSClient kvs;
+    private final String tableName;
+    private final int flushBytes;
+    private final long flushMillis;
+    private final ScheduledFuture<?> tick;
+    // The rows to send, by worker index.
+    private Map<Integer, LinkedHashMap<String, Row>> buffer = new HashMap<>();
+    private int bufferedBytes;
+    private long oldestPut;
+    // The writes of the previous buffer.
+    private CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+    private volatile Throwable failure;
+    private boolean closed;
+
+    public BufferedKVSWriter(KVSClient kvs, String tableName) throws IOException {
+        this(kvs, tableName, FLUSH_BYTES, FLUSH_MILLIS);
+    }
+
+    public BufferedKVSWriter(KVSClient kvs, String tableName, int flushBytes, long flushMillis) throws IOException {
+        this.kvs = kvs;
+        this.tableName = tableName;
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        // Makes sure the client knows its workers, for workerIndexForKey().
+        kvs.numWorkers();
+        long period = Math.max(1, flushMillis / 2);
+        this.tick = timer.scheduleAtFixedRate(this::flushIfOld, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void put(String row, String column, byte[] value) throws IOException {
+        add(row, column, value);
+        startFlushWhenWritten(false);
+    }
+
+    public void put(String row, String column, String value) throws IOException {
+        put(row, column, value.getBytes());
+    }
+
+    private synchronized void add(String row, String column, byte[] value) throws IOException {
+        if (closed) {
+            throw new IOException("Writer for " + tableName + " is closed");
+        }
+        checkFailure();
+        if (buffer.isEmpty()) {
+            oldestPut = System.currentTimeMillis();
+        }
+        Map<String, Row> rows = buffer.computeIfAbsent(kvs.workerIndexForKey(row), w -> new LinkedHashMap<>());
+        Row columns = rows.get(row);
+        if (columns == null) {
+            columns = new Row(row);
+            rows.put(row, columns);
+            bufferedBytes += row.length() + 8;
+        }
+        columns.put(column, value);
+        bufferedBytes += column.length() + value.length + 8;
+    }
+
+    // Sends everything that has been put so far and waits until it has been
+    // written.
+    public void flush() throws IOException {
+        await(startFlushWhenWritten(true));
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        tick.cancel(false);
+        flush();
+    }
+
+    // Starts writing the buffer once the previous one has been written, and
+    // returns the writes. The wait happens without holding the lock on this
+    // writer. Unless always is set, the buffer is only written if it is
+    // full, which it may no longer be after the wait.
+    private CompletableFuture<Void> startFlushWhenWritten(boolean always) throws IOException {
+        while (true) {
+            CompletableFuture<Void> previous;
+            synchronized (this) {
+                if (!always && bufferedBytes < flushBytes) {
+                    return inFlight;
+                }
+                if (inFlight.isDone()) {
+                    startFlush();
+                    return inFlight;
+                }
+                previous = inFlight;
+            }
+            await(previous);
+        }
+    }
+
+    // Starts writing the current buffer. Called while holding the lock on
+    // this writer, once the previous buffer has been written.
+    private void startFlush() throws IOException {
+        checkFailure();
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (LinkedHashMap<String, Row> rows : buffer.values()) {
+            writes.add(CompletableFuture.runAsync(() -> {
+                try {
+                    kvs.mergeRows(tableName, rows.values());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, KVSClient.requestPool));
+        }
+        buffer = new HashMap<>();
+        bufferedBytes = 0;
+        inFlight = CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> {
+            if (e != null && failure == null) {
+                failure = e instanceof CompletionException ? e.getCause() : e;
+            }
+        });
+    }
+
+    // Called periodically; starts writing the buffer if it has waited long
+    // enough and the previous one has been written. Otherwise it is left for
+    // the next tick, so that the timer never waits.
+    private synchronized void flushIfOld() {
+        if (!buffer.isEmpty() && inFlight.isDone() && System.currentTimeMillis() - oldestPut >= flushMillis) {
+            try {
+                startFlush();
+            } catch (IOException e) {
+                // Reported by the next call from the owner.
+            }
+        }
+    }
+
+    private static void await(CompletableFuture<Void> writes) {
+        try {
+            writes.join();
+        } catch (CompletionException e) {
+            // Recorded in failure.
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure;
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) cause).getCause();
+        }
+        throw new IOException("Bulk write to " + tableName + " failed", cause);
+    }
+}
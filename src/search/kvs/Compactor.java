@@ -0,0 +1,121 @@
+package search.kvs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import search.tools.Logger;
+
+/**
+ * The Compactor is a background thread on each KVS worker that reclaims the
+ * disk space taken up by superseded rows in persistent tables. Every few
+ * seconds it asks each open LogStructuredStorage for segments that are mostly
+ * garbage, or that have not been sorted yet, and merges their live rows into a
+ * new SSTable.
+ *
+ * Compaction is throttled to a fixed number of bytes per second and runs at
+ * the lowest thread priority, so that it does not compete with foreground
+ * requests for disk bandwidth.
+ */
+public class Compactor extends Thread {
+    private static final Logger logger = Logger.getLogger(Compactor.class);
+    static final long INTERVAL = Long.getLong("kvs.compactionInterval", 30000);
+    static final long BYTES_PER_SECOND = Long.getLong("kvs.compactionRate", 16L * 1024 * 1024);
+
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong segmentsCompacted = new AtomicLong();
+    private volatile String currentTable;
+    private volatile long bytesRead;
+    private volatile long bytesToRead;
+    private long throttleStart;
+
+    public Compactor() {
+        super("compactor");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (Map.Entry<String, StorageHandle> entry : Table.persistentTables.entrySet()) {
+                StorageEngine storage = entry.getValue().storage();
+                if (storage instanceof LogStructuredStorage) {
+                    compact(entry.getKey(), (LogStructuredStorage) storage);
+                }
+            }
+        }
+    }
+
+    // Compacts one table, if any of its segments qualify.
+    void compact(String tableName, LogStructuredStorage storage) {
+        List<LogSegment> inputs = storage.compactionCandidates();
+        if (inputs.isEmpty()) {
+            return;
+        }
+
+        currentTable = tableName;
+        bytesRead = 0;
+        bytesToRead = 0;
+        for (LogSegment segment : inputs) {
+            // Every record is scanned once, and the live ones are read again.
+            bytesToRead += segment.size() + segment.liveBytes.get();
+        }
+        throttleStart = System.currentTimeMillis();
+        try {
+            long reclaimed = storage.compact(inputs, this::throttle);
+            bytesReclaimed.addAndGet(reclaimed);
+            segmentsCompacted.addAndGet(inputs.size());
+            logger.info("Compacted " + inputs.size() + " segments of " + tableName + ", reclaimed " + reclaimed
+                    + " bytes");
+        } catch (Exception e) {
+            logger.error("Compaction of " + tableName + " failed", e);
+        } finally {
+            currentTable = null;
+        }
+    }
+
+    // Sleeps as long as necessary to keep the compaction below
+    // BYTES_PER_SECOND.
+    private void throttle(long bytes) {
+        bytesRead += bytes;
+        long due = throttleStart + bytesRead * 1000 / BYTES_PER_SECOND;
+        long wait = due - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long bytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public long segmentsCompacted() {
+        return segmentsCompacted.get();
+    }
+
+    // Describes the compaction state for the worker's status page.
+    public String status() {
+        StringBuilder html = new StringBuilder("<p>Compaction: ");
+        String table = currentTable;
+        if (table == null) {
+            html.append("idle");
+        } else {
+            long total = Math.max(bytesToRead, 1);
+            html.append("compacting ").append(table).append(" (").append(Math.min(100, bytesRead * 100 / total))
+                    .append("%)");
+        }
+        html.append(", ").append(segmentsCompacted.get()).append(" segments compacted, ")
+                .append(bytesReclaimed.get()).append(" bytes reclaimed</p>");
+        return html.toString();
+    }
+}
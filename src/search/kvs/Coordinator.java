@@ -2,9 +2,53 @@ package search.kvs;
 
 import static search.webserver.Server.*;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import search.generic.WorkerNode;
+import search.tools.HTTP;
 import search.webserver.Server;
 
+/**
+ * The KVS coordinator keeps the list of workers and decides where rows are
+ * placed. The placement is a RingView: the workers on the hash ring, numbered
+ * by an epoch.
+ *
+ * Once a second, the coordinator compares the ring with the workers that are
+ * pinging it, minus those that are being decommissioned. If they differ, it
+ * starts a handoff: a new epoch whose view also holds the previous ring. The
+ * view is sent to every worker on either ring (PUT /ring, repeated until the
+ * worker accepts it), and the workers move the rows they no longer own to
+ * their new owners in the background. Each worker of the previous ring
+ * reports at /handoff when it is done; after the last one, the coordinator
+ * ends the handoff with another epoch that has only the new ring, and retires
+ * the decommissioned workers. Membership changes during a handoff wait until
+ * it is over.
+ *
+ * Every row is stored on REPLICAS workers (kvs.replicas, 1 by default), which
+ * the view tells workers and clients along with the ring.
+ */
 public class Coordinator extends search.generic.Coordinator {
+    // Points per worker on the hash ring.
+    static final int VIRTUAL_NODES = Integer.getInteger("kvs.virtualNodes", HashRing.DEFAULT_VIRTUAL_NODES);
+    static final long RING_CHECK_MILLIS = Long.getLong("kvs.ringCheckMillis", 1000);
+    // Copies of each row.
+    static final int REPLICAS = Math.max(1, Integer.getInteger("kvs.replicas", 1));
+
+    // The placement state; guarded by the Coordinator class.
+    private static RingView ring = new RingView(VIRTUAL_NODES, REPLICAS, 0, List.of(), List.of(), List.of(), List.of());
+    // Workers of the previous ring that have not finished the handoff.
+    private static final Set<String> handoffPending = new HashSet<>();
+    // IDs of the workers that have not accepted the current view yet.
+    private static final Set<String> unnotified = new LinkedHashSet<>();
+    // Workers that are to leave the ring.
+    private static final Set<String> leaving = new HashSet<>();
+
     // Constructor initializes a web server with routes and behavior for requests.
     public Coordinator(int port) {
         registerRoutes();
@@ -13,8 +57,221 @@ public class Coordinator extends search.generic.Coordinator {
             // Renders a simple HTML page for the root route.
             return "<html><head><title>KVS Coordinator</title></head><body><h1>KVS Coordinator</h1>" +
                     clientTable() + // Displays a table of clients (assumed functionality)
+                    "<p><a href='/distribution'>Distribution of rows</a></p>" +
                     "</body></html>";
         });
+
+        // Tells clients and workers where rows are placed (see RingView).
+        get("/ring", (req, res) -> {
+            res.type("text/plain");
+            return currentRing().format();
+        });
+
+        // Called by a worker of the previous ring when it has moved all the
+        // rows it no longer owns.
+        put("/handoff", (req, res) -> {
+            String id = req.queryParams("id");
+            String epoch = req.queryParams("epoch");
+            if (id == null || epoch == null) {
+                res.status(400, "Bad request");
+                return "Bad request";
+            }
+            handoffFinished(id, Integer.parseInt(epoch));
+            return "OK";
+        });
+
+        // Takes a worker off the ring. Its rows are moved to the other
+        // workers, after which it is retired and its pings are ignored.
+        put("/decommission/:id", (req, res) -> {
+            String id = req.params("id");
+            if (!workers.containsKey(id)) {
+                res.status(404, "Not found");
+                return "Unknown worker " + id;
+            }
+            synchronized (Coordinator.class) {
+                leaving.add(id);
+            }
+            return "OK";
+        });
+
+        // Shows, for each worker, its share of the hash ring and the number
+        // of rows it actually stores.
+        get("/distribution", (req, res) -> {
+            res.type("text/html");
+            return distributionTable();
+        });
+    }
+
+    static synchronized RingView currentRing() {
+        return ring;
+    }
+
+    // Starts the thread that keeps the ring in line with the workers.
+    static void startRingThread() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(RING_CHECK_MILLIS);
+                    updateRing();
+                    notifyWorkers();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "kvs-ring");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Starts a new epoch if the workers differ from the ring, unless a
+    // handoff is still running.
+    private static synchronized void updateRing() {
+        if (ring.inHandoff()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        for (String id : workers.keySet()) {
+            if (!leaving.contains(id)) {
+                ids.add(id);
+            }
+        }
+        // Sorted like the clients sort them, so that the ring is the same.
+        Collections.sort(ids);
+        List<String> addresses = new ArrayList<>();
+        for (String id : ids) {
+            addresses.add(address(workers.get(id)));
+        }
+        if (ids.equals(ring.ids) && addresses.equals(ring.addresses)) {
+            return;
+        }
+        if (ids.isEmpty() && !ring.isEmpty()) {
+            // The last worker cannot hand its rows to anybody.
+            leaving.clear();
+            return;
+        }
+        boolean handoff = !ring.isEmpty() && !ids.equals(ring.ids);
+        RingView next = handoff
+                ? new RingView(VIRTUAL_NODES, REPLICAS, ring.epoch + 1, ids, addresses, ring.ids, ring.addresses)
+                : new RingView(VIRTUAL_NODES, REPLICAS, ring.epoch + 1, ids, addresses, List.of(), List.of());
+        System.out.println("Ring epoch " + next.epoch + ": " + ids
+                + (handoff ? ", handing off from " + ring.ids : ""));
+        install(next);
+        if (handoff) {
+            handoffPending.addAll(next.previousIds);
+        }
+    }
+
+    // Makes a view the current one and queues it for all workers on it.
+    private static void install(RingView next) {
+        ring = next;
+        unnotified.clear();
+        unnotified.addAll(next.ids);
+        unnotified.addAll(next.previousIds);
+    }
+
+    // Sends the current view to the workers that have not accepted it yet.
+    private static void notifyWorkers() {
+        RingView view;
+        List<String> ids;
+        synchronized (Coordinator.class) {
+            view = ring;
+            ids = new ArrayList<>(unnotified);
+        }
+        byte[] body = view.format().getBytes(StandardCharsets.UTF_8);
+        for (String id : ids) {
+            WorkerNode node = workers.get(id);
+            if (node == null) {
+                continue;
+            }
+            try {
+                HTTP.Response r = HTTP.doRequest("PUT", "http://" + address(node) + "/ring", body);
+                if (r != null && r.statusCode() == 200) {
+                    synchronized (Coordinator.class) {
+                        if (ring == view) {
+                            unnotified.remove(id);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // Tried again on the next round.
+            }
+        }
+    }
+
+    // Records that a worker has moved its rows. Ends the handoff once all
+    // workers of the previous ring have, and retires the workers that left.
+    private static synchronized void handoffFinished(String id, int epoch) {
+        if (epoch != ring.epoch || !handoffPending.remove(id) || !handoffPending.isEmpty()) {
+            return;
+        }
+        for (String gone : ring.previousIds) {
+            if (!ring.ids.contains(gone)) {
+                System.out.println("Retiring worker " + gone);
+                retired.add(gone);
+                workers.remove(gone);
+                leaving.remove(gone);
+            }
+        }
+        System.out.println("Ring epoch " + (ring.epoch + 1) + ": handoff finished");
+        install(new RingView(VIRTUAL_NODES, REPLICAS, ring.epoch + 1, ring.ids, ring.addresses, List.of(), List.of()));
+    }
+
+    private static String address(WorkerNode node) {
+        return node.ip() + ":" + node.port();
+    }
+
+    static String distributionTable() {
+        RingView view = currentRing();
+        List<String> ids = view.ids;
+        StringBuilder html = new StringBuilder("<html><head><title>KVS Distribution</title></head><body>");
+        html.append("<h1>Distribution of rows</h1>");
+        if (ids.isEmpty()) {
+            return html.append("<p>No workers</p></body></html>").toString();
+        }
+        double[] shares = new HashRing(ids, view.virtualNodes).shares();
+        long[] rows = new long[ids.size()];
+        long totalRows = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                HTTP.Response r = HTTP.doRequest("GET", "http://" + view.addresses.get(i) + "/count", null);
+                rows[i] = (r != null && r.statusCode() == 200) ? Long.parseLong(new String(r.body()).trim()) : -1;
+            } catch (Exception e) {
+                rows[i] = -1;
+            }
+            totalRows += Math.max(rows[i], 0);
+        }
+        html.append("<table border='1'><tr><th>ID</th><th>Address</th><th>Share of ring</th><th>Rows</th>")
+                .append("<th>Share of rows</th></tr>");
+        double minShare = 1;
+        double maxShare = 0;
+        long minRows = Long.MAX_VALUE;
+        long maxRows = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            html.append("<tr><td>").append(ids.get(i)).append("</td><td>").append(view.addresses.get(i))
+                    .append("</td><td>").append(String.format("%.2f%%", 100 * shares[i]))
+                    .append("</td><td>").append(rows[i] < 0 ? "unreachable" : String.valueOf(rows[i]))
+                    .append("</td><td>")
+                    .append(rows[i] < 0 || totalRows == 0 ? "-" : String.format("%.2f%%", 100.0 * rows[i] / totalRows))
+                    .append("</td></tr>");
+            minShare = Math.min(minShare, shares[i]);
+            maxShare = Math.max(maxShare, shares[i]);
+            if (rows[i] >= 0) {
+                minRows = Math.min(minRows, rows[i]);
+                maxRows = Math.max(maxRows, rows[i]);
+            }
+        }
+        html.append("</table>");
+        html.append("<p>Epoch ").append(view.epoch).append(view.inHandoff() ? ", handoff running" : "")
+                .append(". ").append(view.virtualNodes).append(" virtual nodes per worker, ").append(view.replicas)
+                .append(view.replicas == 1 ? " copy" : " copies").append(" of each row. Largest share of the ring / ")
+                .append("smallest: ").append(String.format("%.2f", maxShare / minShare)).append("</p>");
+        if (minRows != Long.MAX_VALUE && minRows > 0) {
+            html.append("<p>Most rows / fewest rows: ").append(String.format("%.2f", (double) maxRows / minRows))
+                    .append("</p>");
+        }
+        return html.append("</body></html>").toString();
     }
 
     // Entry point of the program. It sets up the Coordinator server on a specified
@@ -36,6 +293,7 @@ public class Coordinator extends search.generic.Coordinator {
 
             Server.port(port); // Sets the server to listen on the specified port.
             new Coordinator(port); // Starts the server.
+            startRingThread();
 
         } catch (NumberFormatException e) {
             // Catches invalid port number format.
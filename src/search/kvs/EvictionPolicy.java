@@ -0,0 +1,42 @@
+package search.kvs;
+
+import java.util.List;
+
+/**
+ * An EvictionPolicy decides which entries a RowCache keeps once the weight of
+ * its entries exceeds the limit. The cache reports every lookup and insertion
+ * to the policy and removes the keys that the policy hands back. Policies are
+ * not thread-safe; each shard of the cache has its own policy and calls it
+ * while holding the shard's lock.
+ */
+interface EvictionPolicy<K> {
+    // Records a lookup that found the key in the cache.
+    void recordHit(K key);
+
+    // Records a lookup of a key that was not in the cache.
+    void recordMiss(K key);
+
+    // Adds a key that is not in the cache yet and appends the keys that have
+    // to be evicted to stay within the limit to evicted. The new key itself
+    // may be among them, if the policy does not admit it.
+    void add(K key, int weight, List<K> evicted);
+
+    // Forgets a key that was removed from the cache.
+    void remove(K key);
+
+    // Returns the total weight of the keys that the policy holds.
+    long weight();
+
+    // Creates the policy with the given name, "lru" or "tinylfu".
+    static <K> EvictionPolicy<K> create(String name, long maxWeight) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new LruPolicy<>(maxWeight);
+            case "tinylfu":
+            case "w-tinylfu":
+                return new TinyLfuPolicy<>(maxWeight);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy " + name);
+        }
+    }
+}
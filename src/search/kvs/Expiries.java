@@ -0,0 +1,146 @@
+package search.kvs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Expiries of a table are the deadlines, in milliseconds since the epoch,
+ * after which the Reaper removes rows that were written with a TTL of their
+ * own. An in-memory table with a TTL keeps its TTL here as well, and each
+ * write gives the row a new deadline; a persistent table keeps its TTL in its
+ * TableConfig and expires rows by the time of their latest record instead, so
+ * it only has deadlines for rows with a TTL of their own.
+ *
+ * The deadlines of a persistent table are saved to a file in the table's
+ * directory after every pass of the Reaper in which they changed. Deadlines
+ * that were set shortly before a crash can be lost; their rows then fall back
+ * to the TTL of the table.
+ */
+class Expiries {
+    static final String FILE_NAME = "expiries";
+
+    // The file of a persistent table, or null for an in-memory table.
+    private final Path path;
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    private volatile long ttl;
+    private volatile long lastWrite = System.currentTimeMillis();
+    private volatile boolean dirty;
+
+    Expiries(Path tableDirectory) {
+        this.path = tableDirectory == null ? null : tableDirectory.resolve(FILE_NAME);
+    }
+
+    // Reads the deadlines of the persistent table in the given directory, or
+    // returns null if it has none.
+    static Expiries load(Path tableDirectory) throws IOException {
+        Expiries expiries = new Expiries(tableDirectory);
+        if (!Files.exists(expiries.path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(expiries.path)))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                long deadline = in.readLong();
+                expiries.deadlines.put(in.readUTF(), deadline);
+            }
+        }
+        return expiries;
+    }
+
+    // Records a write of a row with the given TTL, or with the TTL of the table
+    // if it is 0. A row without either loses the deadline it had.
+    void written(String key, long rowTtl, long now) {
+        lastWrite = now;
+        long effective = rowTtl > 0 ? rowTtl : ttl;
+        if (effective > 0) {
+            deadlines.put(key, now + effective);
+            dirty = true;
+        } else if (deadlines.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    void deleted(Collection<String> keys) {
+        for (String key : keys) {
+            if (deadlines.remove(key) != null) {
+                dirty = true;
+            }
+        }
+    }
+
+    // Removes the deadlines that have passed and returns their rows. A row
+    // that is written again while this runs keeps its new deadline.
+    List<String> takeDue(long now) {
+        List<String> due = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            if (entry.getValue() <= now && deadlines.remove(entry.getKey(), entry.getValue())) {
+                due.add(entry.getKey());
+            }
+        }
+        if (!due.isEmpty()) {
+            dirty = true;
+        }
+        return due;
+    }
+
+    boolean hasDeadline(String key) {
+        return deadlines.containsKey(key);
+    }
+
+    int size() {
+        return deadlines.size();
+    }
+
+    long ttl() {
+        return ttl;
+    }
+
+    // Sets the TTL of an in-memory table. Its rows that have no deadline yet
+    // get one as if they had just been written.
+    void setTtl(long ttl, Collection<String> keys, long now) {
+        this.ttl = ttl;
+        if (ttl > 0) {
+            for (String key : keys) {
+                deadlines.putIfAbsent(key, now + ttl);
+            }
+            dirty = true;
+        }
+    }
+
+    // Returns the time of the latest write since the table was created or
+    // this worker started.
+    long lastWrite() {
+        return lastWrite;
+    }
+
+    // Writes the deadlines of a persistent table to its file, if they have
+    // changed. The file is written under a temporary name first, as in
+    // TableConfig.
+    void save() throws IOException {
+        if (path == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        Map<String, Long> snapshot = Map.copyOf(deadlines);
+        Path temporary = path.resolveSibling(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                out.writeLong(entry.getValue());
+                out.writeUTF(entry.getKey());
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,141 @@
+package search.kvs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A HashRing decides which worker stores a row. Every worker is placed on a
+ * ring of 64-bit hash values at virtualNodes points, hashed from its ID; a row
+ * belongs to the worker of the first point at or after the hash of its key,
+ * wrapping around at the end. Lookups are a binary search over the points.
+ *
+ * With enough virtual nodes, every worker owns about the same share of the
+ * ring, and adding or removing a worker only moves the rows next to its
+ * points. Copies of a row go to the workers that follow its owner on the
+ * ring (see replicasOf()). Every client must build the ring from the same
+ * worker IDs, in the same order, with the same number of virtual nodes; the
+ * KVS coordinator tells clients that number.
+ */
+public class HashRing {
+    static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int numWorkers;
+    private final int virtualNodes;
+    // The points of the ring in ascending order, and the index of the worker
+    // at each point.
+    private final long[] points;
+    private final int[] owners;
+
+    public HashRing(List<String> workerIds, int virtualNodes) {
+        if (workerIds.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one worker and one virtual node");
+        }
+        this.numWorkers = workerIds.size();
+        this.virtualNodes = virtualNodes;
+        int n = numWorkers * virtualNodes;
+        long[] hashes = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(workerIds.get(i / virtualNodes) + "#" + (i % virtualNodes));
+            order[i] = i;
+        }
+        // Ties, which are unlikely, go to the worker with the lower index.
+        Arrays.sort(order, (a, b) -> {
+            int c = Long.compareUnsigned(hashes[a], hashes[b]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        this.points = new long[n];
+        this.owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    // Returns the index, in the list the ring was built from, of the worker
+    // that stores the given key.
+    public int ownerOf(String key) {
+        return owners[pointAtOrAfter(hash(key))];
+    }
+
+    // Returns the indexes of the workers that store copies of a key: its
+    // owner first, then the workers of the following points on the ring, each
+    // one once. There are fewer than n if the ring has fewer workers.
+    public int[] replicasOf(String key, int n) {
+        int[] replicas = new int[Math.min(n, numWorkers)];
+        int found = 0;
+        for (int i = pointAtOrAfter(hash(key)); found < replicas.length; i = (i + 1) % points.length) {
+            boolean seen = false;
+            for (int j = 0; j < found && !seen; j++) {
+                seen = replicas[j] == owners[i];
+            }
+            if (!seen) {
+                replicas[found++] = owners[i];
+            }
+        }
+        return replicas;
+    }
+
+    // Returns the index of the first point at or after the hash h, wrapping
+    // around at the end.
+    private int pointAtOrAfter(long h) {
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(points[mid], h) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == points.length ? 0 : lo;
+    }
+
+    public int numWorkers() {
+        return numWorkers;
+    }
+
+    public int virtualNodes() {
+        return virtualNodes;
+    }
+
+    // Returns the share of the ring, between 0 and 1, that each worker owns,
+    // i.e. the expected share of the rows it stores.
+    public double[] shares() {
+        double[] shares = new double[numWorkers];
+        for (int i = 0; i < points.length; i++) {
+            // A point owns the arc from the previous point, exclusive, to
+            // itself; the first point's arc wraps around the end.
+            long arc = points[i] - (i == 0 ? points[points.length - 1] : points[i - 1]);
+            shares[owners[i]] += unsigned(arc) / 0x1p64;
+        }
+        if (points.length == 1) {
+            shares[owners[0]] = 1.0;
+        }
+        return shares;
+    }
+
+    private static double unsigned(long x) {
+        double d = (double) (x >>> 1) * 2.0;
+        return d + (x & 1);
+    }
+
+    // A 64-bit FNV-1a hash of the UTF-8 bytes of s, with a final mix so that
+    // keys that differ only in their last characters are spread over the
+    // whole ring.
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -21,6 +21,20 @@ public interface KVS {
   // Checks if a specific row exists in a table.
   boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException;
 
+  // Sets a column to a value if it holds the expected one (or does not exist,
+  // if expected is null), atomically. Returns whether it was set.
+  boolean compareAndSet(String tableName, String row, String column, byte[] expected, byte[] value)
+      throws IOException;
+
+  // Atomically adds a number to an integer column and returns the new value.
+  long increment(String tableName, String row, String column, long delta) throws IOException;
+
+  // Atomically adds a number to a decimal column and returns the new value.
+  double add(String tableName, String row, String column, double delta) throws IOException;
+
+  // Atomically appends bytes to a column.
+  void append(String tableName, String row, String column, byte[] value) throws IOException;
+
   // Retrieves a specific value from a table by row and column keys.
   byte[] get(String tableName, String row, String column) throws FileNotFoundException, IOException;
 
@@ -28,6 +42,17 @@ public interface KVS {
   Iterator<Row> scan(String tableName, String startRow, String endRowExclusive)
       throws FileNotFoundException, IOException;
 
+  // Opens a snapshot of a persistent table, which scans can read the table
+  // as of while writes go on.
+  Snapshot openSnapshot(String tableName) throws IOException;
+
+  // Releases a snapshot that is no longer needed.
+  void releaseSnapshot(Snapshot snapshot) throws IOException;
+
+  // Like scan(), but as of a snapshot; filter may be null.
+  Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, ScanFilter filter,
+      Snapshot snapshot) throws IOException;
+
   // Counts the number of rows in a table.
   int count(String tableName) throws FileNotFoundException, IOException;
 
@@ -3,17 +3,40 @@ package search.kvs;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import search.tools.HTTP;
 
 /**
  * Implements the KVS interface, providing client-side functionality
  * to interact with a distributed key-value store over a network.
+ *
+ * If the coordinator keeps several replicas of each row, writes go to all of
+ * them and succeed once the write quorum has accepted them; reads go to the
+ * read quorum of replicas that have been answering fastest (see ReplicaLoad
+ * and setQuorums()). Scans and counts ask each worker for the rows it owns,
+ * and the other replicas for the rows of a worker that cannot be reached.
  */
 public class KVSClient implements KVS, Serializable {
 
   // Address of the coordinator in the distributed system.
   String coordinator;
 
+  // Header fields that ask workers for rows in the binary format, and that
+  // mark request bodies as binary rows.
+  static final Map<String, String> BINARY_HEADERS = Map.of("Accept", Row.BINARY_CONTENT_TYPE, "Content-Type",
+      Row.BINARY_CONTENT_TYPE);
+
+  // Threads for requests that go to several workers at once.
+  static final ExecutorService requestPool = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "kvs-client");
+    t.setDaemon(true);
+    return t;
+  });
+
   /**
    * Represents an entry of a worker in the distributed system.
    */
@@ -32,8 +55,51 @@ public class KVSClient implements KVS, Serializable {
     }
   };
 
+  /**
+   * Local copies of the workers' Bloom filters for one table, one per worker,
+   * which existsRow() consults before asking a worker. The copies only know
+   * the rows that existed when they were downloaded, plus the rows this client
+   * has written since, so they are downloaded again after maxAgeMillis.
+   */
+  static class LocalFilters {
+    final long maxAgeMillis;
+    BloomFilter[] filters;
+    long loadedAt;
+
+    LocalFilters(long maxAgeMillis) {
+      this.maxAgeMillis = maxAgeMillis;
+    }
+  }
+
   Vector<WorkerEntry> workers; // List of workers in the distributed system.
   boolean haveWorkers; // Flag to check if worker list is already fetched.
+  // How often the placement of rows is fetched again, to notice workers
+  // joining or leaving.
+  static final long RING_REFRESH_MILLIS = Long.getLong("kvs.ringRefreshMillis", 5000);
+  transient volatile RingView placement; // Placement announced by the coordinator, or null.
+  transient volatile Map<String, Integer> workerIndexes; // Index in 'workers' by address.
+  transient volatile HashRing ring; // Ring over all workers, for when there is no placement.
+  volatile long placementLoadedAt;
+  final AtomicBoolean refreshing = new AtomicBoolean();
+  // Tables for which existsRow() uses local Bloom filters.
+  transient Map<String, LocalFilters> bloomFilters;
+  // Pipelined connections for the *Async methods, by worker address.
+  transient Map<String, WorkerPipeline> pipelines;
+  // How many replicas of a row must accept a write, and how many are asked
+  // for a read; 0 means a majority of them.
+  int writeQuorum = Integer.getInteger("kvs.writeQuorum", 0);
+  int readQuorum = Integer.getInteger("kvs.readQuorum", 1);
+  // Response times of the workers, shared by the clients of this process.
+  static final ReplicaLoad replicaLoad = new ReplicaLoad();
+
+  // How often a scan tries to resume a range on the same worker before it
+  // turns to the other replicas or gives up, and how long it waits before
+  // the first attempt; later attempts wait longer.
+  static final int SCAN_RETRIES = Integer.getInteger("kvs.scanRetries", 3);
+  static final long SCAN_RETRY_MILLIS = Long.getLong("kvs.scanRetryMillis", 200);
+
+  // What the scans of this process have done.
+  static final ScanMetrics scanMetrics = new ScanMetrics();
 
   // Fetches and returns the number of workers in the system.
   public int numWorkers() throws IOException {
@@ -62,8 +128,10 @@ public class KVSClient implements KVS, Serializable {
     return workers.elementAt(idx).id;
   }
 
-  // Downloads the list of workers from the coordinator.
-  // Parses the response to populate the 'workers' vector.
+  // Downloads the list of workers and the placement of rows from the
+  // coordinator. The list includes workers that are leaving the ring, since
+  // they may still hold rows. A new list replaces the old one, so that
+  // concurrent readers see one or the other.
   synchronized void downloadWorkers() throws IOException {
     String result = new String(HTTP.doRequest("GET", "http://" + coordinator + "/workers", null).body());
     String[] pieces = result.split("\n");
@@ -72,33 +140,353 @@ public class KVSClient implements KVS, Serializable {
       throw new IOException("No active KVS workers");
     if (pieces.length != (numWorkers + 1))
       throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
-    workers.clear();
+    Vector<WorkerEntry> found = new Vector<>();
     for (int i = 0; i < numWorkers; i++) {
       String[] pcs = pieces[1 + i].split(",");
-      workers.add(new WorkerEntry(pcs[1], pcs[0]));
+      found.add(new WorkerEntry(pcs[1], pcs[0]));
     }
-    Collections.sort(workers);
-
+    Collections.sort(found);
+
+    RingView view = null;
+    HTTP.Response r = HTTP.doRequest("GET", "http://" + coordinator + "/ring", null);
+    if (r != null && r.statusCode() == 200)
+      view = RingView.parse(new String(r.body()));
+    Map<String, Integer> indexes = new HashMap<>();
+    for (int i = 0; i < found.size(); i++)
+      indexes.put(found.elementAt(i).address, i);
+
+    workers = found;
+    workerIndexes = indexes;
+    placement = view;
+    ring = null;
+    placementLoadedAt = System.currentTimeMillis();
     haveWorkers = true;
   }
 
-  // Determines the index of the worker that should handle a given key.
-  // The key is compared with the IDs of the workers to find the appropriate
-  // worker.
+  // Determines the index of the worker that should handle a given key, using
+  // the consistent-hash ring that the coordinator announced. Without one, the
+  // ring is built over all workers.
   public int workerIndexForKey(String key) {
-    int chosenWorker = workers.size() - 1;
-
-    if (key != null) {
-      for (int i = 0; i < workers.size() - 1; i++) {
-        String id1 = workers.elementAt(i).id;
-        String id2 = workers.elementAt(i + 1).id;
-        if ((key.compareTo(id1) >= 0) && (key.compareTo(id2) < 0)) {
-          chosenWorker = i;
+    if (key == null)
+      return workers.size() - 1;
+    refreshPlacementIfStale();
+    RingView view = placement;
+    Map<String, Integer> indexes = workerIndexes;
+    if (view != null && !view.isEmpty() && indexes != null) {
+      Integer index = indexes.get(view.ownerAddress(key));
+      if (index != null)
+        return index;
+    }
+    HashRing r = ring;
+    if (r == null || r.numWorkers() != workers.size()) {
+      List<String> ids = new ArrayList<>();
+      for (WorkerEntry w : workers)
+        ids.add(w.id);
+      r = ring = new HashRing(ids, HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+    return r.ownerOf(key);
+  }
+
+  // Starts downloading the workers and the placement again in the background
+  // once they are RING_REFRESH_MILLIS old. Until the download finishes, keys
+  // map to their old owners; a worker that gets a request for a row it no
+  // longer has forwards it to the row's new owner.
+  void refreshPlacementIfStale() {
+    if (!haveWorkers || System.currentTimeMillis() - placementLoadedAt < RING_REFRESH_MILLIS
+        || !refreshing.compareAndSet(false, true))
+      return;
+    requestPool.execute(() -> {
+      try {
+        downloadWorkers();
+      } catch (Exception e) {
+        // Keep the old placement; the next call tries again.
+        placementLoadedAt = System.currentTimeMillis();
+      } finally {
+        refreshing.set(false);
+      }
+    });
+  }
+
+  // Checks whether rows are being moved between workers, during which local
+  // Bloom filters may miss rows that have just arrived at their new owner.
+  boolean inHandoff() {
+    RingView view = placement;
+    return view != null && view.inHandoff();
+  }
+
+  // Sets how many replicas of a row must accept a write, and how many are
+  // asked for a read; 0 means a majority. Writes go to every replica either
+  // way, and fail if fewer than writeQuorum accept them. A read merges what
+  // the first readQuorum replicas to answer have, so with readQuorum +
+  // writeQuorum greater than the number of replicas, it sees every write
+  // that succeeded.
+  public void setQuorums(int readQuorum, int writeQuorum) {
+    this.readQuorum = readQuorum;
+    this.writeQuorum = writeQuorum;
+  }
+
+  // Returns the number of copies of each row.
+  public int replicationFactor() throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    RingView view = placement;
+    return view == null || view.isEmpty() ? 1 : Math.min(view.replicas, view.ids.size());
+  }
+
+  static int quorum(int setting, int replicas) {
+    return setting <= 0 ? replicas / 2 + 1 : Math.min(setting, replicas);
+  }
+
+  // Returns the addresses of the workers that store copies of a key, its
+  // owner first.
+  List<String> replicaAddresses(String key) {
+    refreshPlacementIfStale();
+    RingView view = placement;
+    if (view != null && !view.isEmpty() && view.replicas > 1)
+      return view.replicaAddresses(key);
+    return List.of(workers.elementAt(workerIndexForKey(key)).address);
+  }
+
+  // Returns the indexes in 'workers' of the replicas of a key.
+  List<Integer> replicaIndexes(String key) {
+    Map<String, Integer> indexes = workerIndexes;
+    List<Integer> found = new ArrayList<>();
+    for (String address : replicaAddresses(key)) {
+      Integer index = indexes == null ? null : indexes.get(address);
+      if (index == null)
+        return List.of(workerIndexForKey(key));
+      found.add(index);
+    }
+    return found;
+  }
+
+  // A blocking request to one worker, by its address.
+  interface WorkerCall<T> {
+    T call(String address) throws IOException;
+  }
+
+  // Runs a blocking request to a worker on the request pool, or in the
+  // calling thread if inline is set.
+  static <T> CompletableFuture<T> run(WorkerCall<T> call, String address, boolean inline) {
+    if (!inline) {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return call.call(address);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
         }
+      }, requestPool);
+    }
+    try {
+      return CompletableFuture.completedFuture(call.call(address));
+    } catch (Exception e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  // Sends a request to a worker and records how long it took.
+  static <T> CompletableFuture<T> tracked(String address, Function<String, CompletableFuture<T>> request) {
+    long start = replicaLoad.start(address);
+    CompletableFuture<T> response;
+    try {
+      response = request.apply(address);
+    } catch (RuntimeException e) {
+      response = CompletableFuture.failedFuture(e);
+    }
+    return response.whenComplete((r, e) -> replicaLoad.finish(address, start, e == null));
+  }
+
+  // Returns a response, or throws if there is none. A keep-alive connection
+  // to a worker that has gone away yields a response without a status.
+  static HTTP.Response answered(HTTP.Response r, String address) throws IOException {
+    if (r == null || r.statusCode() <= 0)
+      throw new IOException("No response from " + address);
+    return r;
+  }
+
+  static Throwable unwrap(Throwable e) {
+    while ((e instanceof CompletionException || e instanceof UncheckedIOException) && e.getCause() != null)
+      e = e.getCause();
+    return e;
+  }
+
+  // Waits for a future, and throws what it failed with.
+  static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  // Sends a write to every replica of a row at once, and completes once all
+  // of them have answered, so that every replica that is up has the write
+  // when it returns. Fails if fewer than the write quorum accepted it, with a
+  // single replica's own failure.
+  <T> CompletableFuture<Void> writeReplicas(String row, Function<String, CompletableFuture<T>> request) {
+    List<String> replicas = replicaAddresses(row);
+    int needed = quorum(writeQuorum, replicas.size());
+    AtomicInteger remaining = new AtomicInteger(replicas.size());
+    AtomicInteger accepted = new AtomicInteger();
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    for (String address : replicas) {
+      tracked(address, request).whenComplete((r, e) -> {
+        if (e == null)
+          accepted.incrementAndGet();
+        else
+          failures.add(unwrap(e));
+        if (remaining.decrementAndGet() > 0)
+          return;
+        if (accepted.get() >= needed)
+          result.complete(null);
+        else if (replicas.size() == 1)
+          result.completeExceptionally(failures.get(0));
+        else
+          result.completeExceptionally(new IOException("Only " + accepted.get() + " of " + replicas.size()
+              + " replicas of row " + row + " accepted the write", failures.get(0)));
+      });
+    }
+    return result;
+  }
+
+  // Like writeReplicas(), for a blocking request.
+  <T> void writeBlocking(String row, WorkerCall<T> call) throws IOException {
+    boolean inline = replicaAddresses(row).size() == 1;
+    await(writeReplicas(row, address -> run(call, address, inline)));
+  }
+
+  // Sends a read to the best readQuorum replicas of a row (see ReplicaLoad),
+  // and to the next one for each that fails. Completes with their answers by
+  // address, owner first, or fails once too few replicas are left.
+  <T> CompletableFuture<Map<String, T>> readReplicas(String row, Function<String, CompletableFuture<T>> request) {
+    return new ReplicaRead<T>(replicaAddresses(row), request).start();
+  }
+
+  // Like readReplicas(), for a blocking request.
+  <T> Map<String, T> readBlocking(String row, WorkerCall<T> call) throws IOException {
+    boolean inline = quorum(readQuorum, replicaAddresses(row).size()) == 1;
+    return await(readReplicas(row, address -> run(call, address, inline)));
+  }
+
+  /**
+   * A read from several replicas of a row; see readReplicas().
+   */
+  class ReplicaRead<T> {
+    final List<String> replicas;
+    final List<String> ranked;
+    final int needed;
+    final Function<String, CompletableFuture<T>> request;
+    final CompletableFuture<Map<String, T>> result = new CompletableFuture<>();
+    // Guarded by this.
+    final Map<String, T> answers = new HashMap<>();
+    int next;
+
+    ReplicaRead(List<String> replicas, Function<String, CompletableFuture<T>> request) {
+      this.replicas = replicas;
+      this.ranked = replicaLoad.rank(replicas);
+      this.needed = quorum(readQuorum, replicas.size());
+      this.request = request;
+      this.next = needed;
+    }
+
+    CompletableFuture<Map<String, T>> start() {
+      for (int i = 0; i < needed; i++)
+        ask(ranked.get(i));
+      return result;
+    }
+
+    // Retries run on the request pool, since a failure may be reported on a
+    // pipeline's reader thread (see WorkerPipeline).
+    void ask(String address) {
+      tracked(address, request).whenComplete((answer, e) -> {
+        String retry;
+        synchronized (this) {
+          if (e == null) {
+            answers.put(address, answer);
+            if (answers.size() == needed) {
+              Map<String, T> ordered = new LinkedHashMap<>();
+              for (String replica : replicas)
+                if (answers.containsKey(replica))
+                  ordered.put(replica, answers.get(replica));
+              result.complete(ordered);
+            }
+            return;
+          }
+          retry = next < ranked.size() ? ranked.get(next++) : null;
+        }
+        if (retry == null)
+          result.completeExceptionally(unwrap(e));
+        else
+          requestPool.execute(() -> ask(retry));
+      });
+    }
+  }
+
+  // Merges the copies of a row that replicas returned, owner first: the row
+  // gets the columns of all copies, with the value of the first copy that
+  // has each one. Replicas that lack some of them get them in the
+  // background.
+  Row reconcile(String tableName, Map<String, Row> copies) {
+    Row merged = null;
+    for (Row copy : copies.values()) {
+      if (copy == null)
+        continue;
+      if (merged == null) {
+        merged = copy.clone();
+        continue;
       }
+      for (String column : copy.columns())
+        if (merged.getBytes(column) == null)
+          merged.put(column, copy.getBytes(column));
+    }
+    if (merged != null && copies.size() > 1) {
+      List<String> stale = new ArrayList<>();
+      for (Map.Entry<String, Row> copy : copies.entrySet())
+        if (copy.getValue() == null || copy.getValue().columns().size() < merged.columns().size())
+          stale.add(copy.getKey());
+      repair(tableName, merged, stale);
+    }
+    return merged;
+  }
+
+  // Returns the first value that replicas returned for a column, owner
+  // first, and sends it to the replicas that do not have it.
+  byte[] reconcile(String tableName, String row, String column, Map<String, byte[]> copies) {
+    byte[] value = null;
+    List<String> stale = new ArrayList<>();
+    for (Map.Entry<String, byte[]> copy : copies.entrySet()) {
+      if (copy.getValue() == null)
+        stale.add(copy.getKey());
+      else if (value == null)
+        value = copy.getValue();
     }
+    if (value != null) {
+      Row columns = new Row(row);
+      columns.put(column, value);
+      repair(tableName, columns, stale);
+    }
+    return value;
+  }
 
-    return chosenWorker;
+  // Sends the columns of a row to replicas that lack some of them, in the
+  // background; they keep the columns they have.
+  void repair(String tableName, Row row, List<String> addresses) {
+    byte[] body = row.toBinary();
+    for (String address : addresses) {
+      requestPool.execute(() -> {
+        try {
+          HTTP.doRequest("PUT", "http://" + address + "/data/" + tableName + "/?merge=missing", body, BINARY_HEADERS);
+        } catch (IOException e) {
+          // The next read that finds the replica behind tries again.
+        }
+      });
+    }
   }
 
   // Constructor initializes a new KVSClient with the coordinator's address.
@@ -149,19 +537,132 @@ public class KVSClient implements KVS, Serializable {
     }
   }
 
+  // Sets the durability of a persistent table on all workers: "none", "write"
+  // or "sync".
+  public boolean setDurability(String tableName, String durability) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    boolean result = true;
+    for (WorkerEntry w : workers) {
+      try {
+        byte[] response = HTTP.doRequest("PUT",
+            "http://" + w.address + "/durability/" + java.net.URLEncoder.encode(tableName, "UTF-8") + "/",
+            durability.getBytes()).body();
+        result &= new String(response).equals("OK");
+      } catch (Exception e) {
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  // Turns memory-mapping of a persistent table on or off on all workers. Meant
+  // for read-mostly tables that are hit by every query.
+  public boolean setMapped(String tableName, boolean mapped) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    boolean result = true;
+    for (WorkerEntry w : workers) {
+      try {
+        byte[] response = HTTP.doRequest("PUT",
+            "http://" + w.address + "/mmap/" + java.net.URLEncoder.encode(tableName, "UTF-8") + "/",
+            String.valueOf(mapped).getBytes()).body();
+        result &= new String(response).equals("OK");
+      } catch (Exception e) {
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  // Sets how long, in milliseconds, the rows of a table are kept on all
+  // workers after they were last written; 0 keeps them until they are
+  // deleted. Renaming the table removes its TTL.
+  public boolean setTtl(String tableName, long ttlMillis) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    boolean result = true;
+    for (WorkerEntry w : workers) {
+      try {
+        byte[] response = HTTP.doRequest("PUT",
+            "http://" + w.address + "/ttl/" + java.net.URLEncoder.encode(tableName, "UTF-8") + "/",
+            String.valueOf(ttlMillis).getBytes()).body();
+        result &= new String(response).equals("OK");
+      } catch (Exception e) {
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  // Opens a snapshot of a persistent table on all workers, so that scans as
+  // of it see the table as it is now while writes go on. The snapshot should
+  // be released once it is no longer needed; otherwise the workers release
+  // it after it has not been read for a while (see UndoLog).
+  public Snapshot openSnapshot(String tableName) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    Map<String, Long> versions = new LinkedHashMap<>();
+    for (WorkerEntry w : workers) {
+      HTTP.Response r = HTTP.doRequest("POST",
+          "http://" + w.address + "/snapshot/" + URLEncoder.encode(tableName, StandardCharsets.UTF_8), null);
+      if (r != null && r.statusCode() == 200) {
+        versions.put(w.id, Long.parseLong(new String(r.body(), StandardCharsets.UTF_8).trim()));
+      } else if (r == null || r.statusCode() != 404) {
+        releaseSnapshot(new Snapshot(tableName, versions));
+        throw new IOException("Opening a snapshot of " + tableName + " on " + w.address + " failed"
+            + (r == null ? "" : ": " + new String(r.body(), StandardCharsets.UTF_8)));
+      }
+    }
+    return new Snapshot(tableName, versions);
+  }
+
+  // Releases a snapshot on all workers that have it.
+  public void releaseSnapshot(Snapshot snapshot) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    for (WorkerEntry w : workers) {
+      long version = snapshot.version(w.id);
+      if (version < 0)
+        continue;
+      try {
+        HTTP.doRequest("POST",
+            "http://" + w.address + "/release/" + URLEncoder.encode(snapshot.table(), StandardCharsets.UTF_8),
+            String.valueOf(version).getBytes());
+      } catch (Exception e) {
+      }
+    }
+  }
+
   // Inserts or updates a value in a specific table, row, and column.
   public void put(String tableName, String row, String column, byte value[]) throws IOException {
+    put(tableName, row, column, value, 0);
+  }
+
+  // Like put(), but the row expires ttlMillis milliseconds from now instead
+  // of after the TTL of its table.
+  public void put(String tableName, String row, String column, byte value[], long ttlMillis) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
     try {
-      String target = "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/"
-          + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8");
-
-      byte[] response = HTTP.doRequest("PUT", target, value).body();
-      String result = new String(response);
-      if (!result.equals("OK"))
-        throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
+      String path = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/"
+          + java.net.URLEncoder.encode(column, "UTF-8") + (ttlMillis > 0 ? "?ttl=" + ttlMillis : "");
+
+      writeBlocking(row, address -> {
+        String target = "http://" + address + path;
+        byte[] response = HTTP.doRequest("PUT", target, value).body();
+        String result = new String(response);
+        if (!result.equals("OK"))
+          throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
+        return null;
+      });
+      rememberRow(tableName, row);
     } catch (UnsupportedEncodingException uee) {
       throw new RuntimeException("UTF-8 encoding not supported?!?");
     }
@@ -174,47 +675,160 @@ public class KVSClient implements KVS, Serializable {
 
   // Inserts or updates an entire row in a table.
   public void putRow(String tableName, Row row) throws FileNotFoundException, IOException {
+    putRow(tableName, row, 0);
+  }
+
+  // Like putRow(), but the row expires ttlMillis milliseconds from now
+  // instead of after the TTL of its table.
+  public void putRow(String tableName, Row row, long ttlMillis) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    System.out.println("http://" + workers.elementAt(workerIndexForKey(row.key())).address + "/data/" + tableName);
-    byte[] response = HTTP.doRequest("PUT",
-        "http://" + workers.elementAt(workerIndexForKey(row.key())).address + "/data/" + tableName, row.toByteArray())
-        .body();
-    String result = new String(response);
-    if (!result.equals("OK"))
-      throw new RuntimeException("PUT returned something other than OK: " + result);
+    byte[] binary = row.toBinary();
+    String query = ttlMillis > 0 ? "?ttl=" + ttlMillis : "";
+    writeBlocking(row.key(), address -> {
+      byte[] response = HTTP.doRequest("PUT", "http://" + address + "/data/" + tableName + query, binary,
+          BINARY_HEADERS).body();
+      String result = new String(response);
+      if (!result.equals("OK"))
+        throw new RuntimeException("PUT returned something other than OK: " + result);
+      return null;
+    });
+    rememberRow(tableName, row.key());
   }
 
-  // Inserts or updates multiple rows in a table.
+  // Inserts or updates multiple rows in a table, with one request per
+  // worker; the requests run in parallel. The worker answers with a status
+  // line per row; if a row was accepted by fewer replicas than the write
+  // quorum, the exception names the first such row.
   public void putRows(String tableName, Map<String, Row> rows) throws IOException {
-    Map<Integer, byte[]> maps = new HashMap<>();
+    putRows(tableName, rows.values(), false);
+  }
 
-    for (String rowKey : rows.keySet()) {
-      int workerIndex = workerIndexForKey(rowKey);
-      if (!maps.containsKey(workerIndex)) {
-        maps.put(workerIndex, rows.get(rowKey).toByteArray());
-      } else {
-        byte[] a = maps.get(workerIndex);
-        byte[] b = rows.get(rowKey).toByteArray();
-        byte[] result = new byte[a.length + b.length]; // create a new array with the combined length
-        System.arraycopy(a, 0, result, 0, a.length); // copy the first array
-        System.arraycopy(b, 0, result, a.length, b.length); // cop
-        maps.put(workerIndex, result);
+  // Sets the columns of multiple rows, leaving their other columns unchanged,
+  // with one request per worker. Rows that do not exist are created.
+  public void mergeRows(String tableName, Collection<Row> rows) throws IOException {
+    putRows(tableName, rows, true);
+  }
+
+  void putRows(String tableName, Collection<Row> rows, boolean merge) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<Row> list = new ArrayList<>(rows);
+    Map<String, ByteArrayOutputStream> bodies = new HashMap<>();
+    Map<String, List<Integer>> sent = new HashMap<>();
+    int[] needed = new int[list.size()];
+    for (int i = 0; i < list.size(); i++) {
+      List<String> replicas = replicaAddresses(list.get(i).key());
+      needed[i] = quorum(writeQuorum, replicas.size());
+      byte[] binary = list.get(i).toBinary();
+      for (String address : replicas) {
+        bodies.computeIfAbsent(address, a -> new ByteArrayOutputStream()).write(binary);
+        sent.computeIfAbsent(address, a -> new ArrayList<>()).add(i);
       }
     }
 
-    for (int worker : maps.keySet()) {
-      byte[] response = HTTP
-          .doRequest("PUT", "http://" + workers.elementAt(worker).address + "/data/" + tableName, maps.get(worker))
-          .body();
-      String result = new String(response);
-      if (!result.equals("OK")) {
-        System.out.println(result);
-        throw new RuntimeException("PUT returned something other than OK: " + result);
+    Map<String, CompletableFuture<String[]>> responses = new HashMap<>();
+    for (Map.Entry<String, ByteArrayOutputStream> body : bodies.entrySet()) {
+      byte[] bytes = body.getValue().toByteArray();
+      responses.put(body.getKey(), tracked(body.getKey(), address -> run(a -> new String(HTTP.doRequest("PUT",
+          "http://" + a + "/data/" + tableName + (merge ? "/?merge=true" : ""), bytes, BINARY_HEADERS).body())
+          .split("\n"), address, bodies.size() == 1)));
+    }
+    int[] accepted = new int[list.size()];
+    String[] failures = new String[list.size()];
+    for (Map.Entry<String, CompletableFuture<String[]>> response : responses.entrySet()) {
+      String[] statuses;
+      String missing = "FAIL no status";
+      try {
+        statuses = response.getValue().join();
+      } catch (CompletionException e) {
+        statuses = new String[0];
+        missing = "FAIL " + unwrap(e);
+      }
+      List<Integer> items = sent.get(response.getKey());
+      for (int j = 0; j < items.size(); j++) {
+        String status = j < statuses.length ? statuses[j] : missing;
+        if (status.equals("OK"))
+          accepted[items.get(j)]++;
+        else if (failures[items.get(j)] == null)
+          failures[items.get(j)] = status;
+      }
+    }
+    for (int i = 0; i < list.size(); i++)
+      if (accepted[i] < needed[i])
+        throw new IOException("PUT of row " + list.get(i).key() + " returned something other than OK: " + failures[i]);
+    for (Row row : rows)
+      rememberRow(tableName, row.key());
+  }
+
+  // Sets a column to value if it holds expected, or, if expected is null, if
+  // it does not exist. The check and the write are atomic. Returns whether
+  // the column was set.
+  public boolean compareAndSet(String tableName, String row, String column, byte[] expected, byte[] value)
+      throws IOException {
+    byte[] body = value;
+    if (expected != null) {
+      body = Arrays.copyOf(expected, expected.length + value.length);
+      System.arraycopy(value, 0, body, expected.length, value.length);
+    }
+    HTTP.Response r = update(tableName, row, column,
+        "op=cas&expectedLength=" + (expected == null ? -1 : expected.length), body);
+    if (r.statusCode() == 409)
+      return false;
+    checkUpdated(r, "cas");
+    rememberRow(tableName, row);
+    return true;
+  }
+
+  // Adds delta to an integer column, which is 0 if it does not exist, and
+  // returns the new value. Concurrent increments are never lost.
+  public long increment(String tableName, String row, String column, long delta) throws IOException {
+    HTTP.Response r = update(tableName, row, column, "op=increment", String.valueOf(delta).getBytes());
+    checkUpdated(r, "increment");
+    rememberRow(tableName, row);
+    return Long.parseLong(new String(r.body()));
+  }
+
+  // Like increment(), for a decimal number, e.g. a rank accumulator.
+  public double add(String tableName, String row, String column, double delta) throws IOException {
+    HTTP.Response r = update(tableName, row, column, "op=add", String.valueOf(delta).getBytes());
+    checkUpdated(r, "add");
+    rememberRow(tableName, row);
+    return Double.parseDouble(new String(r.body()));
+  }
+
+  // Appends bytes to a column, which is created if it does not exist.
+  public void append(String tableName, String row, String column, byte[] value) throws IOException {
+    checkUpdated(update(tableName, row, column, "op=append", value), "append");
+    rememberRow(tableName, row);
+  }
+
+  // Sends an atomic update of a column to the first replica of its row that
+  // answers, owner first. That worker applies the update and copies the
+  // result to the other replicas before it answers, so updates of a row are
+  // applied in the same order everywhere while its owner is up.
+  HTTP.Response update(String tableName, String row, String column, String query, byte[] body) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
 
+    String path = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/"
+        + java.net.URLEncoder.encode(column, "UTF-8") + "?" + query;
+    IOException failure = null;
+    for (String address : replicaAddresses(row)) {
+      try {
+        return answered(HTTP.doRequest("POST", "http://" + address + path, body), address);
+      } catch (IOException e) {
+        failure = e;
       }
     }
+    throw failure;
+  }
+
+  static void checkUpdated(HTTP.Response r, String op) throws IOException {
+    if (r.statusCode() != 200)
+      throw new IOException(op + " returned something other than OK: " + new String(r.body()));
   }
 
   // Retrieves a row from a specified table.
@@ -222,8 +836,12 @@ public class KVSClient implements KVS, Serializable {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response resp = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/"
-        + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8"), null);
+    String path = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8");
+    return reconcile(tableName, readBlocking(row, address -> parseRow(
+        answered(HTTP.doRequest("GET", "http://" + address + path, null, BINARY_HEADERS), address))));
+  }
+
+  static Row parseRow(HTTP.Response resp) {
     if (resp.statusCode() == 404)
       return null;
 
@@ -235,36 +853,333 @@ public class KVSClient implements KVS, Serializable {
     }
   }
 
+  // Retrieves many rows of a table, with one request per worker; the requests
+  // run in parallel. If columns are given, the rows only contain those of
+  // them that they have. Rows that do not exist are missing from the result.
+  // Each row is read from one replica (see readBatches()). Row keys must not
+  // contain newlines.
+  public Map<String, Row> multiGet(String tableName, Collection<String> rows, String... columns) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<String> keys = new ArrayList<>(rows);
+    String query = columns.length == 0 ? ""
+        : "?columns=" + java.net.URLEncoder.encode(String.join(",", columns), "UTF-8");
+    String path = "/mget/" + java.net.URLEncoder.encode(tableName, "UTF-8") + query;
+    Map<String, Row> result = new HashMap<>();
+    readBatches(keys, (address, items) -> {
+      List<Row> found = fetchRows("http://" + address + path, lines(keys, items));
+      synchronized (result) {
+        for (Row row : found)
+          result.put(row.key(), row);
+      }
+    });
+    return result;
+  }
+
+  // Some of the rows of a batch read, by their positions in the list of rows,
+  // to read from one worker.
+  interface BatchCall {
+    void call(String address, List<Integer> items) throws IOException;
+  }
+
+  // Reads many rows with one request per worker, in parallel. Each row is
+  // read from its best replica (see ReplicaLoad); the rows of a request that
+  // fails are read from their next replicas. The call keeps what it reads.
+  // Throws the last failure if a row has no replica left.
+  void readBatches(List<String> rows, BatchCall call) throws IOException {
+    List<List<String>> ranked = new ArrayList<>();
+    List<Integer> pending = new ArrayList<>();
+    for (int i = 0; i < rows.size(); i++) {
+      ranked.add(replicaLoad.rank(replicaAddresses(rows.get(i))));
+      pending.add(i);
+    }
+    Set<String> failed = new HashSet<>();
+    Throwable lastFailure = null;
+    while (!pending.isEmpty()) {
+      Map<String, List<Integer>> batches = new HashMap<>();
+      for (int i : pending) {
+        String address = null;
+        for (String replica : ranked.get(i))
+          if (!failed.contains(replica)) {
+            address = replica;
+            break;
+          }
+        if (address == null)
+          throw lastFailure instanceof IOException ? (IOException) lastFailure
+              : new IOException("No replica of row " + rows.get(i) + " could be read", lastFailure);
+        batches.computeIfAbsent(address, a -> new ArrayList<>()).add(i);
+      }
+      Map<String, CompletableFuture<Void>> responses = new HashMap<>();
+      for (Map.Entry<String, List<Integer>> batch : batches.entrySet())
+        responses.put(batch.getKey(), tracked(batch.getKey(), address -> run(a -> {
+          call.call(a, batch.getValue());
+          return null;
+        }, address, batches.size() == 1)));
+      pending = new ArrayList<>();
+      for (Map.Entry<String, CompletableFuture<Void>> response : responses.entrySet()) {
+        try {
+          response.getValue().join();
+        } catch (CompletionException e) {
+          failed.add(response.getKey());
+          pending.addAll(batches.get(response.getKey()));
+          lastFailure = unwrap(e);
+        }
+      }
+    }
+  }
+
+  // Returns the rows at the given positions, one per line.
+  static byte[] lines(List<String> rows, List<Integer> items) {
+    StringBuilder body = new StringBuilder();
+    for (int i : items) {
+      if (body.length() > 0)
+        body.append('\n');
+      body.append(rows.get(i));
+    }
+    return body.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // POSTs a list of row keys to /mget and reads the rows that come back,
+  // up to the empty line that ends them.
+  static List<Row> fetchRows(String url, byte[] body) throws IOException {
+    HttpURLConnection con = (HttpURLConnection) URI.create(url).toURL().openConnection();
+    con.setRequestMethod("POST");
+    con.setRequestProperty("Accept", Row.BINARY_CONTENT_TYPE);
+    con.setDoOutput(true);
+    con.setFixedLengthStreamingMode(body.length);
+    try (OutputStream out = con.getOutputStream()) {
+      out.write(body);
+    }
+    if (con.getResponseCode() != 200)
+      throw new IOException("Unexpected response from /mget: " + con.getResponseCode());
+
+    List<Row> rows = new ArrayList<>();
+    try (InputStream in = new BufferedInputStream(con.getInputStream(), 65536)) {
+      Row row;
+      while ((row = readRow(in)) != null)
+        rows.add(row);
+    }
+    return rows;
+  }
+
+  private static Row readRow(InputStream in) throws IOException {
+    try {
+      return Row.readFrom(in);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Decoding error while reading Row from /mget", e);
+    }
+  }
+
+  // Asynchronous versions of put(), putRow(), get(), getRow() and existsRow().
+  // Requests to a worker are pipelined on a few shared connections, with at
+  // most WorkerPipeline.MAX_IN_FLIGHT outstanding; beyond that, these methods
+  // block until earlier requests have been answered. The futures complete on
+  // the connections' reader threads (see WorkerPipeline).
+
+  public CompletableFuture<Void> putAsync(String tableName, String row, String column, byte[] value)
+      throws IOException {
+    String path = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/"
+        + java.net.URLEncoder.encode(column, "UTF-8");
+    return writeAsync(tableName, row, "PUT", path, value, null);
+  }
+
+  public CompletableFuture<Void> putAsync(String tableName, String row, String column, String value)
+      throws IOException {
+    return putAsync(tableName, row, column, value.getBytes());
+  }
+
+  public CompletableFuture<Void> putRowAsync(String tableName, Row row) throws IOException {
+    return writeAsync(tableName, row.key(), "PUT", "/data/" + tableName, row.toBinary(), BINARY_HEADERS);
+  }
+
+  // Sends a write to every replica of a row; see writeReplicas().
+  CompletableFuture<Void> writeAsync(String tableName, String row, String method, String path, byte[] body,
+      Map<String, String> headers) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    return writeReplicas(row, address -> send(address, row, method, path, body, headers).thenApply(r -> {
+      String result = new String(r.body());
+      if (!result.equals("OK"))
+        throw new RuntimeException("PUT returned something other than OK: " + result + "(" + path + ")");
+      return null;
+    })).thenApply(v -> {
+      rememberRow(tableName, row);
+      return null;
+    });
+  }
+
+  public CompletableFuture<byte[]> getAsync(String tableName, String row, String column) throws IOException {
+    String path = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/"
+        + java.net.URLEncoder.encode(column, "UTF-8");
+    return readAsync(row, "GET", path, null, null, r -> r.statusCode() == 200 ? r.body() : null)
+        .thenApply(copies -> reconcile(tableName, row, column, copies));
+  }
+
+  public CompletableFuture<Row> getRowAsync(String tableName, String row) throws IOException {
+    return readAsync(row, "GET", "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8"), null,
+        BINARY_HEADERS, KVSClient::parseRow).thenApply(copies -> reconcile(tableName, copies));
+  }
+
+  public CompletableFuture<Boolean> existsRowAsync(String tableName, String row) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    if (!mightExist(tableName, row))
+      return CompletableFuture.completedFuture(false);
+    return readAsync(row, "POST", "/exists/" + java.net.URLEncoder.encode(tableName, "UTF-8"),
+        row.getBytes(StandardCharsets.UTF_8), null, r -> {
+          String answer = new String(r.body(), StandardCharsets.UTF_8);
+          if (r.statusCode() != 200 || answer.length() != 1)
+            throw new RuntimeException("Unexpected response from /exists: " + r.statusCode() + " " + answer);
+          return answer.charAt(0) == '1';
+        }).thenApply(copies -> copies.containsValue(true));
+  }
+
+  // Sends a read to replicas of a row (see readReplicas()) and parses their
+  // responses.
+  <T> CompletableFuture<Map<String, T>> readAsync(String row, String method, String path, byte[] body,
+      Map<String, String> headers, Function<HTTP.Response, T> parse) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    return readReplicas(row, address -> send(address, row, method, path, body, headers).thenApply(parse));
+  }
+
+  // Sends a request about a row to a worker, on its pipeline.
+  CompletableFuture<HTTP.Response> send(String address, String row, String method, String path, byte[] body,
+      Map<String, String> headers) {
+    WorkerPipeline pipeline;
+    synchronized (this) {
+      if (pipelines == null)
+        pipelines = new HashMap<>();
+      pipeline = pipelines.computeIfAbsent(address,
+          a -> new WorkerPipeline(a, WorkerPipeline.CONNECTIONS, WorkerPipeline.MAX_IN_FLIGHT));
+    }
+    return pipeline.send(row, method, path, body, headers);
+  }
+
   // Retrieves a specific column value from a table by row and column keys.
   public byte[] get(String tableName, String row, String column) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response res = HTTP.doRequest("GET",
-        "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/"
-            + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8"),
-        null);
-    return ((res != null) && (res.statusCode() == 200)) ? res.body() : null;
+    String path = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/"
+        + java.net.URLEncoder.encode(column, "UTF-8");
+    return reconcile(tableName, row, column, readBlocking(row, address -> {
+      HTTP.Response res = answered(HTTP.doRequest("GET", "http://" + address + path, null), address);
+      return res.statusCode() == 200 ? res.body() : null;
+    }));
   }
 
-  // Checks if a specific row exists in a table.
+  // Checks if a specific row exists in a table. If local Bloom filters are
+  // enabled for the table, most absent rows are answered without asking the
+  // worker.
   public boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response r = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/"
-        + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8"), null);
-    return r.statusCode() == 200;
+    if (!mightExist(tableName, row))
+      return false;
+    return existsRows(tableName, List.of(row))[0];
+  }
+
+  // Checks which of the given rows exist in a table, with one request per
+  // worker; each row is checked on one replica (see readBatches()). Row keys
+  // must not contain newlines.
+  public boolean[] existsRows(String tableName, List<String> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    String path = "/exists/" + java.net.URLEncoder.encode(tableName, "UTF-8");
+    boolean[] result = new boolean[rows.size()];
+    readBatches(rows, (address, items) -> {
+      HTTP.Response r = answered(HTTP.doRequest("POST", "http://" + address + path, lines(rows, items)), address);
+      String answer = new String(r.body(), StandardCharsets.UTF_8);
+      if (r.statusCode() != 200 || answer.length() != items.size())
+        throw new IOException("Unexpected response from /exists: " + r.statusCode() + " " + answer);
+      for (int j = 0; j < answer.length(); j++)
+        result[items.get(j)] = answer.charAt(j) == '1';
+    });
+    return result;
+  }
+
+  // Lets existsRow() answer "does not exist" from local copies of the
+  // workers' Bloom filters for the given table. The copies miss rows that
+  // other clients write after they were downloaded, so they are refreshed
+  // after maxAgeMillis; use this only where an occasional wrong "does not
+  // exist" for a very recent row is acceptable.
+  public synchronized void useBloomFilters(String tableName, long maxAgeMillis) {
+    if (bloomFilters == null)
+      bloomFilters = new HashMap<>();
+    bloomFilters.put(tableName, new LocalFilters(maxAgeMillis));
+  }
+
+  // Checks the local Bloom filters of the workers that hold the row. Returns
+  // true if the row may exist on one of them, or if there is no filter for
+  // the table.
+  synchronized boolean mightExist(String tableName, String row) throws IOException {
+    LocalFilters local = bloomFilters == null ? null : bloomFilters.get(tableName);
+    if (local == null || inHandoff())
+      return true;
+    if (local.filters == null || local.filters.length != workers.size()
+        || System.currentTimeMillis() - local.loadedAt > local.maxAgeMillis) {
+      BloomFilter[] filters = new BloomFilter[workers.size()];
+      for (int i = 0; i < workers.size(); i++) {
+        HTTP.Response r = HTTP.doRequest("GET",
+            "http://" + workers.elementAt(i).address + "/bloom/" + java.net.URLEncoder.encode(tableName, "UTF-8"),
+            null);
+        // A worker without the table has no rows of it yet, but may get some
+        // before the next refresh; leave its filter out.
+        filters[i] = r.statusCode() == 200 ? BloomFilter.fromBytes(r.body()) : null;
+      }
+      local.filters = filters;
+      local.loadedAt = System.currentTimeMillis();
+    }
+    for (int index : replicaIndexes(row)) {
+      BloomFilter filter = local.filters[index];
+      if (filter == null || filter.mightContain(row))
+        return true;
+    }
+    return false;
   }
 
-  // Counts the number of rows in a specified table.
+  // Adds a row that this client has written to the local Bloom filter, so
+  // that existsRow() finds it before the next refresh.
+  synchronized void rememberRow(String tableName, String row) {
+    LocalFilters local = bloomFilters == null ? null : bloomFilters.get(tableName);
+    if (local != null && local.filters != null && local.filters.length == workers.size()) {
+      for (int index : replicaIndexes(row)) {
+        BloomFilter filter = local.filters[index];
+        if (filter != null)
+          filter.add(row);
+      }
+    }
+  }
+
+  // Counts the number of rows in a specified table. With replication, each
+  // worker counts the rows it owns, and the rows of a worker that cannot be
+  // reached are counted by the workers that hold their next copies.
   public int count(String tableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
+    RingView view = placement;
     int total = 0;
-    for (WorkerEntry w : workers) {
-      HTTP.Response r = HTTP.doRequest("GET", "http://" + w.address + "/count/" + tableName, null);
+    Deque<ScanRange> ranges = new ArrayDeque<>(initialRanges(view, null));
+    while (!ranges.isEmpty()) {
+      ScanRange range = ranges.poll();
+      HTTP.Response r;
+      try {
+        r = HTTP.doRequest("GET", "http://" + range.address + "/count/" + tableName + range.query("?"), null);
+        if (range.replicaOf != null)
+          answered(r, range.address);
+      } catch (IOException e) {
+        if (range.replicaOf == null)
+          throw e;
+        ranges.addAll(fallbacks(view, range, null));
+        continue;
+      }
       if ((r != null) && (r.statusCode() == 200)) {
         String result = new String(r.body());
         total += Integer.valueOf(result).intValue();
@@ -273,6 +1188,88 @@ public class KVSClient implements KVS, Serializable {
     return total;
   }
 
+  /**
+   * The rows that one worker sends for a scan or a count. With replication,
+   * the worker sends the rows owned by replicaOf of which it holds the first
+   * copy that is not on a worker in down (see Rebalancer.inScan()).
+   * Otherwise, replicaOf is null, and the worker sends all its rows.
+   */
+  static class ScanRange {
+    final String address;
+    final String id;
+    final String replicaOf;
+    final Set<String> down;
+    final String startRow;
+    final int attempt; // How many times in a row the range broke off before.
+
+    ScanRange(String address, String id, String replicaOf, Set<String> down, String startRow) {
+      this(address, id, replicaOf, down, startRow, 0);
+    }
+
+    ScanRange(String address, String id, String replicaOf, Set<String> down, String startRow, int attempt) {
+      this.address = address;
+      this.id = id;
+      this.replicaOf = replicaOf;
+      this.down = down;
+      this.startRow = startRow;
+      this.attempt = attempt;
+    }
+
+    // Returns the same range on the same worker, from startRow on.
+    ScanRange resumeAt(String startRow, int attempt) {
+      return new ScanRange(address, id, replicaOf, down, startRow, attempt);
+    }
+
+    // Returns the query parameters that select the rows, after the given
+    // separator, or an empty string.
+    String query(String separator) {
+      if (replicaOf == null)
+        return "";
+      return separator + "replicaOf=" + URLEncoder.encode(replicaOf, StandardCharsets.UTF_8) + "&down="
+          + URLEncoder.encode(String.join(",", down), StandardCharsets.UTF_8);
+    }
+  }
+
+  // Returns the ranges that a scan or count starts with: one per worker,
+  // including, during a handoff, the workers that are leaving the ring.
+  List<ScanRange> initialRanges(RingView view, String startRow) {
+    List<ScanRange> ranges = new ArrayList<>();
+    if (view == null || view.isEmpty() || view.replicas == 1) {
+      for (WorkerEntry w : workers)
+        ranges.add(new ScanRange(w.address, w.id, null, Set.of(), startRow));
+      return ranges;
+    }
+    for (int i = 0; i < view.ids.size(); i++)
+      ranges.add(new ScanRange(view.addresses.get(i), view.ids.get(i), view.ids.get(i), Set.of(), startRow));
+    for (int i = 0; i < view.previousIds.size(); i++)
+      if (!view.ids.contains(view.previousIds.get(i)))
+        ranges.add(new ScanRange(view.previousAddresses.get(i), view.previousIds.get(i), view.previousIds.get(i),
+            Set.of(), startRow));
+    return ranges;
+  }
+
+  // Returns the ranges that take over from a range whose worker failed,
+  // starting at startRow: every other worker that is up sends the rows of
+  // the same owner of which it holds the first copy that is left. Without
+  // replication, there are none.
+  static List<ScanRange> fallbacks(RingView view, ScanRange failed, String startRow) {
+    if (failed.replicaOf == null)
+      return List.of();
+    Set<String> down = new HashSet<>(failed.down);
+    down.add(failed.id);
+    List<ScanRange> ranges = new ArrayList<>();
+    for (int i = 0; i < view.ids.size(); i++)
+      if (!down.contains(view.ids.get(i)))
+        ranges.add(new ScanRange(view.addresses.get(i), view.ids.get(i), failed.replicaOf, down, startRow));
+    return ranges;
+  }
+
+  // Returns the counters of the scans of this process, e.g. how many rows they
+  // read per second and how often they had to resume a range.
+  public static ScanMetrics scanMetrics() {
+    return scanMetrics;
+  }
+
   // Initiates a scan over all rows in the specified table.
   public Iterator<Row> scan(String tableName) throws FileNotFoundException, IOException {
     return scan(tableName, null, null);
@@ -284,12 +1281,66 @@ public class KVSClient implements KVS, Serializable {
     if (!haveWorkers)
       downloadWorkers();
 
-    return new KVSIterator(tableName, startRow, endRowExclusive);
+    return new KVSIterator(tableName, startRow, endRowExclusive, null, null);
+  }
+
+  // Scans rows in a range of the table, of which the workers only send the
+  // rows and columns that the filter selects.
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, ScanFilter filter)
+      throws FileNotFoundException, IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new KVSIterator(tableName, startRow, endRowExclusive, filter, null);
+  }
+
+  // Like scan() above, but as of a snapshot of the table (see
+  // openSnapshot()); filter may be null. If a worker no longer has the
+  // snapshot, the iterator throws an UncheckedIOException with a
+  // SnapshotTooOldException.
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, ScanFilter filter,
+      Snapshot snapshot) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new KVSIterator(tableName, startRow, endRowExclusive, filter, snapshot);
+  }
+
+  // Scans a table like scan(), but reads from several workers at once, with
+  // up to ParallelScan.READ_AHEAD rows read ahead from each. With ordered,
+  // the rows come in key order; otherwise in whatever order they arrive.
+  public ParallelScan parallelScan(String tableName, boolean ordered) throws IOException {
+    return parallelScan(tableName, null, null, null, null, ordered, ParallelScan.PARALLELISM,
+        ParallelScan.READ_AHEAD);
+  }
+
+  // Scans rows in a range of the table from several workers at once (see
+  // ParallelScan); filter and snapshot may be null. Unordered, up to
+  // parallelism workers are read at a time.
+  public ParallelScan parallelScan(String tableName, String startRow, String endRowExclusive, ScanFilter filter,
+      Snapshot snapshot, boolean ordered, int parallelism, int readAhead) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    RingView view = placement;
+    List<Callable<KVSIterator>> ranges = new ArrayList<>();
+    for (ScanRange range : initialRanges(view, startRow))
+      ranges.add(() -> new KVSIterator(tableName, view, List.of(range), startRow, endRowExclusive, filter, snapshot));
+    scanMetrics.scanStarted();
+    return new ParallelScan(ranges, ordered, parallelism, readAhead);
   }
 
   /**
    * Iterator implementation for iterating over rows in a distributed key-value
-   * store.
+   * store. Workers send the rows of a range in chunks, followed by an end
+   * marker, and with cursors through the rows they leave out (see
+   * ScanCursor). Workers send their rows in key order, so a range that
+   * cannot be reached, or that breaks off before its end, is resumed on the
+   * same worker after the last row or cursor it sent.
+   * After SCAN_RETRIES attempts in a row that got nowhere, the workers
+   * that hold the next copies of its rows take over, if there are any;
+   * otherwise hasNext() and next() throw an UncheckedIOException rather than
+   * end the scan early.
    */
   class KVSIterator implements Iterator<Row> {
     InputStream in; // Stream for reading rows.
@@ -299,115 +1350,197 @@ public class KVSClient implements KVS, Serializable {
     String endRowExclusive; // Exclusive end row key for scanning.
     String startRow; // Inclusive start row key for scanning.
     String tableName; // Name of the table being scanned.
-    Vector<String> ranges; // Vector of URLs to fetch rows from different workers.
+    Vector<ScanRange> ranges; // The workers to fetch rows from, and which of their rows.
+    ScanFilter filter; // Rows and columns to fetch, or null for all.
+    Snapshot snapshot; // The snapshot to read the rows as of, or null.
+    RingView view; // The placement when the scan started.
+    String lastKey; // Key of the last row or cursor read from the current range.
+    boolean broken; // Whether the current range ended without its end marker.
+    UncheckedIOException failure; // Why the scan ended early, or null.
+    long rangeRows; // Rows read from the current range.
+    long rangeStart; // When the current range was opened, in nanoseconds.
 
     // Constructs a KVSIterator to iterate over rows in a table.
-    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, ScanFilter filterArg,
+        Snapshot snapshotArg) throws IOException {
+      this(tableNameArg, placement, null, startRowArg, endRowExclusiveArg, filterArg, snapshotArg);
+    }
+
+    // Constructs a KVSIterator over the given ranges, which a ParallelScan
+    // reads along with others, or, if rangesArg is null, over all rows from
+    // startRow on.
+    KVSIterator(String tableNameArg, RingView viewArg, List<ScanRange> rangesArg, String startRowArg,
+        String endRowExclusiveArg, ScanFilter filterArg, Snapshot snapshotArg) throws IOException {
       in = null;
+      filter = filterArg;
+      snapshot = snapshotArg;
       currentRangeIndex = 0;
       atEnd = false;
       endRowExclusive = endRowExclusiveArg;
       tableName = tableNameArg;
       startRow = startRowArg;
-      ranges = new Vector<String>();
-      if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
-        String url = getURL(tableNameArg, numWorkers() - 1, startRowArg,
-            ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0)) < 0)) ? endRowExclusiveArg
-                : getWorkerID(0));
-        ranges.add(url);
-      }
-      for (int i = 0; i < numWorkers(); i++) {
-        if ((startRowArg == null) || (i == numWorkers() - 1) || (startRowArg.compareTo(getWorkerID(i + 1)) < 0)) {
-          if ((endRowExclusiveArg == null) || (endRowExclusiveArg.compareTo(getWorkerID(i)) > 0)) {
-            boolean useActualStartRow = (startRowArg != null) && (startRowArg.compareTo(getWorkerID(i)) > 0);
-            boolean useActualEndRow = (endRowExclusiveArg != null)
-                && ((i == (numWorkers() - 1)) || (endRowExclusiveArg.compareTo(getWorkerID(i + 1)) < 0));
-            String url = getURL(tableNameArg, i, useActualStartRow ? startRowArg : getWorkerID(i),
-                useActualEndRow ? endRowExclusiveArg : ((i < numWorkers() - 1) ? getWorkerID(i + 1) : null));
-            ranges.add(url);
-          }
-        }
+      view = viewArg;
+      // Rows are placed by the hash of their keys, so every worker may hold
+      // rows of any key range. The rows come worker by worker, each worker's
+      // in key order.
+      if (rangesArg == null) {
+        ranges = new Vector<ScanRange>(initialRanges(view, startRow));
+        scanMetrics.scanStarted();
+      } else {
+        ranges = new Vector<ScanRange>(rangesArg);
       }
 
       openConnectionAndFill();
     }
 
     // Constructs the URL for a GET request to a worker to scan rows in a table.
-    protected String getURL(String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg)
-        throws IOException {
-      String params = "";
-      if (startRowArg != null)
-        params = "startRow=" + startRowArg;
+    protected String getURL(String tableNameArg, ScanRange range, String endRowExclusiveArg) throws IOException {
+      String params = "cursors=true";
+      if (range.startRow != null)
+        params += "&startRow=" + URLEncoder.encode(range.startRow, StandardCharsets.UTF_8);
       if (endRowExclusiveArg != null)
-        params = (params.equals("") ? "" : (params + "&")) + "endRowExclusive=" + endRowExclusiveArg;
-      return "http://" + getWorkerAddress(workerIndexArg) + "/data/" + tableNameArg
-          + (params.equals("") ? "" : "?" + params);
+        params += "&endRowExclusive=" + URLEncoder.encode(endRowExclusiveArg, StandardCharsets.UTF_8);
+      if (filter != null && !filter.toQuery().isEmpty())
+        params += "&" + filter.toQuery();
+      params += range.query("&");
+      if (snapshot != null && snapshot.version(range.id) >= 0)
+        params += "&asOf=" + snapshot.version(range.id);
+      return "http://" + range.address + "/data/" + tableNameArg + "?" + params;
     }
 
-    // Opens a connection to the current range's URL and attempts to fill 'nextRow'.
+    // Opens a connection to the current range's URL and attempts to fill
+    // 'nextRow', going on to the next range while a range has no rows.
     void openConnectionAndFill() {
-      try {
-        if (in != null) {
-          in.close();
-          in = null;
-        }
-
+      while (true) {
+        closeInput();
         if (atEnd)
           return;
+        if (currentRangeIndex >= ranges.size()) {
+          atEnd = true;
+          return;
+        }
 
-        while (true) {
-          if (currentRangeIndex >= ranges.size()) {
-            atEnd = true;
+        ScanRange range = ranges.elementAt(currentRangeIndex);
+        lastKey = null;
+        broken = false;
+        rangeRows = 0;
+        rangeStart = System.nanoTime();
+        try {
+          URL url = new URI(getURL(tableName, range, endRowExclusive)).toURL();
+          HttpURLConnection con = (HttpURLConnection) url.openConnection();
+          con.setRequestMethod("GET");
+          con.setRequestProperty("Accept", Row.BINARY_CONTENT_TYPE);
+          con.connect();
+          if (snapshot != null && con.getResponseCode() == 410) {
+            fail(new SnapshotTooOldException(snapshot.version(range.id)));
             return;
           }
-
-          try {
-            URL url = new URI(ranges.elementAt(currentRangeIndex)).toURL();
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            con.connect();
-            in = con.getInputStream();
-            Row r = fill();
-            if (r != null) {
-              nextRow = r;
-              break;
-            }
-          } catch (FileNotFoundException fnfe) {
-          } catch (URISyntaxException use) {
+          in = new BufferedInputStream(con.getInputStream(), 65536);
+          Row r = fill();
+          if (r != null) {
+            nextRow = r;
+            return;
           }
+        } catch (FileNotFoundException fnfe) {
+          // The worker does not have the table.
+        } catch (URISyntaxException use) {
+        } catch (IOException ioe) {
+          broken = true;
+        }
+        endRange(range);
+      }
+    }
 
-          currentRangeIndex++;
+    // Moves on from a range that has ended: to the next range, or, if it
+    // broke off, to wherever the rest of its rows are to be read from.
+    void endRange(ScanRange range) {
+      scanMetrics.rangeRead(rangeRows, System.nanoTime() - rangeStart);
+      if (!broken) {
+        currentRangeIndex++;
+        return;
+      }
+      String resumeAt = lastKey == null ? range.startRow : lastKey + "\0";
+      int attempt = lastKey == null ? range.attempt + 1 : 1;
+      if (attempt <= SCAN_RETRIES) {
+        scanMetrics.resumed();
+        try {
+          Thread.sleep(SCAN_RETRY_MILLIS * attempt);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
-      } catch (IOException ioe) {
-        if (in != null) {
-          try {
-            in.close();
-          } catch (Exception e) {
-          }
-          in = null;
+        ranges.set(currentRangeIndex, range.resumeAt(resumeAt, attempt));
+        return;
+      }
+      currentRangeIndex++;
+      List<ScanRange> takeOver = fallbacks(view, range, resumeAt);
+      if (!takeOver.isEmpty()) {
+        scanMetrics.takenOver();
+        ranges.addAll(takeOver);
+        return;
+      }
+      fail(new IOException("Scan of " + tableName + " on " + range.address + " broke off after "
+          + (attempt - 1) + " attempts" + (resumeAt == null ? "" : " at " + resumeAt.replace("\0", "\\0"))));
+    }
+
+    // Ends the scan because rows are missing that cannot be read.
+    void fail(IOException cause) {
+      scanMetrics.failed();
+      failure = new UncheckedIOException(cause);
+      atEnd = true;
+      closeInput();
+    }
+
+    void closeInput() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (Exception e) {
         }
-        atEnd = true;
+        in = null;
       }
     }
 
-    // Reads the next row from the input stream.
+    // Reads the next row from the input stream, after any cursors. A stream
+    // that ends without the newline after the last row has been cut off.
     synchronized Row fill() {
       try {
-        Row r = Row.readFrom(in);
-        return r;
+        while (true) {
+          in.mark(1);
+          int first = in.read();
+          if (first < 0) {
+            broken = true;
+            return null;
+          }
+          if (first == (ScanCursor.MAGIC & 0xff)) {
+            lastKey = ScanCursor.read(in);
+            scanMetrics.cursorReceived();
+            continue;
+          }
+          in.reset();
+          Row r = Row.readFrom(in);
+          if (r != null) {
+            lastKey = r.key();
+            rangeRows++;
+          }
+          return r;
+        }
       } catch (Exception e) {
+        broken = true;
         return null;
       }
     }
 
     // Returns the next row in the iteration.
     public synchronized Row next() {
-      if (atEnd)
+      if (atEnd) {
+        if (failure != null)
+          throw failure;
         return null;
+      }
       Row r = nextRow;
       nextRow = fill();
-      while ((nextRow == null) && !atEnd) {
-        currentRangeIndex++;
+      if (nextRow == null) {
+        endRange(ranges.elementAt(currentRangeIndex));
         openConnectionAndFill();
       }
 
@@ -416,6 +1549,8 @@ public class KVSClient implements KVS, Serializable {
 
     // Checks if there are more rows to iterate over.
     public synchronized boolean hasNext() {
+      if (atEnd && failure != null)
+        throw failure;
       return !atEnd;
     }
   }
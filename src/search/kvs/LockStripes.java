@@ -0,0 +1,69 @@
+package search.kvs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LockStripes is a fixed set of read-write locks onto which keys are hashed.
+ * Operations on different keys rarely share a lock, so they can proceed in
+ * parallel, without the cost of keeping a lock object for every key.
+ */
+class LockStripes {
+    private final ReentrantReadWriteLock[] locks;
+
+    LockStripes(int count) {
+        locks = new ReentrantReadWriteLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    ReentrantReadWriteLock get(String key) {
+        return locks[index(key.hashCode())];
+    }
+
+    ReentrantReadWriteLock get(String table, String key) {
+        return locks[index(31 * table.hashCode() + key.hashCode())];
+    }
+
+    // Returns the stripes of the given keys, each once, in the order in which
+    // they have to be locked: whoever locks several stripes takes them in
+    // stripe order, so that two of them cannot each wait for the other.
+    List<ReentrantReadWriteLock> ordered(String... keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String key : keys) {
+            indexes.add(index(key.hashCode()));
+        }
+        return locks(indexes);
+    }
+
+    // Like ordered(String...), for the keys of a table, as with get(String,
+    // String).
+    List<ReentrantReadWriteLock> ordered(String table, Collection<String> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String key : keys) {
+            indexes.add(index(31 * table.hashCode() + key.hashCode()));
+        }
+        return locks(indexes);
+    }
+
+    private List<ReentrantReadWriteLock> locks(TreeSet<Integer> indexes) {
+        List<ReentrantReadWriteLock> ordered = new ArrayList<>();
+        for (int index : indexes) {
+            ordered.add(locks[index]);
+        }
+        return ordered;
+    }
+
+    // Spreads the hash so that keys that differ only in their last characters
+    // do not end up in neighbouring stripes.
+    private int index(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return Math.floorMod(hash, locks.length);
+    }
+}
@@ -0,0 +1,505 @@
+package search.kvs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A LogSegment is one append-only file of a LogStructuredStorage. Rows are
+ * appended to the end of the file as records; once the segment reaches its
+ * size limit it is sealed by writing a footer that lists the position of the
+ * latest record of every key in the segment, so the table index can be
+ * rebuilt on startup without reading the rows themselves.
+ *
+ * Segments written by the Compactor are SSTables: their records are in key
+ * order, and the footer also holds a sparse index with the first key of every
+ * block of roughly BLOCK_SIZE bytes. A range scan uses it to start reading at
+ * the block that contains the first key it needs.
+ *
+ * A record is either a PUT, which holds a whole row, a DELTA, which only
+ * holds the columns that were changed and has to be applied on top of an
+ * older version of the row, or a DELETE, a tombstone whose payload is an empty
+ * row and which hides all older versions.
+ *
+ * Record layout: crc (int), timestamp (long), kind (byte), length (int),
+ * payload (the row in Row.toBinary() format; segments written by older versions
+ * of the engine hold the text format).
+ * Footer layout: one entry per key (key, offset, length, timestamp, kind), one
+ * entry per block (first key, offset of its first record), followed by
+ * footerOffset (long), entryCount (int), blockCount (int), flags (int) and a
+ * magic number (int). Footers with the previous magic number have no kind.
+ *
+ * The record data of a sealed segment can be memory-mapped, after which rows
+ * are read by slicing the mapping instead of with a read from the file.
+ */
+class LogSegment {
+    static final byte PUT = 1;
+    static final byte DELTA = 2;
+    static final byte DELETE = 3;
+    static final int HEADER_SIZE = 17;
+    static final int TRAILER_SIZE = 24;
+    static final int FOOTER_MAGIC = 0x4b565333;
+    static final int FOOTER_MAGIC_V2 = 0x4b565332;
+    static final int FLAG_SORTED = 1;
+    static final int BLOCK_SIZE = Integer.getInteger("kvs.blockSize", 16 * 1024);
+
+    /**
+     * The position of one record inside a segment. The offset and length
+     * describe the payload only, not the record header. The location of a
+     * DELTA record links to the older version of the row it applies to.
+     */
+    static class Location {
+        final LogSegment segment;
+        final long offset;
+        final int length;
+        final long timestamp;
+        final byte kind;
+        volatile Location previous;
+
+        Location(LogSegment segment, long offset, int length, long timestamp, byte kind) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.kind = kind;
+        }
+
+        // Returns the size of the whole record, including its header.
+        long recordSize() {
+            return HEADER_SIZE + length;
+        }
+    }
+
+    final int id;
+    final Path path;
+    final AtomicLong liveBytes = new AtomicLong();
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long size;
+    private boolean sealed;
+    private boolean sorted;
+    // Latest location of each key appended to this segment; dropped once the
+    // footer has been written.
+    private Map<String, Location> entries;
+    // Sparse index of a sorted segment: the first key of each block and the
+    // offset of the record that starts the block.
+    private List<String> blockKeys = new ArrayList<>();
+    private List<Long> blockOffsets = new ArrayList<>();
+    private String lastKey;
+    // Read-only mapping of the record data, or null if the segment is read
+    // through the channel.
+    private volatile ByteBuffer mapped;
+
+    private LogSegment(int id, Path path) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        this.channel = file.getChannel();
+    }
+
+    static String fileName(int id) {
+        return String.format("segment-%06d.log", id);
+    }
+
+    // Creates a new, empty segment that is ready for appends.
+    static LogSegment create(Path directory, int id) throws IOException {
+        return createAt(directory.resolve(fileName(id)), id, false);
+    }
+
+    // Creates a new, empty segment at the given path. Rows must be appended to
+    // a sorted segment in key order.
+    static LogSegment createAt(Path path, int id, boolean sorted) throws IOException {
+        LogSegment segment = new LogSegment(id, path);
+        segment.file.setLength(0);
+        segment.entries = new HashMap<>();
+        segment.sorted = sorted;
+        return segment;
+    }
+
+    // Opens an existing segment and reports the location of every key it
+    // contains to the sink, in the order in which they were written. Sealed
+    // segments are loaded from their footer; unsealed ones are scanned record by
+    // record, and a torn record at the end (from a crash) is cut off.
+    static LogSegment open(Path path, int id, BiConsumer<String, Location> sink) throws IOException {
+        LogSegment segment = new LogSegment(id, path);
+        if (!segment.readFooter(sink)) {
+            segment.entries = new HashMap<>();
+            segment.recover(sink);
+        }
+        return segment;
+    }
+
+    private boolean readFooter(BiConsumer<String, Location> sink) throws IOException {
+        long fileLength = channel.size();
+        if (fileLength < TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = readFully(fileLength - TRAILER_SIZE, TRAILER_SIZE);
+        long footerOffset = trailer.getLong();
+        int entryCount = trailer.getInt();
+        int blockCount = trailer.getInt();
+        int flags = trailer.getInt();
+        int magic = trailer.getInt();
+        if ((magic != FOOTER_MAGIC && magic != FOOTER_MAGIC_V2) || footerOffset < 0
+                || footerOffset > fileLength - TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer footer = readFully(footerOffset, (int) (fileLength - TRAILER_SIZE - footerOffset));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer.array()));
+        for (int i = 0; i < entryCount; i++) {
+            String key = in.readUTF();
+            long offset = in.readLong();
+            int length = in.readInt();
+            long timestamp = in.readLong();
+            byte kind = magic == FOOTER_MAGIC ? in.readByte() : PUT;
+            sink.accept(key, new Location(this, offset, length, timestamp, kind));
+        }
+        for (int i = 0; i < blockCount; i++) {
+            blockKeys.add(in.readUTF());
+            blockOffsets.add(in.readLong());
+        }
+        size = footerOffset;
+        sealed = true;
+        sorted = (flags & FLAG_SORTED) != 0;
+        return true;
+    }
+
+    /**
+     * Reads the records of a segment one after another, starting at a record
+     * boundary. next() returns false at the end of the data or at the first
+     * record that is incomplete or has a bad checksum.
+     *
+     * A reader that does not read payloads only looks at the start of each
+     * binary row to find its key and skips the rest, without checking the
+     * checksum; payload is then null and the row can be read with payload()
+     * or sent straight from channel().
+     */
+    class RecordReader implements Closeable {
+        private static final int KEY_PREFIX_SIZE = 256;
+
+        private final FileChannel readChannel;
+        private final DataInputStream in;
+        private final long limit;
+        private final boolean readPayloads;
+        private final byte[] prefix = new byte[KEY_PREFIX_SIZE];
+        private long position;
+        String key;
+        Location location;
+        byte[] payload;
+
+        RecordReader(long start, long limit) throws IOException {
+            this(start, limit, true);
+        }
+
+        RecordReader(long start, long limit, boolean readPayloads) throws IOException {
+            this.readChannel = FileChannel.open(path, StandardOpenOption.READ);
+            readChannel.position(start);
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(readChannel), 65536));
+            this.position = start;
+            this.limit = limit;
+            this.readPayloads = readPayloads;
+        }
+
+        boolean next() throws IOException {
+            if (position + HEADER_SIZE > limit) {
+                return false;
+            }
+            int crc = in.readInt();
+            long timestamp = in.readLong();
+            byte kind = in.readByte();
+            int length = in.readInt();
+            if (length < 0 || position + HEADER_SIZE + length > limit) {
+                return false;
+            }
+            if (!readPayloads && skipPayload(length)) {
+                payload = null;
+            } else {
+                byte[] bytes = new byte[length];
+                int read = readPayloads ? 0 : Math.min(length, KEY_PREFIX_SIZE);
+                System.arraycopy(prefix, 0, bytes, 0, read);
+                in.readFully(bytes, read, length - read);
+                if (readPayloads && crc != checksum(timestamp, kind, bytes)) {
+                    return false;
+                }
+                payload = bytes;
+                key = Row.keyOf(bytes);
+            }
+            location = new Location(LogSegment.this, position + HEADER_SIZE, length, timestamp, kind);
+            position += HEADER_SIZE + length;
+            return true;
+        }
+
+        // Reads the start of a payload and skips the rest if the key is in
+        // it. Returns false, with the prefix consumed, if the whole payload is
+        // needed to find the key.
+        private boolean skipPayload(int length) throws IOException {
+            int read = Math.min(length, KEY_PREFIX_SIZE);
+            in.readFully(prefix, 0, read);
+            String prefixKey = Row.binaryKeyOf(prefix, read);
+            if (prefixKey == null) {
+                return false;
+            }
+            int remaining = length - read;
+            while (remaining > 0) {
+                int skipped = in.skipBytes(remaining);
+                if (skipped <= 0) {
+                    throw new EOFException("Unexpected end of segment " + path);
+                }
+                remaining -= skipped;
+            }
+            key = prefixKey;
+            return true;
+        }
+
+        // Returns the payload of the current record, reading it from the file
+        // if it was skipped.
+        byte[] payload() throws IOException {
+            return payload != null ? payload : readPayload(location);
+        }
+
+        // The reader's own channel, on which the current record stays valid
+        // until the reader is closed.
+        FileChannel channel() {
+            return readChannel;
+        }
+
+        // Returns the position just after the last record that was read.
+        long position() {
+            return position;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Receives the records of a segment, in file order, from scanRecords().
+     */
+    interface RecordVisitor {
+        void visit(String key, Location location, byte[] payload) throws IOException;
+    }
+
+    // Reads all records of the segment up to the given position and stops
+    // early at the first bad record. Returns the position just after the last
+    // good record.
+    long scanRecords(long limit, RecordVisitor visitor) throws IOException {
+        try (RecordReader reader = new RecordReader(0, limit)) {
+            while (reader.next()) {
+                visitor.visit(reader.key, reader.location, reader.payload);
+            }
+            return reader.position();
+        }
+    }
+
+    // Opens a reader positioned at the first block that may contain keys at
+    // or after startRow. For segments without a sparse index, reading starts
+    // at the beginning of the file.
+    RecordReader readerFrom(String startRow) throws IOException {
+        return readerFrom(startRow, true);
+    }
+
+    RecordReader readerFrom(String startRow, boolean readPayloads) throws IOException {
+        long start = 0;
+        if (startRow != null && !blockKeys.isEmpty()) {
+            int block = Collections.binarySearch(blockKeys, startRow);
+            if (block < 0) {
+                block = Math.max(0, -block - 2);
+            }
+            start = blockOffsets.get(block);
+        }
+        return new RecordReader(start, size(), readPayloads);
+    }
+
+    private void recover(BiConsumer<String, Location> sink) throws IOException {
+        long fileLength = channel.size();
+        long position = scanRecords(fileLength, (key, location, payload) -> {
+            entries.put(key, location);
+            sink.accept(key, location);
+        });
+
+        if (position < fileLength) {
+            System.out.println("Truncating " + (fileLength - position) + " bytes of incomplete records from " + path);
+            channel.truncate(position);
+        }
+        size = position;
+    }
+
+    // Appends a record to the end of the segment and returns its location.
+    synchronized Location append(String key, byte[] payload, long timestamp, byte kind) throws IOException {
+        if (sealed) {
+            throw new IOException("Segment " + path + " is sealed");
+        }
+        if (sorted) {
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new IOException("Key " + key + " appended out of order to sorted segment " + path);
+            }
+            if (blockOffsets.isEmpty() || size - blockOffsets.get(blockOffsets.size() - 1) >= BLOCK_SIZE) {
+                blockKeys.add(key);
+                blockOffsets.add(size);
+            }
+            lastKey = key;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(checksum(timestamp, kind, payload));
+        record.putLong(timestamp);
+        record.put(kind);
+        record.putInt(payload.length);
+        record.put(payload);
+        record.flip();
+        writeFully(record, size);
+
+        Location location = new Location(this, size + HEADER_SIZE, payload.length, timestamp, kind);
+        size += record.limit();
+        entries.put(key, location);
+        return location;
+    }
+
+    // Writes the footer, after which the segment no longer accepts appends.
+    synchronized void seal() throws IOException {
+        if (sealed) {
+            return;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        for (Map.Entry<String, Location> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().offset);
+            out.writeInt(entry.getValue().length);
+            out.writeLong(entry.getValue().timestamp);
+            out.writeByte(entry.getValue().kind);
+        }
+        for (int i = 0; i < blockKeys.size(); i++) {
+            out.writeUTF(blockKeys.get(i));
+            out.writeLong(blockOffsets.get(i));
+        }
+        out.writeLong(size);
+        out.writeInt(entries.size());
+        out.writeInt(blockKeys.size());
+        out.writeInt(sorted ? FLAG_SORTED : 0);
+        out.writeInt(FOOTER_MAGIC);
+        out.flush();
+
+        writeFully(ByteBuffer.wrap(baos.toByteArray()), size);
+        channel.force(true);
+        sealed = true;
+        entries = null;
+    }
+
+    // Maps the record data of a sealed segment into memory. Segments that are
+    // too large for a single mapping keep being read through the channel.
+    synchronized void map() throws IOException {
+        if (sealed && mapped == null && size <= Integer.MAX_VALUE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    // Drops the mapping; it is released once the garbage collector finds it
+    // unreachable.
+    void unmap() {
+        mapped = null;
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    // Reads the row stored at the given location.
+    Row readRow(Location location) throws IOException {
+        ByteBuffer map = mapped;
+        try {
+            if (map != null) {
+                return Row.readFrom(map.slice((int) location.offset, location.length));
+            }
+            return Row.readFrom(file, location.offset, location.length);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Corrupt row in " + path + " at offset " + location.offset, e);
+        }
+    }
+
+    // Reads the serialized row stored at the given location.
+    byte[] readPayload(Location location) throws IOException {
+        ByteBuffer map = mapped;
+        if (map != null) {
+            byte[] payload = new byte[location.length];
+            map.get((int) location.offset, payload);
+            return payload;
+        }
+        return readFully(location.offset, location.length).array();
+    }
+
+    // Returns the size of the file, including the footer.
+    long fileSize() throws IOException {
+        return channel.size();
+    }
+
+    // Returns the number of bytes of record data, excluding the footer.
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized boolean isSealed() {
+        return sealed;
+    }
+
+    // Checks whether this segment is an SSTable, i.e. its records are in key
+    // order.
+    synchronized boolean isSorted() {
+        return sorted;
+    }
+
+    // Closes the file. A mapping stays readable, for readers that still hold
+    // a location in this segment.
+    void close() throws IOException {
+        file.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of segment " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    static int checksum(long timestamp, byte kind, byte[] payload) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.putLong(timestamp);
+        header.put(kind);
+        crc.update(header.array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+}
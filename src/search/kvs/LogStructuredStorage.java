@@ -0,0 +1,1270 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A log-structured storage engine for persistent tables. New rows go into a
+ * memtable, a sorted in-memory map that is backed by a write-ahead log, so a
+ * put costs one sequential append. When the memtable reaches MEMTABLE_SIZE it
+ * is flushed to an immutable SSTable, and a sorted in-memory index maps every
+ * flushed row key to the segment and offset of its latest version. Older
+ * versions of a row stay in their segments as dead records until the
+ * Compactor rewrites the segment; the Compactor also merges small SSTables
+ * and sorts unsorted segments left behind by older versions of the engine.
+ *
+ * putColumns() writes a DELTA record with only the changed columns, so that
+ * adding a small column to a large row does not rewrite the row. If the
+ * latest version of a row is a DELTA, its index entry links to the older
+ * versions it applies to, back to the newest full version; reads apply the
+ * chain oldest first, and compaction replaces the chain with a single PUT.
+ *
+ * deleteAll() writes a DELETE record, a tombstone that hides the older
+ * versions of a row until compaction drops them. A compaction that rewrites
+ * every segment also drops the tombstones, since there is nothing left for
+ * them to hide. The Reaper deletes expired rows the same way, with a variant
+ * of deleteAll() that skips rows written again since they expired.
+ *
+ * Readers can open a snapshot and read the table as of it while writers go
+ * on; the versions they need are kept in an UndoLog for as long as the
+ * snapshot is open.
+ *
+ * On startup the index is rebuilt from the footers of the sealed segments,
+ * and the rows in the write-ahead logs are replayed and flushed. Tables that
+ * still use the old one-file-per-row layout are imported on first open.
+ *
+ * Each table keeps a BloomFilter of its row keys, which lets exists() turn
+ * away most absent keys without a lookup and can be shipped to clients.
+ *
+ * Rows read through the index are kept in a RowCache that is shared by all
+ * tables; a row is invalidated when the memtable that holds a newer version of
+ * it is flushed.
+ *
+ * Read-mostly tables can be configured to memory-map their segments (see
+ * TableConfig.mapped()), so that a lookup in the index is followed by a
+ * read from the mapping rather than a read from the file.
+ */
+public class LogStructuredStorage implements StorageEngine {
+    static final long SEGMENT_SIZE = Long.getLong("kvs.segmentSize", 64L * 1024 * 1024);
+    static final long MEMTABLE_SIZE = Long.getLong("kvs.memtableSize", 16L * 1024 * 1024);
+    static final double GARBAGE_RATIO = Double.parseDouble(System.getProperty("kvs.compactionGarbageRatio", "0.5"));
+    static final double BLOOM_FALSE_POSITIVE_RATE = Double
+            .parseDouble(System.getProperty("kvs.bloomFalsePositiveRate", "0.01"));
+    private static final String COMPACTION_SUFFIX = ".compact";
+    private static final String FLUSH_SUFFIX = ".flush";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final Pattern WAL_NAME = Pattern.compile("wal-(\\d+)\\.log");
+
+    private final Path directory;
+    private final TableConfig config;
+    private final RowCache cache;
+    private final int cacheId;
+    private final ConcurrentSkipListMap<String, LogSegment.Location> index = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Integer, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final Object compactionLock = new Object();
+    private final Object flushLock = new Object();
+    private volatile Memtable memtable;
+    // Memtables that are waiting to be flushed, newest first.
+    private final List<Memtable> immutables = new CopyOnWriteArrayList<>();
+    private int nextLogId;
+    private long lastTimestamp;
+    private volatile boolean closed;
+    // Null while the table is being loaded.
+    private volatile BloomFilter filter;
+    // Number of distinct rows; counted once on load, and then incremented by
+    // every write of a row that did not exist yet.
+    private final AtomicInteger rowCount = new AtomicInteger();
+    private final UndoLog undoLog = new UndoLog();
+
+    public LogStructuredStorage(Path directory) throws IOException {
+        this(directory, null);
+    }
+
+    // Opens a table whose rows are cached in the given cache, which may be
+    // null.
+    public LogStructuredStorage(Path directory, RowCache cache) throws IOException {
+        this.directory = directory;
+        this.cache = cache;
+        this.cacheId = RowCache.newTableId();
+        Files.createDirectories(directory);
+        this.config = TableConfig.load(directory);
+        load();
+        rowCount.set(countKeys());
+        importLegacyRows();
+        synchronized (this) {
+            filter = buildFilter();
+        }
+    }
+
+    // Opens all segments, rebuilds the index, and flushes the rows that were
+    // still in the write-ahead logs when the worker stopped.
+    private void load() throws IOException {
+        TreeMap<Integer, Path> found = new TreeMap<>();
+        TreeMap<Integer, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                Matcher segment = SEGMENT_NAME.matcher(name);
+                Matcher log = WAL_NAME.matcher(name);
+                if (name.endsWith(COMPACTION_SUFFIX) || name.endsWith(FLUSH_SUFFIX)) {
+                    // Output of a compaction or flush that did not finish.
+                    Files.delete(file);
+                } else if (segment.matches()) {
+                    found.put(Integer.parseInt(segment.group(1)), file);
+                } else if (log.matches()) {
+                    logs.put(Integer.parseInt(log.group(1)), file);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Path> entry : found.entrySet()) {
+            LogSegment segment = LogSegment.open(entry.getValue(), entry.getKey(), this::loadIndex);
+            segments.put(segment.id, segment);
+            if (!segment.isSealed()) {
+                // The active segment of an older version of the engine, which
+                // appended rows directly to the log.
+                segment.seal();
+            }
+            mapIfEnabled(segment);
+        }
+        for (LogSegment.Location head : index.values()) {
+            for (LogSegment.Location location = head; location != null; location = location.previous) {
+                location.segment.liveBytes.addAndGet(location.recordSize());
+                if (location.kind != LogSegment.DELTA) {
+                    // Everything before the newest full version or tombstone
+                    // is dead.
+                    location.previous = null;
+                }
+            }
+        }
+
+        Memtable recovered = new Memtable(null);
+        for (Map.Entry<Integer, Path> entry : logs.entrySet()) {
+            LogSegment log = LogSegment.open(entry.getValue(), entry.getKey(), (key, location) -> {
+            });
+            log.scanRecords(log.size(), (key, location, payload) -> {
+                lastTimestamp = Math.max(lastTimestamp, location.timestamp);
+                recovered.put(key, payload, location.timestamp, location.kind);
+            });
+            log.close();
+        }
+        if (!recovered.isEmpty()) {
+            System.out.println("Recovered " + recovered.rows.size() + " rows of " + directory + " from the log");
+            immutables.add(recovered);
+            flush(recovered);
+        }
+        for (Path log : logs.values()) {
+            Files.delete(log);
+        }
+
+        nextLogId = logs.isEmpty() ? 1 : logs.lastKey() + 1;
+        memtable = new Memtable(new WriteAheadLog(directory, nextLogId++));
+    }
+
+    // Rows written by the previous storage layout live in files named after
+    // their encoded key. They are added to the table and then removed.
+    private void importLegacyRows() throws IOException {
+        List<Path> legacy = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Files.isRegularFile(file) && !SEGMENT_NAME.matcher(name).matches()
+                        && !WAL_NAME.matcher(name).matches() && !name.startsWith(TableConfig.FILE_NAME)
+                        && !name.startsWith(Expiries.FILE_NAME)) {
+                    legacy.add(file);
+                }
+            }
+        }
+        if (legacy.isEmpty()) {
+            return;
+        }
+
+        System.out.println("Importing " + legacy.size() + " rows of " + directory + " into the log");
+        for (Path file : legacy) {
+            try (InputStream in = Files.newInputStream(file)) {
+                Row row = Row.readFrom(in);
+                if (row != null) {
+                    put(row);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                continue;
+            }
+            Files.delete(file);
+        }
+    }
+
+    // Adds a location found while loading the segments to the index. Since
+    // segments are not necessarily loaded in the order in which their rows
+    // were written, the location is inserted into the row's chain of versions
+    // by timestamp; load() then cuts the chains off after the newest PUT.
+    private void loadIndex(String key, LogSegment.Location location) {
+        lastTimestamp = Math.max(lastTimestamp, location.timestamp);
+        LogSegment.Location head = index.get(key);
+        if (head == null || head.timestamp < location.timestamp) {
+            location.previous = head;
+            index.put(key, location);
+            return;
+        }
+        LogSegment.Location next = head;
+        while (next.previous != null && next.previous.timestamp > location.timestamp) {
+            next = next.previous;
+        }
+        location.previous = next.previous;
+        next.previous = location;
+    }
+
+    // Makes a newly written record the latest version of its row. A PUT or a
+    // DELETE replaces the whole chain of older versions, a DELTA is added to
+    // it.
+    private void updateIndex(String key, LogSegment.Location location) {
+        location.segment.liveBytes.addAndGet(location.recordSize());
+        LogSegment.Location[] replaced = new LogSegment.Location[1];
+        index.compute(key, (k, head) -> {
+            location.previous = location.kind == LogSegment.DELTA ? head : null;
+            replaced[0] = location.kind == LogSegment.DELTA ? null : head;
+            return location;
+        });
+        for (LogSegment.Location old = replaced[0]; old != null; old = old.previous) {
+            old.segment.liveBytes.addAndGet(-old.recordSize());
+        }
+    }
+
+    @Override
+    public void put(Row row) throws IOException {
+        write(List.of(row), LogSegment.PUT);
+    }
+
+    @Override
+    public void putAll(List<Row> rows) throws IOException {
+        write(rows, LogSegment.PUT);
+    }
+
+    @Override
+    public void putColumns(Row columns) throws IOException {
+        write(List.of(columns), LogSegment.DELTA);
+    }
+
+    @Override
+    public void putColumnsAll(List<Row> columns) throws IOException {
+        write(columns, LogSegment.DELTA);
+    }
+
+    @Override
+    public void deleteAll(List<String> keys) throws IOException {
+        List<Row> tombstones = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            tombstones.add(new Row(key));
+        }
+        write(tombstones, LogSegment.DELETE);
+    }
+
+    @Override
+    public int deleteAll(List<String> keys, long writtenBefore) throws IOException {
+        List<Row> tombstones = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            tombstones.add(new Row(key));
+        }
+        return write(tombstones, LogSegment.DELETE, writtenBefore);
+    }
+
+    @Override
+    public List<String> writtenBefore(long timestamp) {
+        Set<String> keys = new LinkedHashSet<>(memtable.rows.keySet());
+        for (Memtable frozen : immutables) {
+            keys.addAll(frozen.rows.keySet());
+        }
+        keys.addAll(index.keySet());
+        List<String> written = new ArrayList<>();
+        for (String key : keys) {
+            long writtenAt = writtenAt(key);
+            if (writtenAt >= 0 && writtenAt < timestamp) {
+                written.add(key);
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public synchronized long lastWriteTime() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Adds a record for each row to the memtable and its write-ahead log.
+     * Depending on the durability of the table, the call then waits until the
+     * log has been written or fsync'd; concurrent writers share a single
+     * write, and so do the rows of one call. The writer that fills up the
+     * memtable also flushes it, while the other writers carry on with a fresh
+     * one.
+     */
+    private void write(List<Row> rows, byte kind) throws IOException {
+        write(rows, kind, Long.MAX_VALUE);
+    }
+
+    // Like write(), but tombstones are only written for rows whose latest
+    // version is older than writtenBefore. Returns the number of records
+    // written.
+    private int write(List<Row> rows, byte kind, long writtenBefore) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            payloads.add(row.toBinary());
+        }
+        TableConfig.Durability durability = config.durability();
+        // The end of the last record written to each memtable's log.
+        Map<Memtable, Long> positions = new LinkedHashMap<>();
+        List<Memtable> full = new ArrayList<>();
+        int written = 0;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Table " + directory + " is closed");
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                String key = rows.get(i).key();
+                byte[] payload = payloads.get(i);
+                byte rowKind = kind;
+                boolean existed = true;
+                if (kind == LogSegment.DELETE) {
+                    long writtenAt = writtenAt(key);
+                    if (writtenAt < 0 || writtenAt >= writtenBefore) {
+                        continue;
+                    }
+                    rowCount.decrementAndGet();
+                } else if (!contains(key)) {
+                    rowCount.incrementAndGet();
+                    // There is nothing to apply the columns to.
+                    rowKind = LogSegment.PUT;
+                    existed = false;
+                }
+                long timestamp = nextTimestamp();
+                if (undoLog.recording()) {
+                    // Before the memtable has the write; see UndoLog.
+                    undoLog.record(key, timestamp, existed ? get(key) : null, rows.get(i), rowKind);
+                }
+                if (filter != null) {
+                    // The rebuilt filter does not have this key yet, since
+                    // it is not in the memtable yet.
+                    if (filter.isFull()) {
+                        filter = buildFilter();
+                    }
+                    filter.add(key);
+                }
+                Memtable target = memtable;
+                long position = 0;
+                if (durability != TableConfig.Durability.NONE) {
+                    position = target.log.append(payload, timestamp, rowKind);
+                }
+                target.put(key, payload, timestamp, rowKind);
+                positions.put(target, position);
+                written++;
+                if (target.size() >= MEMTABLE_SIZE) {
+                    full.add(target);
+                    immutables.add(0, target);
+                    memtable = new Memtable(new WriteAheadLog(directory, nextLogId++));
+                }
+            }
+        }
+
+        if (durability != TableConfig.Durability.NONE) {
+            for (Map.Entry<Memtable, Long> entry : positions.entrySet()) {
+                entry.getKey().log.commit(entry.getValue(), durability == TableConfig.Durability.SYNC);
+            }
+        }
+        for (Memtable frozen : full) {
+            flush(frozen);
+        }
+        return written;
+    }
+
+    // Checks whether the row exists, i.e. whether its latest version is not a
+    // tombstone.
+    private boolean contains(String key) {
+        BloomFilter current = filter;
+        if (current != null && !current.mightContain(key)) {
+            return false;
+        }
+        return writtenAt(key) >= 0;
+    }
+
+    // Returns the timestamp of the latest version of a row, or -1 if the row
+    // does not exist. The memtables are checked before the index, because a
+    // flush adds a row to the index before it drops the memtable that held it.
+    private long writtenAt(String key) {
+        Memtable.Entry entry = memtable.get(key);
+        if (entry != null) {
+            return entry.kind == LogSegment.DELETE ? -1 : entry.timestamp;
+        }
+        for (Memtable frozen : immutables) {
+            entry = frozen.get(key);
+            if (entry != null) {
+                return entry.kind == LogSegment.DELETE ? -1 : entry.timestamp;
+            }
+        }
+        LogSegment.Location head = index.get(key);
+        return head == null || head.kind == LogSegment.DELETE ? -1 : head.timestamp;
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return contains(key);
+    }
+
+    @Override
+    public BloomFilter bloomFilter() {
+        return filter;
+    }
+
+    // Builds a Bloom filter with room for twice the rows the table has now.
+    // Called while holding the lock on this table, so that no writes are
+    // missed; the memtables are read before the index for the same reason as
+    // in writtenAt().
+    private BloomFilter buildFilter() {
+        List<String> keys = new ArrayList<>(memtable.rows.keySet());
+        for (Memtable frozen : immutables) {
+            keys.addAll(frozen.rows.keySet());
+        }
+        keys.addAll(index.keySet());
+        BloomFilter built = BloomFilter.create(2 * keys.size(), BLOOM_FALSE_POSITIVE_RATE);
+        for (String key : keys) {
+            built.add(key);
+        }
+        return built;
+    }
+
+    // Returns the timestamp for the next record. Timestamps are the wall clock
+    // time, but strictly increasing within a table, so that the newest
+    // version of a row is always the one with the largest timestamp.
+    private long nextTimestamp() {
+        lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+        return lastTimestamp;
+    }
+
+    // Flushes the given memtable, and any older ones that are still waiting,
+    // oldest first so that the index always ends up at the newest version.
+    private void flush(Memtable frozen) throws IOException {
+        synchronized (flushLock) {
+            while (immutables.contains(frozen)) {
+                writeSSTable(immutables.get(immutables.size() - 1));
+            }
+        }
+    }
+
+    // Writes a frozen memtable to a new SSTable, points the index at it, and
+    // then drops the memtable and deletes its log. Called with flushLock held.
+    private void writeSSTable(Memtable frozen) throws IOException {
+        if (!frozen.isEmpty()) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            Path path = directory.resolve(LogSegment.fileName(id));
+            Path temporaryPath = directory.resolve(LogSegment.fileName(id) + FLUSH_SUFFIX);
+            LogSegment output = LogSegment.createAt(temporaryPath, id, true);
+            try {
+                for (Map.Entry<String, Memtable.Entry> entry : frozen.rows.entrySet()) {
+                    Memtable.Entry row = entry.getValue();
+                    output.append(entry.getKey(), row.payload, row.timestamp, row.kind);
+                }
+                output.seal();
+                output.close();
+            } catch (IOException e) {
+                output.delete();
+                throw e;
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE);
+            segments.put(id, mapIfEnabled(LogSegment.open(path, id, this::updateIndex)));
+            if (cache != null) {
+                for (String key : frozen.rows.keySet()) {
+                    cache.invalidate(new RowCache.Key(cacheId, key));
+                }
+            }
+        }
+        immutables.remove(frozen);
+        if (frozen.log != null) {
+            frozen.log.delete();
+        }
+    }
+
+    // Looks the row up in the memtables, newest first, and then in the index.
+    // DELTAs found on the way are applied to the first full version, or to an
+    // empty row if a tombstone comes first.
+    @Override
+    public Row get(String key) throws IOException {
+        Deque<Row> deltas = new ArrayDeque<>();
+        List<Memtable> memtables = new ArrayList<>();
+        memtables.add(memtable);
+        memtables.addAll(immutables);
+        Row row = null;
+        boolean found = false;
+        for (Memtable candidate : memtables) {
+            Memtable.Entry entry = candidate.get(key);
+            if (entry != null && entry.kind == LogSegment.DELETE) {
+                found = true;
+                break;
+            } else if (entry != null && entry.kind == LogSegment.PUT) {
+                row = entry.row();
+                found = true;
+                break;
+            } else if (entry != null) {
+                deltas.push(entry.row());
+            }
+        }
+        if (!found) {
+            row = readStored(key);
+        }
+        while (!deltas.isEmpty()) {
+            row = applyDelta(row, deltas.pop());
+        }
+        return row;
+    }
+
+    // Applies the columns of a DELTA to an older version of a row.
+    private static Row applyDelta(Row base, Row delta) {
+        if (base == null) {
+            return delta;
+        }
+        base.putAll(delta);
+        return base;
+    }
+
+    // Reads the version of a row that is in the segments, from the cache if
+    // possible.
+    private Row readStored(String key) throws IOException {
+        if (cache == null) {
+            LogSegment.Location location = index.get(key);
+            return location == null ? null : read(key, location);
+        }
+        RowCache.Key cacheKey = new RowCache.Key(cacheId, key);
+        Row row = cache.get(cacheKey);
+        if (row != null) {
+            return row;
+        }
+        long stamp = cache.stamp(cacheKey);
+        LogSegment.Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        row = read(key, location);
+        if (row != null) {
+            cache.put(cacheKey, row, stamp);
+        }
+        return row;
+    }
+
+    // Reads a row from the location the index had for it.
+    private Row read(String key, LogSegment.Location location) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return readChain(location);
+            } catch (ClosedChannelException e) {
+                // A segment was compacted away while we were reading it; if so,
+                // the index already leads to the row's new location.
+                LogSegment.Location current = index.get(key);
+                if (closed || current == null || attempt >= 3) {
+                    throw e;
+                }
+                location = current;
+            }
+        }
+    }
+
+    // Reads the full version at the end of a chain and applies the DELTAs in
+    // front of it.
+    private static Row readChain(LogSegment.Location head) throws IOException {
+        Deque<LogSegment.Location> deltas = new ArrayDeque<>();
+        LogSegment.Location location = head;
+        while (location != null && location.kind == LogSegment.DELTA) {
+            deltas.push(location);
+            location = location.previous;
+        }
+        Row row = location == null || location.kind == LogSegment.DELETE ? null
+                : location.segment.readRow(location);
+        while (!deltas.isEmpty()) {
+            LogSegment.Location delta = deltas.pop();
+            row = applyDelta(row, delta.segment.readRow(delta));
+        }
+        return row;
+    }
+
+    /**
+     * Scans a key range by merging the memtables and the SSTables, each read
+     * sequentially from the block that contains startRow up to
+     * endRowExclusive, with the rows that are only in unsorted log segments,
+     * which are looked up in the index. Where a key appears in more than one
+     * place, the version with the largest timestamp wins, after applying the
+     * DELTAs that are newer than it. Rows are returned in key order and read
+     * lazily.
+     */
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) throws IOException {
+        Iterator<StoredRow> rows = merge(startRow, endRowExclusive, true);
+        return new Iterator<Row>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public Row next() {
+                try {
+                    StoredRow stored = rows.next();
+                    return stored == null ? null : stored.row();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    // Like scan(), but rows that are stored in an SSTable and need no DELTAs
+    // applied are returned as regions of the file, without being read into
+    // memory.
+    @Override
+    public Iterator<StoredRow> scanStored(String startRow, String endRowExclusive) throws IOException {
+        return merge(startRow, endRowExclusive, false);
+    }
+
+    @Override
+    public synchronized long openSnapshot() {
+        long snapshot = nextTimestamp();
+        undoLog.open(snapshot, System.currentTimeMillis());
+        return snapshot;
+    }
+
+    @Override
+    public synchronized boolean releaseSnapshot(long snapshot) {
+        boolean released = undoLog.release(snapshot);
+        undoLog.prune();
+        return released;
+    }
+
+    @Override
+    public synchronized int expireSnapshots(long now) {
+        int expired = undoLog.expire(now);
+        if (expired > 0) {
+            undoLog.prune();
+        }
+        return expired;
+    }
+
+    /**
+     * Reads a row as of a snapshot: the latest version, with the writes
+     * since the snapshot undone. A writer adds its undo record before it
+     * applies the write, so if the row has as many undo records after the
+     * read as before, the version that was read is the one the records
+     * apply to, or the one just before a write that is being applied, to
+     * which undoing that write changes nothing. Otherwise the row is read
+     * again.
+     */
+    @Override
+    public Row get(String key, long snapshot) throws IOException {
+        undoLog.check(snapshot);
+        while (true) {
+            UndoLog.Chain chain = undoLog.chain(key);
+            long appended = chain == null ? 0 : chain.appended();
+            Row row = get(key);
+            if (undoLog.chain(key) == chain && (chain == null || chain.appended() == appended)) {
+                row = chain == null ? row : chain.undo(key, row, snapshot);
+                // The records were only complete if the snapshot was still
+                // open at the end.
+                undoLog.check(snapshot);
+                return row;
+            }
+        }
+    }
+
+    /**
+     * Scans a key range as of a snapshot. The rows of a regular scan that
+     * have not been written since the snapshot are returned as they are;
+     * the others, and the rows that were deleted since, which are only
+     * found in the UndoLog, are read with get(String, long). The UndoLog is
+     * consulted after the scan has moved past a key, so that a row deleted
+     * in between is not missed. The iterator throws an UncheckedIOException
+     * with a SnapshotTooOldException if the snapshot goes away during the
+     * scan.
+     */
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive, long snapshot) throws IOException {
+        undoLog.check(snapshot);
+        Iterator<Row> latest = scan(startRow, endRowExclusive);
+        return new Iterator<Row>() {
+            private Row pending;
+            private String last;
+            private Row next = advance();
+
+            private Row advance() {
+                try {
+                    while (true) {
+                        if (pending == null && latest.hasNext()) {
+                            pending = latest.next();
+                        }
+                        String changed = undoLog.nextKey(last, startRow, endRowExclusive);
+                        if (pending == null && changed == null) {
+                            return null;
+                        }
+                        Row row;
+                        if (pending != null && (changed == null || pending.key().compareTo(changed) <= 0)) {
+                            row = pending;
+                            pending = null;
+                            last = row.key();
+                            UndoLog.Chain chain = undoLog.chain(last);
+                            if (chain != null && chain.newest() > snapshot) {
+                                row = get(last, snapshot);
+                            } else {
+                                undoLog.check(snapshot);
+                            }
+                        } else {
+                            last = changed;
+                            row = get(last, snapshot);
+                        }
+                        if (row != null) {
+                            return row;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Row next() {
+                Row row = next;
+                next = advance();
+                return row;
+            }
+        };
+    }
+
+    private MergingIterator merge(String startRow, String endRowExclusive, boolean readPayloads) throws IOException {
+        List<ScanSource> sources = new ArrayList<>();
+        sources.add(new MemtableSource(memtable, startRow, endRowExclusive));
+        for (Memtable frozen : immutables) {
+            sources.add(new MemtableSource(frozen, startRow, endRowExclusive));
+        }
+        Set<LogSegment> sstables = new HashSet<>();
+        for (LogSegment segment : segments.values()) {
+            if (segment.isSorted()) {
+                sstables.add(segment);
+                sources.add(new SegmentSource(segment, startRow, endRowExclusive, readPayloads));
+            }
+        }
+        sources.add(new IndexSource(sstables, startRow, endRowExclusive));
+        return new MergingIterator(sources);
+    }
+
+    /**
+     * One input of a range scan: a sequence of rows in key order. key() is null
+     * once the source is exhausted.
+     */
+    private interface ScanSource {
+        String key();
+
+        long timestamp();
+
+        byte kind();
+
+        StoredRow stored() throws IOException;
+
+        void advance() throws IOException;
+    }
+
+    // Iterates over the rows of a memtable.
+    private static class MemtableSource implements ScanSource {
+        private final Iterator<Map.Entry<String, Memtable.Entry>> entries;
+        private Map.Entry<String, Memtable.Entry> current;
+
+        MemtableSource(Memtable memtable, String startRow, String endRowExclusive) {
+            NavigableMap<String, Memtable.Entry> range = memtable.rows;
+            if (startRow != null) {
+                range = range.tailMap(startRow, true);
+            }
+            if (endRowExclusive != null) {
+                range = range.headMap(endRowExclusive, false);
+            }
+            this.entries = range.entrySet().iterator();
+            advance();
+        }
+
+        public String key() {
+            return current == null ? null : current.getKey();
+        }
+
+        public long timestamp() {
+            return current.getValue().timestamp;
+        }
+
+        public byte kind() {
+            return current.getValue().kind;
+        }
+
+        public StoredRow stored() {
+            return StoredRow.of(current.getKey(), current.getValue().payload);
+        }
+
+        public void advance() {
+            current = entries.hasNext() ? entries.next() : null;
+        }
+    }
+
+    // Reads the records of an SSTable sequentially. Unless readPayloads is
+    // set, rows are returned as regions of the file.
+    private static class SegmentSource implements ScanSource {
+        private final LogSegment.RecordReader reader;
+        private final String startRow;
+        private final String endRowExclusive;
+        private String key;
+
+        SegmentSource(LogSegment segment, String startRow, String endRowExclusive, boolean readPayloads)
+                throws IOException {
+            this.reader = segment.readerFrom(startRow, readPayloads);
+            this.startRow = startRow;
+            this.endRowExclusive = endRowExclusive;
+            advance();
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public long timestamp() {
+            return reader.location.timestamp;
+        }
+
+        public byte kind() {
+            return reader.location.kind;
+        }
+
+        public StoredRow stored() {
+            if (reader.payload == null) {
+                return StoredRow.of(key, reader.channel(), reader.location.offset, reader.location.length);
+            }
+            return StoredRow.of(key, reader.payload);
+        }
+
+        public void advance() throws IOException {
+            while (reader.next()) {
+                if (startRow != null && reader.key.compareTo(startRow) < 0) {
+                    continue;
+                }
+                if (endRowExclusive == null || reader.key.compareTo(endRowExclusive) < 0) {
+                    key = reader.key;
+                    return;
+                }
+                break;
+            }
+            key = null;
+            reader.close();
+        }
+    }
+
+    // Walks the index in key order and returns the rows whose latest version
+    // is not in one of the SSTables that the scan reads directly.
+    private class IndexSource implements ScanSource {
+        private final Iterator<Map.Entry<String, LogSegment.Location>> entries;
+        private final Set<LogSegment> skip;
+        private String key;
+        private LogSegment.Location location;
+
+        IndexSource(Set<LogSegment> skip, String startRow, String endRowExclusive) {
+            NavigableMap<String, LogSegment.Location> range = index;
+            if (startRow != null) {
+                range = range.tailMap(startRow, true);
+            }
+            if (endRowExclusive != null) {
+                range = range.headMap(endRowExclusive, false);
+            }
+            this.entries = range.entrySet().iterator();
+            this.skip = skip;
+            advance();
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public long timestamp() {
+            return location.timestamp;
+        }
+
+        // Rows from the index are read with their whole chain applied.
+        public byte kind() {
+            return location.kind == LogSegment.DELETE ? LogSegment.DELETE : LogSegment.PUT;
+        }
+
+        public StoredRow stored() throws IOException {
+            return StoredRow.of(read(key, location));
+        }
+
+        public void advance() {
+            while (entries.hasNext()) {
+                Map.Entry<String, LogSegment.Location> entry = entries.next();
+                if (!skip.contains(entry.getValue().segment)) {
+                    key = entry.getKey();
+                    location = entry.getValue();
+                    return;
+                }
+            }
+            key = null;
+        }
+    }
+
+    // Merges the sources by key; for each key only the newest full version is
+    // returned, with the DELTAs that are newer than it applied. Keys whose
+    // newest full version is a tombstone are skipped, unless newer DELTAs
+    // recreated the row. If a DELTA's older versions are in none of the
+    // sources, the row is read through the index instead. The sources that
+    // supplied a row are only advanced on the next call, so that a returned
+    // file region stays valid until then.
+    private class MergingIterator implements Iterator<StoredRow> {
+        private final PriorityQueue<ScanSource> queue = new PriorityQueue<>((a, b) -> {
+            int c = a.key().compareTo(b.key());
+            return c != 0 ? c : Long.compare(b.timestamp(), a.timestamp());
+        });
+
+        private final List<ScanSource> consumed = new ArrayList<>();
+        private StoredRow next;
+
+        MergingIterator(List<ScanSource> sources) {
+            for (ScanSource source : sources) {
+                if (source.key() != null) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null) {
+                advanceConsumed();
+                if (queue.isEmpty()) {
+                    return false;
+                }
+                next = mergeKey();
+            }
+            return true;
+        }
+
+        public StoredRow next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            StoredRow row = next;
+            next = null;
+            return row;
+        }
+
+        // Merges the versions of the smallest key. Returns null if the row
+        // does not exist.
+        private StoredRow mergeKey() {
+            try {
+                String key = queue.peek().key();
+                Deque<Row> deltas = new ArrayDeque<>();
+                StoredRow base = null;
+                boolean deleted = false;
+                do {
+                    ScanSource source = queue.poll();
+                    if (base == null && !deleted && source.kind() == LogSegment.PUT) {
+                        base = source.stored();
+                    } else if (base == null && !deleted && source.kind() == LogSegment.DELETE) {
+                        deleted = true;
+                    } else if (base == null && !deleted) {
+                        deltas.push(source.stored().row());
+                    }
+                    consumed.add(source);
+                } while (!queue.isEmpty() && queue.peek().key().equals(key));
+
+                if (base == null && !deleted) {
+                    Row row = get(key);
+                    return row == null ? null : StoredRow.of(row);
+                }
+                if (deltas.isEmpty()) {
+                    return base;
+                }
+                Row row = base == null ? null : base.row();
+                while (!deltas.isEmpty()) {
+                    row = applyDelta(row, deltas.pop());
+                }
+                return StoredRow.of(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void advanceConsumed() {
+            try {
+                for (ScanSource source : consumed) {
+                    source.advance();
+                    if (source.key() != null) {
+                        queue.add(source);
+                    }
+                }
+                consumed.clear();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public int count() {
+        return rowCount.get();
+    }
+
+    // Counts the keys in the index and the memtables whose latest version is
+    // not a tombstone.
+    private int countKeys() {
+        Set<String> keys = new HashSet<>(index.keySet());
+        keys.addAll(memtable.rows.keySet());
+        for (Memtable frozen : immutables) {
+            keys.addAll(frozen.rows.keySet());
+        }
+        int count = 0;
+        for (String key : keys) {
+            if (contains(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Flushes the memtable and stops compactions. Puts that arrive afterwards
+    // fail; the segments stay open for reading until close().
+    @Override
+    public void closeForWrites() throws IOException {
+        Memtable last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = memtable;
+            immutables.add(0, last);
+        }
+        flush(last);
+    }
+
+    // Flushes the memtable, unless closeForWrites() already did, and closes
+    // all files.
+    @Override
+    public void close() throws IOException {
+        closeForWrites();
+        synchronized (compactionLock) {
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+        }
+    }
+
+    // Picks the sealed segments that are worth compacting: unsorted segments,
+    // which are turned into SSTables, SSTables in which at least GARBAGE_RATIO
+    // of the bytes belong to superseded rows, and SSTables that are less than
+    // half the segment size, which are merged so that scans do not have to
+    // read from too many files. The list is cut off once the live data of the
+    // chosen segments would no longer fit into a single segment.
+    List<LogSegment> compactionCandidates() {
+        List<LogSegment> candidates = new ArrayList<>();
+        long live = 0;
+        for (LogSegment segment : segments.values()) {
+            if (segment.isSealed() && (needsRewrite(segment) || segment.size() < SEGMENT_SIZE / 2)) {
+                long segmentLive = segment.liveBytes.get();
+                if (!candidates.isEmpty() && live + segmentLive > SEGMENT_SIZE) {
+                    break;
+                }
+                candidates.add(segment);
+                live += segmentLive;
+            }
+        }
+        // A single small SSTable has nothing to be merged with.
+        if (candidates.size() == 1 && !needsRewrite(candidates.get(0))) {
+            candidates.clear();
+        }
+        return candidates;
+    }
+
+    // Checks whether a segment is unsorted or mostly garbage.
+    private static boolean needsRewrite(LogSegment segment) {
+        long size = segment.size();
+        return !segment.isSorted() || size == 0 || 1.0 - (double) segment.liveBytes.get() / size >= GARBAGE_RATIO;
+    }
+
+    /**
+     * Rewrites the rows that still have live records in the given sealed
+     * segments, in key order, into one new SSTable and deletes the inputs.
+     * Every row is written as a single PUT with the timestamp of its latest
+     * version, so DELTA chains that reach into the inputs are collapsed.
+     * Tombstones are copied, unless the inputs are all the segments there
+     * are, in which case they are dropped from the index instead. Returns the
+     * number of bytes reclaimed.
+     *
+     * The new segment takes the id of the newest input. It is written under a
+     * temporary name and renamed over that input only once it is complete.
+     * Rows that are overwritten while the compaction runs keep their new
+     * version: a new PUT makes the copy in the output dead, and new DELTAs are
+     * relinked to apply to the copy.
+     *
+     * onBytesRead is called after every record that has been read, which the
+     * caller uses to track progress and to throttle the compaction.
+     */
+    long compact(List<LogSegment> inputs, LongConsumer onBytesRead) throws IOException {
+        synchronized (compactionLock) {
+            if (closed || inputs.isEmpty()) {
+                return 0;
+            }
+            int outputId = inputs.get(inputs.size() - 1).id;
+            Path outputPath = directory.resolve(LogSegment.fileName(outputId));
+            Path temporaryPath = directory.resolve(LogSegment.fileName(outputId) + COMPACTION_SUFFIX);
+            long sizeBefore = 0;
+            boolean dropTombstones = inputs.containsAll(segments.values());
+
+            // Find the rows whose chain of versions still includes a record
+            // of the inputs...
+            TreeSet<String> keys = new TreeSet<>();
+            for (LogSegment input : inputs) {
+                sizeBefore += input.fileSize();
+                input.scanRecords(input.size(), (key, location, payload) -> {
+                    if (closed) {
+                        throw new IOException("Table closed while compacting " + directory);
+                    }
+                    for (LogSegment.Location live = index.get(key); live != null; live = live.previous) {
+                        if (live.segment == input && live.offset == location.offset) {
+                            keys.add(key);
+                            break;
+                        }
+                    }
+                    onBytesRead.accept(location.recordSize());
+                });
+            }
+
+            // ...and write their latest version out in key order.
+            Map<String, LogSegment.Location> copied = new HashMap<>();
+            Map<String, LogSegment.Location> dropped = new HashMap<>();
+            LogSegment output = LogSegment.createAt(temporaryPath, outputId, true);
+            try {
+                for (String key : keys) {
+                    if (closed) {
+                        throw new IOException("Table closed while compacting " + directory);
+                    }
+                    LogSegment.Location head = index.get(key);
+                    if (head.kind == LogSegment.DELETE && dropTombstones) {
+                        dropped.put(key, head);
+                        continue;
+                    }
+                    byte[] payload = head.kind == LogSegment.DELTA ? readChain(head).toBinary()
+                            : head.segment.readPayload(head);
+                    output.append(key, payload, head.timestamp,
+                            head.kind == LogSegment.DELETE ? LogSegment.DELETE : LogSegment.PUT);
+                    copied.put(key, head);
+                    onBytesRead.accept(head.recordSize());
+                }
+                output.seal();
+                output.close();
+            } catch (IOException e) {
+                output.delete();
+                throw e;
+            }
+
+            LogSegment replacement = null;
+            if (copied.isEmpty()) {
+                output.delete();
+            } else {
+                Files.move(temporaryPath, outputPath, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                replacement = LogSegment.open(outputPath, outputId, (key, location) -> {
+                    replaceChain(key, copied.get(key), location);
+                });
+                segments.put(outputId, mapIfEnabled(replacement));
+            }
+            for (Map.Entry<String, LogSegment.Location> tombstone : dropped.entrySet()) {
+                // Unless the row has been written again since.
+                if (index.remove(tombstone.getKey(), tombstone.getValue())) {
+                    tombstone.getValue().segment.liveBytes.addAndGet(-tombstone.getValue().recordSize());
+                }
+            }
+
+            for (LogSegment input : inputs) {
+                if (input.id == outputId && replacement != null) {
+                    // The file has already been replaced by the output.
+                    input.close();
+                } else {
+                    segments.remove(input.id, input);
+                    input.delete();
+                }
+            }
+            return sizeBefore - (replacement == null ? 0 : replacement.fileSize());
+        }
+    }
+
+    // Replaces the chain of versions that starts at the given head with a
+    // compacted copy. If the row has been written since, the copy is either
+    // dead (after a PUT) or becomes the version the new DELTAs apply to.
+    private void replaceChain(String key, LogSegment.Location head, LogSegment.Location copy) {
+        boolean[] linked = new boolean[1];
+        index.compute(key, (k, current) -> {
+            linked[0] = false;
+            if (current == head) {
+                linked[0] = true;
+                return copy;
+            }
+            for (LogSegment.Location next = current; next != null; next = next.previous) {
+                if (next.previous == head) {
+                    next.previous = copy;
+                    linked[0] = true;
+                    break;
+                }
+            }
+            return current;
+        });
+        if (linked[0]) {
+            copy.segment.liveBytes.addAndGet(copy.recordSize());
+            for (LogSegment.Location old = head; old != null; old = old.previous) {
+                old.segment.liveBytes.addAndGet(-old.recordSize());
+            }
+        }
+    }
+
+    TableConfig config() {
+        return config;
+    }
+
+    // Maps or unmaps all sealed segments and records the setting in the table
+    // configuration, so that segments written later follow it as well.
+    void setMapped(boolean mapped) throws IOException {
+        config.setMapped(mapped);
+        for (LogSegment segment : segments.values()) {
+            if (mapped) {
+                segment.map();
+            } else {
+                segment.unmap();
+            }
+        }
+    }
+
+    boolean isMapped() {
+        return config.mapped();
+    }
+
+    private LogSegment mapIfEnabled(LogSegment segment) throws IOException {
+        if (config.mapped()) {
+            segment.map();
+        }
+        return segment;
+    }
+
+    // Returns the directory that holds this table's segments.
+    public Path directory() {
+        return directory;
+    }
+}
@@ -0,0 +1,50 @@
+package search.kvs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entries first.
+ */
+class LruPolicy<K> implements EvictionPolicy<K> {
+    private final long maxWeight;
+    // Weight of each key, from least to most recently used.
+    private final LinkedHashMap<K, Integer> order = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    LruPolicy(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public void recordHit(K key) {
+        order.get(key);
+    }
+
+    public void recordMiss(K key) {
+    }
+
+    public void add(K key, int keyWeight, List<K> evicted) {
+        order.put(key, keyWeight);
+        weight += keyWeight;
+        Iterator<Map.Entry<K, Integer>> eldest = order.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Map.Entry<K, Integer> entry = eldest.next();
+            weight -= entry.getValue();
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+    }
+
+    public void remove(K key) {
+        Integer keyWeight = order.remove(key);
+        if (keyWeight != null) {
+            weight -= keyWeight;
+        }
+    }
+
+    public long weight() {
+        return weight;
+    }
+}
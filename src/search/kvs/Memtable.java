@@ -0,0 +1,87 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Memtable holds the most recent writes to a LogStructuredStorage in a
+ * sorted, concurrent map until they are flushed to an SSTable. Rows are kept
+ * in serialized form, so callers that modify a row they have read cannot
+ * change the stored copy. Each memtable has its own write-ahead log, which is
+ * deleted once the memtable has been flushed.
+ *
+ * A DELTA for a row that is already in the memtable is merged into the entry
+ * right away, so the memtable holds at most one entry per row. A DELTA for a
+ * row that is not in the memtable stays a DELTA until it is read or compacted.
+ */
+class Memtable {
+    /**
+     * The latest version of one row; kind is LogSegment.PUT, LogSegment.DELTA
+     * or LogSegment.DELETE.
+     */
+    static class Entry {
+        final byte[] payload;
+        final long timestamp;
+        final byte kind;
+
+        Entry(byte[] payload, long timestamp, byte kind) {
+            this.payload = payload;
+            this.timestamp = timestamp;
+            this.kind = kind;
+        }
+
+        Row row() throws IOException {
+            return decode(payload);
+        }
+    }
+
+    final ConcurrentSkipListMap<String, Entry> rows = new ConcurrentSkipListMap<>();
+    final WriteAheadLog log;
+    private final AtomicLong size = new AtomicLong();
+
+    Memtable(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    // Adds a record to the memtable. Only one thread may call this at a time.
+    void put(String key, byte[] payload, long timestamp, byte kind) throws IOException {
+        Entry old = rows.get(key);
+        if (kind == LogSegment.DELTA && old != null && old.kind != LogSegment.DELETE) {
+            Row merged = old.row();
+            merged.putAll(decode(payload));
+            payload = merged.toBinary();
+            kind = old.kind;
+        }
+        rows.put(key, new Entry(payload, timestamp, kind));
+        long delta = LogSegment.HEADER_SIZE + payload.length;
+        if (old != null) {
+            delta -= LogSegment.HEADER_SIZE + old.payload.length;
+        }
+        size.addAndGet(delta);
+    }
+
+    Entry get(String key) {
+        return rows.get(key);
+    }
+
+    // Returns the approximate number of bytes the rows would take up on disk.
+    long size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    static Row decode(byte[] payload) throws IOException {
+        try {
+            return Row.readFrom(ByteBuffer.wrap(payload));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Corrupt row in memtable", e);
+        }
+    }
+}
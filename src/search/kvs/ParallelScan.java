@@ -0,0 +1,251 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ParallelScan reads the ranges of a scan (see KVSClient.ScanRange) from
+ * several workers at once, rather than one after another like
+ * KVSClient.KVSIterator does. Each range is read by a thread of its own,
+ * which reads ahead into a buffer and waits while the buffer is full, so a
+ * scan holds at most READ_AHEAD rows per range that is open.
+ *
+ * Unordered, up to PARALLELISM ranges are open at a time, and rows come in
+ * whatever order they arrive; this is the fastest way to read a table when
+ * the order of its rows does not matter. Ordered, all ranges are open at
+ * once, the workers send their rows in key order, and the scan merges them,
+ * so that the rows of the whole table come in key order. A range whose
+ * worker fails is taken over by the workers with the next copies of its rows
+ * one after another (see KVSIterator), so after a failure the rows of that
+ * range may come out of order.
+ *
+ * Like KVSIterator, hasNext() and next() throw an UncheckedIOException if a
+ * range cannot be read to its end. A caller that stops reading before the
+ * end should close() the scan, so that its threads stop; the threads of a
+ * scan that is not read for ABANDONED milliseconds stop on their own.
+ */
+public class ParallelScan implements Iterator<Row>, AutoCloseable {
+    static final int PARALLELISM = Integer.getInteger("kvs.scanParallelism", 8);
+    static final int READ_AHEAD = Integer.getInteger("kvs.scanReadAhead", 1000);
+    static final long ABANDONED = Long.getLong("kvs.scanAbandoned", 10L * 60 * 1000);
+    // How long a thread waits on a buffer before it checks whether the scan
+    // was closed.
+    private static final long POLL_MILLIS = 100;
+    // Marks the end of a range in a buffer.
+    private static final Object END = new Object();
+
+    /**
+     * The next row of a range, in an ordered scan. Rows with the same key
+     * come in the order of their ranges.
+     */
+    private static class Head implements Comparable<Head> {
+        final Row row;
+        final int range;
+
+        Head(Row row, int range) {
+            this.row = row;
+            this.range = range;
+        }
+
+        public int compareTo(Head other) {
+            int c = row.key().compareTo(other.row.key());
+            return c != 0 ? c : Integer.compare(range, other.range);
+        }
+    }
+
+    private final List<Callable<KVSClient.KVSIterator>> ranges;
+    private final boolean ordered;
+    // One buffer per range if ordered, otherwise one that all ranges share;
+    // they hold rows, END, and the UncheckedIOException a range failed with.
+    private final List<BlockingQueue<Object>> buffers = new ArrayList<>();
+    private int started; // Ranges whose threads have been started.
+    private int ended; // Ranges whose end was taken from the shared buffer.
+    private PriorityQueue<Head> heads; // The next row of each range that has one, if ordered.
+    private int refill = -1; // The range whose next row has to go into heads.
+    private Row nextRow;
+    private boolean fetched; // Whether nextRow is the row that next() returns.
+    private UncheckedIOException failure;
+    private volatile boolean closed;
+
+    // Starts reading the given ranges; each of them opens a KVSIterator over
+    // one range, on the thread that reads it.
+    ParallelScan(List<Callable<KVSClient.KVSIterator>> ranges, boolean ordered, int parallelism, int readAhead) {
+        this.ranges = ranges;
+        this.ordered = ordered;
+        if (ordered) {
+            for (int i = 0; i < ranges.size(); i++) {
+                buffers.add(new ArrayBlockingQueue<>(Math.max(1, readAhead)));
+                start(buffers.get(i));
+            }
+        } else {
+            int open = Math.max(1, Math.min(parallelism, ranges.size()));
+            buffers.add(new ArrayBlockingQueue<>(Math.max(1, readAhead) * open));
+            for (int i = 0; i < open && i < ranges.size(); i++) {
+                start(buffers.get(0));
+            }
+        }
+    }
+
+    // Reads the next range that has not been started into a buffer.
+    private void start(BlockingQueue<Object> buffer) {
+        Callable<KVSClient.KVSIterator> range = ranges.get(started++);
+        KVSClient.requestPool.execute(() -> read(range, buffer));
+    }
+
+    private void read(Callable<KVSClient.KVSIterator> range, BlockingQueue<Object> buffer) {
+        KVSClient.KVSIterator rows = null;
+        Object last = END;
+        try {
+            rows = range.call();
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                if (row != null && !hand(buffer, row)) {
+                    return;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            last = e;
+        } catch (Exception e) {
+            last = new UncheckedIOException(e instanceof IOException ? (IOException) e : new IOException(e));
+        } finally {
+            if (rows != null) {
+                rows.closeInput();
+            }
+        }
+        hand(buffer, last);
+    }
+
+    // Puts an item into a buffer, waiting while the buffer is full. Returns
+    // false if the scan was closed or abandoned meanwhile.
+    private boolean hand(BlockingQueue<Object> buffer, Object item) {
+        long waited = 0;
+        try {
+            while (!buffer.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                waited += POLL_MILLIS;
+                if (waited >= ABANDONED) {
+                    closed = true;
+                }
+                if (closed) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    // Takes the next item from a buffer, waiting while it is empty, and
+    // throws the exception a range failed with.
+    private Object take(BlockingQueue<Object> buffer) {
+        Object item = buffer.poll();
+        if (item == null) {
+            KVSClient.scanMetrics.stalled();
+        }
+        try {
+            while (item == null) {
+                if (closed) {
+                    throw new UncheckedIOException(
+                            new IOException("The scan was closed, or not read for " + ABANDONED + " ms"));
+                }
+                item = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("The scan was interrupted"));
+        }
+        if (item instanceof UncheckedIOException) {
+            throw (UncheckedIOException) item;
+        }
+        return item;
+    }
+
+    // Returns the next row that any range has read, starting the next range
+    // whenever one ends, or null when all of them have ended.
+    private Row arrived() {
+        while (ended < ranges.size()) {
+            Object item = take(buffers.get(0));
+            if (item != END) {
+                return (Row) item;
+            }
+            ended++;
+            if (started < ranges.size()) {
+                start(buffers.get(0));
+            }
+        }
+        return null;
+    }
+
+    // Returns the row with the smallest key among the next rows of all
+    // ranges, or null when all of them have ended.
+    private Row merged() {
+        if (heads == null) {
+            heads = new PriorityQueue<>();
+            for (int i = 0; i < buffers.size(); i++) {
+                advance(i);
+            }
+        } else if (refill >= 0) {
+            advance(refill);
+        }
+        Head head = heads.poll();
+        refill = head == null ? -1 : head.range;
+        return head == null ? null : head.row;
+    }
+
+    private void advance(int range) {
+        Object item = take(buffers.get(range));
+        if (item != END) {
+            heads.add(new Head((Row) item, range));
+        }
+    }
+
+    private void fetch() {
+        fetched = true;
+        nextRow = null;
+        try {
+            nextRow = ordered ? merged() : arrived();
+        } catch (UncheckedIOException e) {
+            failure = e;
+            close();
+        }
+    }
+
+    public boolean hasNext() {
+        if (!fetched) {
+            fetch();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return nextRow != null;
+    }
+
+    // Returns the next row, or null at the end of the scan.
+    public Row next() {
+        if (!hasNext()) {
+            return null;
+        }
+        fetched = false;
+        return nextRow;
+    }
+
+    // Stops the threads that read the ranges, and drops the rows they read
+    // ahead; the scan ends.
+    public void close() {
+        closed = true;
+        fetched = true;
+        nextRow = null;
+        for (BlockingQueue<Object> buffer : buffers) {
+            buffer.clear();
+        }
+    }
+}
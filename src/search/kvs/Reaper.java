@@ -0,0 +1,99 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import search.tools.Logger;
+
+/**
+ * The Reaper is a background thread on each KVS worker that removes rows
+ * whose time to live has passed. Every INTERVAL milliseconds it goes through
+ * the tables that have a TTL or rows with a TTL of their own (see
+ * Table.setTtl() and Expiries) and deletes their expired rows; rows of
+ * persistent tables are deleted with tombstones, whose space the Compactor
+ * reclaims. An expired row can still be read until the next pass.
+ *
+ * A table with a TTL that has had no rows for longer than its TTL is dropped
+ * altogether. This is how the intermediate tables of jobs that never destroy
+ * them go away.
+ *
+ * Each pass also releases the snapshots of persistent tables whose lease has
+ * run out (see UndoLog).
+ */
+public class Reaper extends Thread {
+    private static final Logger logger = Logger.getLogger(Reaper.class);
+    static final long INTERVAL = Long.getLong("kvs.reapInterval", 60000);
+
+    private final String storageDirectory;
+    private final AtomicLong rowsReaped = new AtomicLong();
+    private final AtomicLong tablesDropped = new AtomicLong();
+    private final AtomicLong snapshotsExpired = new AtomicLong();
+
+    public Reaper(String storageDirectory) {
+        super("reaper");
+        this.storageDirectory = storageDirectory;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            reap(now);
+            int expired = Table.expireSnapshots(now);
+            if (expired > 0) {
+                snapshotsExpired.addAndGet(expired);
+                logger.info("Released " + expired + " snapshots that were no longer read");
+            }
+        }
+    }
+
+    // Expires the rows of every table whose rows can expire, and drops the
+    // tables that stayed empty.
+    void reap(long now) {
+        Set<String> names = new TreeSet<>(Table.tables.keySet());
+        try {
+            names.addAll(Table.persistentTableNames(storageDirectory));
+        } catch (IOException e) {
+            logger.error("Listing the persistent tables failed", e);
+        }
+        for (String name : names) {
+            if (!Table.expires(name, storageDirectory)) {
+                continue;
+            }
+            try {
+                int removed = Table.expireRows(name, now, storageDirectory);
+                rowsReaped.addAndGet(removed);
+                if (Table.dropIfIdle(name, now, storageDirectory)) {
+                    tablesDropped.incrementAndGet();
+                    logger.info("Dropped " + name + ", which has been empty for longer than its TTL");
+                } else if (removed > 0) {
+                    logger.info("Removed " + removed + " expired rows of " + name);
+                }
+            } catch (IOException e) {
+                logger.error("Expiring the rows of " + name + " failed", e);
+            }
+        }
+    }
+
+    public long rowsReaped() {
+        return rowsReaped.get();
+    }
+
+    public long tablesDropped() {
+        return tablesDropped.get();
+    }
+
+    // Describes the expiry of rows for the worker's status page.
+    public String status() {
+        return "<p>Expiry: " + rowsReaped.get() + " rows and " + tablesDropped.get()
+                + " tables removed after their TTL, " + snapshotsExpired.get() + " snapshots released</p>";
+    }
+}
@@ -0,0 +1,490 @@
+package search.kvs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+
+import search.tools.HTTP;
+import search.tools.Logger;
+
+/**
+ * The Rebalancer of a worker keeps the worker's rows where the coordinator's
+ * RingView says they belong. Whenever the coordinator sends a new view, and
+ * whenever the worker has accepted rows it does not own, the Rebalancer scans
+ * all tables and sends the rows of which this worker is not a replica to
+ * their replicas in batches (a bulk PUT with merge=missing, so that columns
+ * a replica already has, which were written after the handoff began, win). A
+ * row is deleted here once all its replicas have it, unless it changed in the
+ * meantime; it is then sent again on the next pass.
+ *
+ * A handoff also gives rows replicas that did not have them before. The
+ * first of a row's replicas that already held it in the previous epoch
+ * copies it to them.
+ *
+ * A worker that was down has missed the writes to its rows in the meantime.
+ * When rows have several replicas, the Rebalancer of a worker that has just
+ * started therefore first copies the rows it should hold from the other
+ * workers (see resync()); until it is done, reads of rows it does not have
+ * are passed on to another replica.
+ *
+ * Once a pass over a view with a handoff has moved everything, the
+ * Rebalancer tells the coordinator, which ends the handoff when all workers
+ * of the previous ring have done so.
+ *
+ * While rows are moving, a row may be on its old or its new owner. The
+ * worker routes therefore ask elsewhere() where else to look for a row they
+ * do not have, and ownerElsewhere() where to send writes for rows they do not
+ * own. During the moment between a row arriving at its owner and being
+ * deleted here, a scan may return it twice.
+ */
+class Rebalancer extends Thread {
+    static final int BATCH_ROWS = Integer.getInteger("kvs.handoffBatchRows", 500);
+    static final long RETRY_MILLIS = Long.getLong("kvs.handoffRetryMillis", 1000);
+    private static final Logger logger = Logger.getLogger(Rebalancer.class);
+
+    private final String selfId;
+    private final String coordinator;
+    private final String storageDirectory;
+    // Null until the first view arrives.
+    private volatile RingView ring;
+    // Guarded by this.
+    private boolean passRequested;
+    // Whether the rows written while this worker was down may still be
+    // missing here.
+    private volatile boolean syncing = true;
+
+    Rebalancer(String selfId, String coordinator, String storageDirectory) {
+        super("kvs-rebalancer");
+        setDaemon(true);
+        this.selfId = selfId;
+        this.coordinator = coordinator;
+        this.storageDirectory = storageDirectory;
+    }
+
+    // Installs a view from the coordinator, unless a newer one is already
+    // installed, and starts a pass over it.
+    synchronized void install(RingView view) {
+        if (ring == null || view.epoch >= ring.epoch) {
+            ring = view;
+        }
+        requestPass();
+    }
+
+    synchronized void requestPass() {
+        passRequested = true;
+        notifyAll();
+    }
+
+    RingView ring() {
+        return ring;
+    }
+
+    // Checks whether this worker stores a copy of a key in the current view.
+    // Without a view, every worker stores every key it is asked about.
+    boolean isReplica(String key) {
+        return isReplica(selfId, key);
+    }
+
+    boolean isReplica(String id, String key) {
+        RingView view = ring;
+        return view == null || view.isEmpty() || view.isReplica(id, key);
+    }
+
+    // Returns the addresses of the replicas of a key other than this worker.
+    List<String> otherReplicas(String key) {
+        RingView view = ring;
+        if (view == null || view.isEmpty()) {
+            return List.of();
+        }
+        List<String> ids = view.replicaIds(key);
+        List<String> addresses = view.replicaAddresses(key);
+        List<String> others = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (!ids.get(i).equals(selfId)) {
+                others.add(addresses.get(i));
+            }
+        }
+        return others;
+    }
+
+    // Returns the address of the owner of a key if this worker is not one of
+    // its replicas, or null.
+    String ownerElsewhere(String key) {
+        RingView view = ring;
+        return isReplica(key) ? null : view.ownerAddress(key);
+    }
+
+    // Returns the address of another worker that may have a row this worker
+    // does not have: its owner, if this worker is not a replica of it; or
+    // another replica, while this worker is catching up after a restart; or,
+    // during a handoff, its previous owner if this worker was not a replica
+    // before. Returns null if there is none.
+    String elsewhere(String key) {
+        RingView view = ring;
+        if (view == null || view.isEmpty()) {
+            return null;
+        }
+        List<String> replicas = view.replicaIds(key);
+        if (!replicas.contains(selfId)) {
+            return view.ownerAddress(key);
+        }
+        if (syncing && replicas.size() > 1) {
+            return view.replicaAddresses(key).get(replicas.get(0).equals(selfId) ? 1 : 0);
+        }
+        if (view.inHandoff() && !view.previousReplicaIds(key).contains(selfId)) {
+            return view.previousOwnerAddress(key);
+        }
+        return null;
+    }
+
+    // Checks whether a scan of the rows owned by the worker replicaOf, while
+    // the workers in down are unreachable, returns a row of this worker: it
+    // does if this is the first replica of the row that is not down. A scan
+    // of this worker's own rows also returns the rows that are waiting to be
+    // handed over.
+    boolean inScan(String key, String replicaOf, Set<String> down) {
+        RingView view = ring;
+        if (view == null || view.isEmpty()) {
+            return replicaOf.equals(selfId);
+        }
+        List<String> replicas = view.replicaIds(key);
+        if (!replicas.contains(selfId)) {
+            return replicaOf.equals(selfId);
+        }
+        if (!replicas.get(0).equals(replicaOf)) {
+            return false;
+        }
+        for (String replica : replicas) {
+            if (!down.contains(replica)) {
+                return replica.equals(selfId);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        fetchRing();
+        while (true) {
+            RingView view;
+            synchronized (this) {
+                while (!passRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                passRequested = false;
+                view = ring;
+            }
+            boolean done = false;
+            try {
+                if (syncing && view != null && !view.isEmpty()) {
+                    if (view.replicas > 1) {
+                        resync(view);
+                    }
+                    syncing = false;
+                }
+                done = view == null || view.isEmpty() || pass(view);
+                if (done && view != null && view.inHandoff() && view.previousIds.contains(selfId)) {
+                    report(view);
+                }
+            } catch (Exception e) {
+                logger.error("Rebalancing failed", e);
+                done = false;
+            }
+            if (!done) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                requestPass();
+            }
+        }
+    }
+
+    // Asks the coordinator for the current view, so that a worker that has
+    // been restarted does not wait for the next change of membership.
+    private void fetchRing() {
+        try {
+            HTTP.Response r = HTTP.doRequest("GET", "http://" + coordinator + "/ring", null);
+            if (r != null && r.statusCode() == 200) {
+                install(RingView.parse(new String(r.body(), StandardCharsets.UTF_8)));
+            }
+        } catch (Exception e) {
+            // The coordinator sends the view once it knows this worker.
+        }
+    }
+
+    // Copies the rows of which this worker is a replica from the other
+    // workers of the ring. Their columns replace the ones here, which may
+    // have been overwritten while this worker was down. Workers that cannot
+    // be reached are skipped; their rows have other replicas.
+    private void resync(RingView view) {
+        logger.info("Copying rows from the other replicas");
+        long rows = 0;
+        for (int i = 0; i < view.ids.size(); i++) {
+            if (view.ids.get(i).equals(selfId)) {
+                continue;
+            }
+            String address = view.addresses.get(i);
+            try {
+                HTTP.Response r = HTTP.doRequest("GET", "http://" + address + "/tables", null);
+                if (r == null || r.statusCode() != 200) {
+                    throw new IOException("Cannot list the tables of " + address);
+                }
+                for (String table : new String(r.body(), StandardCharsets.UTF_8).split("\n")) {
+                    if (!table.isEmpty()) {
+                        rows += copyFrom(address, table);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Copying rows from " + address + " failed", e);
+            }
+        }
+        logger.info("Copied " + rows + " rows from the other replicas");
+    }
+
+    private long copyFrom(String address, String table) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) URI.create("http://" + address + "/data/"
+                + URLEncoder.encode(table, StandardCharsets.UTF_8) + "?holder="
+                + URLEncoder.encode(selfId, StandardCharsets.UTF_8)).toURL().openConnection();
+        con.setRequestProperty("Accept", Row.BINARY_CONTENT_TYPE);
+        if (con.getResponseCode() != 200) {
+            return 0;
+        }
+        Table.createTable(table, storageDirectory);
+        long copied = 0;
+        List<Row> batch = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(con.getInputStream(), 65536)) {
+            while (true) {
+                Row row;
+                try {
+                    row = Row.readFrom(in);
+                } catch (Exception e) {
+                    throw new IOException("Reading rows of " + table + " from " + address + " failed", e);
+                }
+                if (row != null) {
+                    batch.add(row);
+                }
+                if (batch.size() >= BATCH_ROWS || (row == null && !batch.isEmpty())) {
+                    Table.putRows(table, batch, true, storageDirectory);
+                    copied += batch.size();
+                    batch.clear();
+                }
+                if (row == null) {
+                    return copied;
+                }
+            }
+        }
+    }
+
+    // Moves the rows of every table that belong to other workers. Returns
+    // true if nothing is left to move, false if rows could not be moved or
+    // a newer view has arrived.
+    private boolean pass(RingView view) throws IOException {
+        List<String> tables = new ArrayList<>(Table.tables.keySet());
+        tables.addAll(Table.persistentTableNames(storageDirectory));
+        boolean done = true;
+        for (String table : tables) {
+            if (ring != view) {
+                return false;
+            }
+            done &= moveRows(table, view);
+        }
+        return done;
+    }
+
+    private boolean moveRows(String table, RingView view) throws IOException {
+        TableScan<Row> rows = Table.scan(table, null, null, storageDirectory);
+        if (rows == null) {
+            return true;
+        }
+        try {
+            return moveRows(table, view, rows);
+        } finally {
+            rows.close();
+        }
+    }
+
+    private boolean moveRows(String table, RingView view, Iterator<Row> rows) throws IOException {
+        boolean done = true;
+        List<Move> batch = new ArrayList<>();
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            if (row == null) {
+                continue;
+            }
+            List<String> replicas = view.replicaIds(row.key());
+            Move move;
+            if (!replicas.contains(selfId)) {
+                move = new Move(row, view.replicaAddresses(row.key()), true);
+            } else if (view.inHandoff()) {
+                move = new Move(row, newReplicas(view, row.key(), replicas), false);
+            } else {
+                continue;
+            }
+            if (move.targets.isEmpty()) {
+                continue;
+            }
+            batch.add(move);
+            if (batch.size() >= BATCH_ROWS) {
+                done &= send(table, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            done &= send(table, batch);
+        }
+        return done;
+    }
+
+    // Returns the addresses of the replicas of a key that did not have it in
+    // the previous epoch, if this worker is the first replica that did, or
+    // else an empty list.
+    private List<String> newReplicas(RingView view, String key, List<String> replicas) {
+        List<String> previous = view.previousReplicaIds(key);
+        List<String> addresses = view.replicaAddresses(key);
+        List<String> targets = new ArrayList<>();
+        boolean first = true;
+        for (int i = 0; i < replicas.size(); i++) {
+            if (!previous.contains(replicas.get(i))) {
+                targets.add(addresses.get(i));
+            } else if (first) {
+                if (!replicas.get(i).equals(selfId)) {
+                    return List.of();
+                }
+                first = false;
+            }
+        }
+        return first ? List.of() : targets;
+    }
+
+    /**
+     * A row to send to the given workers, and whether to delete it here once
+     * all of them have it.
+     */
+    private static class Move {
+        final Row row;
+        final List<String> targets;
+        final boolean delete;
+
+        Move(Row row, List<String> targets, boolean delete) {
+            // Rows of in-memory tables are changed in place by later writes.
+            this.row = row.clone();
+            this.targets = targets;
+            this.delete = delete;
+        }
+    }
+
+    // Sends a batch of rows to their targets, with one request per target,
+    // and deletes the rows that are to be deleted if all their targets have
+    // them and they have not changed since they were read. Returns true if
+    // every target has its rows and all of those rows were deleted.
+    private boolean send(String table, List<Move> batch) throws IOException {
+        Map<String, ByteArrayOutputStream> bodies = new HashMap<>();
+        for (Move move : batch) {
+            byte[] binary = move.row.toBinary();
+            for (String target : move.targets) {
+                bodies.computeIfAbsent(target, t -> new ByteArrayOutputStream()).write(binary);
+            }
+        }
+        Set<String> failed = new HashSet<>();
+        for (Map.Entry<String, ByteArrayOutputStream> body : bodies.entrySet()) {
+            HTTP.Response r;
+            try {
+                r = HTTP.doRequest("PUT", "http://" + body.getKey() + "/data/"
+                        + URLEncoder.encode(table, StandardCharsets.UTF_8) + "/?merge=missing",
+                        body.getValue().toByteArray(), KVSClient.BINARY_HEADERS);
+            } catch (IOException e) {
+                r = null;
+            }
+            if (r == null || r.statusCode() != 200) {
+                logger.error("Handing rows of " + table + " to " + body.getKey() + " failed: "
+                        + (r == null ? "no response" : r.statusCode() + " " + new String(r.body())));
+                failed.add(body.getKey());
+            }
+        }
+
+        List<Row> sent = new ArrayList<>();
+        for (Move move : batch) {
+            if (move.delete && Collections.disjoint(move.targets, failed)) {
+                sent.add(move.row);
+            }
+        }
+        return deleteUnchanged(table, sent) && failed.isEmpty();
+    }
+
+    // Deletes the rows that have not changed since they were read. Returns
+    // true if all of them were deleted.
+    private boolean deleteUnchanged(String table, List<Row> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        // The row locks keep conditional puts out while the rows are
+        // compared; nothing else takes more than one of them at a time.
+        TreeSet<String> keys = new TreeSet<>();
+        for (Row row : batch) {
+            keys.add(row.key());
+        }
+        List<Lock> locks = new ArrayList<>();
+        for (String key : keys) {
+            Lock lock = Table.rowLock(table, key);
+            lock.lock();
+            locks.add(lock);
+        }
+        try {
+            List<String> unchanged = new ArrayList<>();
+            for (Row sent : batch) {
+                if (sameColumns(sent, Table.getRow(table, sent.key(), storageDirectory))) {
+                    unchanged.add(sent.key());
+                }
+            }
+            Table.deleteRows(table, unchanged, storageDirectory);
+            return unchanged.size() == batch.size();
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static boolean sameColumns(Row a, Row b) {
+        if (b == null || !a.columns().equals(b.columns())) {
+            return false;
+        }
+        for (String column : a.columns()) {
+            if (!Arrays.equals(a.getBytes(column), b.getBytes(column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void report(RingView view) throws IOException {
+        HTTP.Response r = HTTP.doRequest("PUT", "http://" + coordinator + "/handoff?id="
+                + URLEncoder.encode(selfId, StandardCharsets.UTF_8) + "&epoch=" + view.epoch, null);
+        if (r == null || r.statusCode() != 200) {
+            throw new IOException("Coordinator did not accept the end of the handoff");
+        }
+        logger.info("Handoff for epoch " + view.epoch + " finished");
+    }
+}
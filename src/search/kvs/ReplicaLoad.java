@@ -0,0 +1,83 @@
+package search.kvs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReplicaLoad keeps track of how fast each KVS worker has been answering this
+ * process, so that reads go to the replica that is likely to answer first. A
+ * worker's score is a moving average of its response times, multiplied by the
+ * number of requests that are waiting for it; a worker whose last request
+ * failed goes last for FAILURE_PENALTY_MILLIS. Workers that have not been
+ * asked yet score 0, so that every replica is tried early on.
+ */
+class ReplicaLoad {
+    static final long FAILURE_PENALTY_MILLIS = Long.getLong("kvs.replicaPenaltyMillis", 2000);
+    // Weight of the latest response time in the moving average.
+    private static final double ALPHA = 0.2;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * What is known about one worker.
+     */
+    private static class Stats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile double averageNanos;
+        volatile long failedAt;
+
+        double score(long now) {
+            if (failedAt != 0 && now - failedAt < FAILURE_PENALTY_MILLIS * 1_000_000L) {
+                return Double.MAX_VALUE;
+            }
+            return averageNanos * (1 + inFlight.get());
+        }
+    }
+
+    private Stats stats(String address) {
+        return stats.computeIfAbsent(address, a -> new Stats());
+    }
+
+    // Returns the addresses ordered from the best score to the worst. Workers
+    // with the same score keep their order.
+    List<String> rank(List<String> addresses) {
+        if (addresses.size() < 2) {
+            return addresses;
+        }
+        long now = System.nanoTime();
+        Map<String, Double> scores = new HashMap<>();
+        for (String address : addresses) {
+            scores.put(address, stats(address).score(now));
+        }
+        List<String> ranked = new ArrayList<>(addresses);
+        ranked.sort(Comparator.comparingDouble(scores::get));
+        return ranked;
+    }
+
+    // Records that a request to a worker starts, and returns the time to pass
+    // to finish().
+    long start(String address) {
+        stats(address).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    // Records the outcome of a request that start() returned startNanos for.
+    void finish(String address, long startNanos, boolean succeeded) {
+        Stats s = stats(address);
+        s.inFlight.decrementAndGet();
+        long now = System.nanoTime();
+        if (!succeeded) {
+            s.failedAt = now;
+            return;
+        }
+        s.failedAt = 0;
+        long elapsed = now - startNanos;
+        // Races between threads only lose a sample.
+        s.averageNanos = s.averageNanos == 0 ? elapsed : (1 - ALPHA) * s.averageNanos + ALPHA * elapsed;
+    }
+}
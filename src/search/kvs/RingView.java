@@ -0,0 +1,153 @@
+package search.kvs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A RingView is the placement of rows as the KVS coordinator announces it:
+ * the workers on the hash ring, numbered by an epoch that grows with every
+ * change of membership. While the rows of the previous epoch are still being
+ * handed over to their new owners, the view also holds the previous ring, so
+ * that a row that has not been moved yet can still be found. Every row is
+ * stored on 'replicas' workers: its owner and the workers that follow it on
+ * the ring (see HashRing.replicasOf()).
+ *
+ * The coordinator serves the view at /ring and sends it to the workers, in
+ * this format:
+ *
+ * virtualNodes epoch replicas
+ * number of workers on the ring, then one "id,address" line per worker
+ * number of workers on the previous ring (0 if no handoff is running), then
+ * one "id,address" line per worker
+ *
+ * Workers are listed in ID order, which is the order in which the ring is
+ * built.
+ */
+class RingView {
+    final int virtualNodes;
+    final int replicas;
+    final int epoch;
+    final List<String> ids;
+    final List<String> addresses;
+    final List<String> previousIds;
+    final List<String> previousAddresses;
+    private final HashRing ring;
+    private final HashRing previousRing;
+
+    RingView(int virtualNodes, int replicas, int epoch, List<String> ids, List<String> addresses,
+            List<String> previousIds, List<String> previousAddresses) {
+        this.virtualNodes = virtualNodes;
+        this.replicas = replicas;
+        this.epoch = epoch;
+        this.ids = Collections.unmodifiableList(new ArrayList<>(ids));
+        this.addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+        this.previousIds = Collections.unmodifiableList(new ArrayList<>(previousIds));
+        this.previousAddresses = Collections.unmodifiableList(new ArrayList<>(previousAddresses));
+        this.ring = ids.isEmpty() ? null : new HashRing(ids, virtualNodes);
+        this.previousRing = previousIds.isEmpty() ? null : new HashRing(previousIds, virtualNodes);
+    }
+
+    // Checks whether rows are still being moved to the owners of this epoch.
+    boolean inHandoff() {
+        return previousRing != null;
+    }
+
+    boolean isEmpty() {
+        return ring == null;
+    }
+
+    // Returns the ID of the worker that owns a key in this epoch.
+    String ownerId(String key) {
+        return ids.get(ring.ownerOf(key));
+    }
+
+    String ownerAddress(String key) {
+        return addresses.get(ring.ownerOf(key));
+    }
+
+    // Returns the IDs of the workers that store a key in this epoch, its
+    // owner first.
+    List<String> replicaIds(String key) {
+        return pick(ids, ring.replicasOf(key, replicas));
+    }
+
+    List<String> replicaAddresses(String key) {
+        return pick(addresses, ring.replicasOf(key, replicas));
+    }
+
+    boolean isReplica(String id, String key) {
+        return replicaIds(key).contains(id);
+    }
+
+    // Returns the IDs of the workers that stored a key in the previous epoch,
+    // or an empty list if no handoff is running.
+    List<String> previousReplicaIds(String key) {
+        return previousRing == null ? List.of() : pick(previousIds, previousRing.replicasOf(key, replicas));
+    }
+
+    private static List<String> pick(List<String> workers, int[] indexes) {
+        List<String> picked = new ArrayList<>(indexes.length);
+        for (int i : indexes) {
+            picked.add(workers.get(i));
+        }
+        return picked;
+    }
+
+    // Returns the ID of the worker that owned a key in the previous epoch, or
+    // null if no handoff is running.
+    String previousOwnerId(String key) {
+        return previousRing == null ? null : previousIds.get(previousRing.ownerOf(key));
+    }
+
+    // Returns the address of the worker that owned a key in the previous
+    // epoch, or null if no handoff is running.
+    String previousOwnerAddress(String key) {
+        return previousRing == null ? null : previousAddresses.get(previousRing.ownerOf(key));
+    }
+
+    String format() {
+        StringBuilder text = new StringBuilder();
+        text.append(virtualNodes).append(' ').append(epoch).append(' ').append(replicas).append('\n');
+        text.append(ids.size()).append('\n');
+        for (int i = 0; i < ids.size(); i++) {
+            text.append(ids.get(i)).append(',').append(addresses.get(i)).append('\n');
+        }
+        text.append(previousIds.size()).append('\n');
+        for (int i = 0; i < previousIds.size(); i++) {
+            text.append(previousIds.get(i)).append(',').append(previousAddresses.get(i)).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Parses the output of format(). Throws an IllegalArgumentException if the
+    // text is malformed.
+    static RingView parse(String text) {
+        try {
+            String[] lines = text.split("\n");
+            String[] header = lines[0].trim().split(" ");
+            int line = 1;
+            List<String> ids = new ArrayList<>();
+            List<String> addresses = new ArrayList<>();
+            int n = Integer.parseInt(lines[line++].trim());
+            for (int i = 0; i < n; i++) {
+                String[] worker = lines[line++].split(",", 2);
+                ids.add(worker[0]);
+                addresses.add(worker[1]);
+            }
+            List<String> previousIds = new ArrayList<>();
+            List<String> previousAddresses = new ArrayList<>();
+            int m = Integer.parseInt(lines[line++].trim());
+            for (int i = 0; i < m; i++) {
+                String[] worker = lines[line++].split(",", 2);
+                previousIds.add(worker[0]);
+                previousAddresses.add(worker[1]);
+            }
+            int replicas = header.length > 2 ? Integer.parseInt(header[2]) : 1;
+            return new RingView(Integer.parseInt(header[0]), replicas, Integer.parseInt(header[1]), ids, addresses,
+                    previousIds, previousAddresses);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed ring: " + text, e);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package search.kvs;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The Row class represents a single row in the key-value store. It is capable
@@ -9,8 +12,31 @@ import java.io.*;
  * byte array.
  * This class also provides functionality for serialization and deserialization
  * of row data for storage and network transmission.
+ *
+ * There are two serialized formats. The text format (toByteArray) separates
+ * the key, column names and decimal value lengths with spaces. The binary
+ * format (toBinary) starts with BINARY_MAGIC, a byte that cannot begin a UTF-8
+ * string, followed by a version byte, the key, the number of columns and the
+ * columns. Lengths and counts are varints; a column name is either a varint
+ * index into COLUMN_DICTIONARY or a varint length followed by the name, as
+ * told apart by the lowest bit of its tag. The readFrom methods accept both
+ * formats. Over HTTP, clients ask for the binary format by sending
+ * BINARY_CONTENT_TYPE in the Accept header, so old clients still get text.
  */
 public class Row implements Serializable {
+  public static final String BINARY_CONTENT_TYPE = "application/x-kvs-row";
+  static final byte BINARY_MAGIC = (byte) 0xb7;
+  static final byte BINARY_VERSION = 1;
+
+  // Column names that are common enough to be encoded as a single byte. New
+  // names may only be added at the end, since the index is what is stored.
+  static final List<String> COLUMN_DICTIONARY = List.of("value", "url", "page", "responseCode", "contentType",
+      "length", "host", "hostURL", "robotsText", "timeStamp", "rank", "acc", "cookie", "lastqueue");
+  private static final Map<String, Integer> COLUMN_IDS = new HashMap<>();
+  static {
+    for (int i = 0; i < COLUMN_DICTIONARY.size(); i++)
+      COLUMN_IDS.put(COLUMN_DICTIONARY.get(i), i);
+  }
 
   protected String key;
   protected HashMap<String, byte[]> values;
@@ -34,6 +60,18 @@ public class Row implements Serializable {
     return theClone;
   }
 
+  // Returns a copy of this row with only the given columns, among those that
+  // it has.
+  public synchronized Row project(Collection<String> columns) {
+    Row projection = new Row(key);
+    for (String column : columns) {
+      byte[] value = values.get(column);
+      if (value != null)
+        projection.values.put(column, value);
+    }
+    return projection;
+  }
+
   // Returns a set of column keys in this row.
   public synchronized Set<String> columns() {
     return values.keySet();
@@ -49,6 +87,14 @@ public class Row implements Serializable {
     values.put(key, value);
   }
 
+  // Copies all columns of another row into this one, replacing columns that
+  // exist in both.
+  public synchronized void putAll(Row other) {
+    for (String column : other.columns()) {
+      values.put(column, other.getBytes(column));
+    }
+  }
+
   // Retrieves a string value for the specified column key.
   public synchronized String get(String key) {
     if (values.get(key) == null)
@@ -64,18 +110,26 @@ public class Row implements Serializable {
   // Reads a string from an InputStream until a space is encountered.
   // It's used to parse serialized data where strings are delimited by spaces.
   static String readStringSpace(InputStream in) throws Exception {
-    byte buffer[] = new byte[16384];
+    return readStringSpace(in, in.read());
+  }
+
+  // Same as above, for callers that have already read the first byte.
+  private static String readStringSpace(InputStream in, int first) throws Exception {
+    byte buffer[] = new byte[64];
     int numRead = 0;
+    int b = first;
     while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
-
-      int b = in.read();
       if ((b < 0) || (b == 10))
         return null;
-      buffer[numRead++] = (byte) b;
       if (b == ' ')
-        return new String(buffer, 0, numRead - 1);
+        return new String(buffer, 0, numRead);
+      if (numRead == buffer.length) {
+        if (buffer.length >= 16384)
+          throw new Exception("Format error: Expecting string+space");
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      buffer[numRead++] = (byte) b;
+      b = in.read();
     }
   }
 
@@ -97,9 +151,13 @@ public class Row implements Serializable {
     }
   }
 
-  // Deserializes a Row object from an InputStream.
+  // Deserializes a Row object from an InputStream, in either format. Returns
+  // null at the end of the stream, or at a newline where a row would start.
   public static Row readFrom(InputStream in) throws Exception {
-    String theKey = readStringSpace(in);
+    int first = in.read();
+    if (first == (BINARY_MAGIC & 0xff))
+      return readBinary(in);
+    String theKey = readStringSpace(in, first);
     if (theKey == null)
       return null;
 
@@ -159,6 +217,154 @@ public class Row implements Serializable {
     }
   }
 
+  // Deserializes a Row object stored at a known position of a RandomAccessFile.
+  // The bytes are fetched with a single positional read on the file's channel,
+  // so the file pointer is not moved and several threads can read the same
+  // file at once.
+  public static Row readFrom(RandomAccessFile in, long position, int length) throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    FileChannel channel = in.getChannel();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new Exception("Premature end of file while reading row at position " + position + " (read "
+            + buffer.position() + " bytes, expecting " + length + ")");
+    }
+    buffer.flip();
+    return readFrom(buffer);
+  }
+
+  // Deserializes a Row object from a buffer that holds exactly one row, in
+  // either format.
+  public static Row readFrom(ByteBuffer buffer) throws Exception {
+    if (buffer.hasRemaining() && buffer.get(buffer.position()) == BINARY_MAGIC) {
+      buffer.get();
+      return readBinary(buffer);
+    }
+    if (!buffer.hasArray()) {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return readFrom(new ByteArrayInputStream(bytes));
+    }
+    return readFrom(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+        buffer.remaining()));
+  }
+
+  // Returns the key of a serialized row without deserializing the columns.
+  static String keyOf(byte[] payload) {
+    if (payload.length > 0 && payload[0] == BINARY_MAGIC) {
+      ByteBuffer buffer = ByteBuffer.wrap(payload, 2, payload.length - 2);
+      int length = readVarint(buffer);
+      return new String(payload, buffer.position(), length, StandardCharsets.UTF_8);
+    }
+    int end = 0;
+    while (end < payload.length && payload[end] != ' ') {
+      end++;
+    }
+    return new String(payload, 0, end);
+  }
+
+  // Extracts the key from the first length bytes of a binary row. Returns
+  // null if the row is not binary or the key does not fit in the prefix.
+  static String binaryKeyOf(byte[] prefix, int length) {
+    if (length < 3 || prefix[0] != BINARY_MAGIC)
+      return null;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(prefix, 2, length - 2);
+      int keyLength = readVarint(buffer);
+      if (keyLength > buffer.remaining())
+        return null;
+      return new String(prefix, buffer.position(), keyLength, StandardCharsets.UTF_8);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  // Reads a binary row whose magic byte has already been consumed.
+  private static Row readBinary(InputStream in) throws Exception {
+    if (in.read() != BINARY_VERSION)
+      throw new Exception("Unsupported binary row version");
+    Row newRow = new Row(new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8));
+    int columns = readVarint(in);
+    for (int i = 0; i < columns; i++) {
+      int tag = readVarint(in);
+      String column = (tag & 1) != 0 ? dictionaryColumn(tag >>> 1)
+          : new String(readBytes(in, tag >>> 1), StandardCharsets.UTF_8);
+      newRow.values.put(column, readBytes(in, readVarint(in)));
+    }
+    return newRow;
+  }
+
+  private static Row readBinary(ByteBuffer buffer) throws Exception {
+    if (buffer.get() != BINARY_VERSION)
+      throw new Exception("Unsupported binary row version");
+    Row newRow = new Row(new String(readBytes(buffer, readVarint(buffer)), StandardCharsets.UTF_8));
+    int columns = readVarint(buffer);
+    for (int i = 0; i < columns; i++) {
+      int tag = readVarint(buffer);
+      String column = (tag & 1) != 0 ? dictionaryColumn(tag >>> 1)
+          : new String(readBytes(buffer, tag >>> 1), StandardCharsets.UTF_8);
+      newRow.values.put(column, readBytes(buffer, readVarint(buffer)));
+    }
+    return newRow;
+  }
+
+  private static String dictionaryColumn(int id) throws Exception {
+    if (id >= COLUMN_DICTIONARY.size())
+      throw new Exception("Unknown column dictionary entry " + id);
+    return COLUMN_DICTIONARY.get(id);
+  }
+
+  private static byte[] readBytes(InputStream in, int length) throws Exception {
+    byte[] bytes = new byte[length];
+    int bytesRead = 0;
+    while (bytesRead < length) {
+      int n = in.read(bytes, bytesRead, length - bytesRead);
+      if (n < 0)
+        throw new Exception("Premature end of stream while reading binary row (read " + bytesRead + " bytes, expecting "
+            + length + ")");
+      bytesRead += n;
+    }
+    return bytes;
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer, int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static int readVarint(InputStream in) throws Exception {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b < 0)
+        throw new Exception("Premature end of stream while reading binary row");
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new Exception("Malformed varint in binary row");
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IllegalArgumentException("Malformed varint in binary row");
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
   // Converts the row into a string representation.
   public synchronized String toString() {
     String s = key + " {";
@@ -194,4 +400,32 @@ public class Row implements Serializable {
 
     return baos.toByteArray();
   }
+
+  // Serializes the row in the binary format.
+  public synchronized byte[] toBinary() {
+    int size = 16 + key.length();
+    for (Map.Entry<String, byte[]> column : values.entrySet())
+      size += 10 + column.getKey().length() + column.getValue().length;
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+
+    out.write(BINARY_MAGIC);
+    out.write(BINARY_VERSION);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, keyBytes.length);
+    out.write(keyBytes, 0, keyBytes.length);
+    writeVarint(out, values.size());
+    for (Map.Entry<String, byte[]> column : values.entrySet()) {
+      Integer id = COLUMN_IDS.get(column.getKey());
+      if (id != null) {
+        writeVarint(out, (id << 1) | 1);
+      } else {
+        byte[] name = column.getKey().getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, name.length << 1);
+        out.write(name, 0, name.length);
+      }
+      writeVarint(out, column.getValue().length);
+      out.write(column.getValue(), 0, column.getValue().length);
+    }
+    return out.toByteArray();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+package search.kvs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The RowCache keeps recently read rows of persistent tables in memory, so
+ * that repeated lookups of popular rows are not read from their segment and
+ * parsed again every time. It is shared by all tables of a worker and bounded
+ * by the approximate number of bytes the cached rows take up; which rows stay
+ * is up to an EvictionPolicy (LRU or W-TinyLFU).
+ *
+ * The cache holds the version of a row that is stored in the segments. A
+ * LogStructuredStorage invalidates a row when a newer version reaches the
+ * segments, i.e. when the memtable it was written to is flushed; until then,
+ * reads find the newer version in the memtable first. To keep a read that
+ * started before an invalidation from caching what it read, every insertion
+ * carries a stamp taken before the read, and is dropped if the row has been
+ * invalidated since.
+ *
+ * The cache is split into shards with a lock and a policy each, so that
+ * lookups of different rows rarely wait for each other. Cached rows are
+ * cloned on the way in and out, so callers may modify the rows they get.
+ */
+public class RowCache {
+    static final long DEFAULT_SIZE = Long.getLong("kvs.cacheSize", 64L * 1024 * 1024);
+    static final String DEFAULT_POLICY = System.getProperty("kvs.cachePolicy", "tinylfu");
+    private static final int SHARDS = 64;
+    private static final int STAMPS_PER_SHARD = 64;
+    private static final AtomicInteger nextTableId = new AtomicInteger();
+
+    /**
+     * Identifies one row of one open table.
+     */
+    static final class Key {
+        final int table;
+        final String row;
+
+        Key(int table, String row) {
+            this.table = table;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return table == other.table && row.equals(other.row);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * table + row.hashCode();
+        }
+    }
+
+    private static class Shard {
+        final HashMap<Key, Row> rows = new HashMap<>();
+        final EvictionPolicy<Key> policy;
+        // Bumped whenever a row that hashes to the slot is invalidated.
+        final long[] stamps = new long[STAMPS_PER_SHARD];
+
+        Shard(EvictionPolicy<Key> policy) {
+            this.policy = policy;
+        }
+    }
+
+    private final String policyName;
+    private final long maxWeight;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public RowCache(long maxWeight, String policyName) {
+        this.policyName = policyName;
+        this.maxWeight = maxWeight;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(EvictionPolicy.create(policyName, Math.max(1, maxWeight / SHARDS)));
+        }
+    }
+
+    // Returns a new id for a table that is being opened. Rows of a table that
+    // has been closed are never looked up again and age out of the cache.
+    static int newTableId() {
+        return nextTableId.incrementAndGet();
+    }
+
+    // Returns a copy of the cached row, or null if the row is not cached.
+    Row get(Key key) {
+        Shard shard = shard(key);
+        Row row;
+        synchronized (shard) {
+            row = shard.rows.get(key);
+            if (row == null) {
+                shard.policy.recordMiss(key);
+            } else {
+                shard.policy.recordHit(key);
+            }
+        }
+        if (row == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return row.clone();
+    }
+
+    // Returns the stamp to pass to put() for a row that is about to be read.
+    long stamp(Key key) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            return shard.stamps[slot(key)];
+        }
+    }
+
+    // Caches a row that was read after stamp() returned the given stamp,
+    // unless the row has been invalidated in the meantime.
+    void put(Key key, Row row, long stamp) {
+        Row copy = row.clone();
+        int weight = weigh(copy);
+        Shard shard = shard(key);
+        List<Key> evicted = new ArrayList<>();
+        synchronized (shard) {
+            if (shard.stamps[slot(key)] != stamp || shard.rows.containsKey(key)) {
+                return;
+            }
+            shard.rows.put(key, copy);
+            shard.policy.add(key, weight, evicted);
+            for (Key victim : evicted) {
+                shard.rows.remove(victim);
+            }
+        }
+        evictions.add(evicted.size());
+    }
+
+    // Drops a row, and keeps reads that are in progress from caching it.
+    void invalidate(Key key) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            shard.stamps[slot(key)]++;
+            if (shard.rows.remove(key) != null) {
+                shard.policy.remove(key);
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // Returns the approximate number of bytes taken up by the cached rows.
+    public long weight() {
+        long weight = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                weight += shard.policy.weight();
+            }
+        }
+        return weight;
+    }
+
+    // Describes the cache for the worker's status page.
+    public String status() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return "<p>Row cache (" + policyName + "): " + weight() / 1024 + " of " + maxWeight / 1024 + " KB used, "
+                + hitCount + " hits, " + misses.sum() + " misses, " + evictions.sum() + " evictions"
+                + (lookups == 0 ? "" : ", hit rate " + (hitCount * 100 / lookups) + "%") + "</p>";
+    }
+
+    private Shard shard(Key key) {
+        return shards[Math.floorMod(spread(key.hashCode()), SHARDS)];
+    }
+
+    private static int slot(Key key) {
+        return Math.floorMod(spread(key.hashCode()) >>> 6, STAMPS_PER_SHARD);
+    }
+
+    private static int spread(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        return hash ^ (hash >>> 13);
+    }
+
+    // Estimates the memory taken up by a row.
+    static int weigh(Row row) {
+        int weight = 64 + 2 * row.key().length();
+        for (String column : row.columns()) {
+            byte[] value = row.getBytes(column);
+            weight += 48 + 2 * column.length() + (value == null ? 0 : value.length);
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,163 @@
+package search.kvs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import search.tools.Hasher;
+
+/**
+ * RowFormatBenchmark compares the text format of rows (Row.toByteArray())
+ * with the binary format (Row.toBinary()): how large the rows are, how fast
+ * they are serialized, and how fast they are parsed, both one at a time from
+ * a buffer, as the storage engine reads them, and from a stream of many rows,
+ * as a scan reads them.
+ *
+ * The rows look like those of pt-crawl: pages with their URL, response code,
+ * content type and length; the same without a page, as for redirects and
+ * pages that are not HTML; and small single-column rows like the ones Spark
+ * jobs write. Each measurement is repeated for a number of rounds after as
+ * many rounds of warm-up, and the median is reported.
+ *
+ * Usage: RowFormatBenchmark [rows [rounds]]
+ */
+public class RowFormatBenchmark {
+    private static final String[] WORDS = { "the", "search", "engine", "crawler", "page", "rank", "index",
+            "distributed", "table", "worker", "<div class=\"content\">", "</div>", "<a href=\"/wiki/Main\">",
+            "</a>", "<p>", "</p>", "université", "naïve", "東京" };
+
+    // Serializes or parses a list of rows once and returns a checksum, so
+    // that the work cannot be optimized away.
+    private interface Pass {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(42);
+
+        List<Row> pages = new ArrayList<>();
+        List<Row> heads = new ArrayList<>();
+        List<Row> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pages.add(crawlRow(random, i, 2048 + random.nextInt(60 * 1024)));
+            heads.add(crawlRow(random, i, 0));
+            Row row = new Row(Hasher.hash("value" + i));
+            row.put("value", "http://example" + random.nextInt(1000) + ".com/" + i + " " + random.nextDouble());
+            values.add(row);
+        }
+
+        System.out.printf("%d rows per set, %d rounds%n", count, rounds);
+        System.out.printf("%-12s %-7s %12s %12s %12s %12s%n", "rows", "format", "bytes/row", "write MB/s",
+                "parse MB/s", "scan MB/s");
+        compare("crawl pages", pages, rounds);
+        compare("crawl heads", heads, rounds);
+        compare("values", values, rounds);
+    }
+
+    // Returns a row like one the crawler writes for a URL; pageBytes is the
+    // size of the page, or 0 for a row without one.
+    static Row crawlRow(Random random, int i, int pageBytes) {
+        String url = "https://host" + random.nextInt(500) + ".example.org:443/wiki/Article_" + i + "_"
+                + Long.toHexString(random.nextLong());
+        Row row = new Row(Hasher.hash(url));
+        row.put("url", url);
+        row.put("responseCode", pageBytes > 0 ? "200" : "301");
+        row.put("contentType", "text/html; charset=UTF-8");
+        if (pageBytes > 0) {
+            StringBuilder page = new StringBuilder("<html><head><title>Article ").append(i)
+                    .append("</title></head><body>");
+            while (page.length() < pageBytes) {
+                page.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            page.append("</body></html>");
+            row.put("page", page.toString());
+            row.put("length", String.valueOf(row.getBytes("page").length));
+        }
+        return row;
+    }
+
+    static void compare(String name, List<Row> rows, int rounds) throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            List<byte[]> serialized = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            long bytes = 0;
+            for (Row row : rows) {
+                byte[] data = binary ? row.toBinary() : row.toByteArray();
+                serialized.add(data);
+                bytes += data.length;
+                stream.write(data);
+                if (!binary) {
+                    stream.write('\n');
+                }
+            }
+            if (binary) {
+                stream.write('\n');
+            }
+            byte[] scanBody = stream.toByteArray();
+
+            double write = median(rounds, () -> {
+                long sum = 0;
+                for (Row row : rows) {
+                    sum += (binary ? row.toBinary() : row.toByteArray()).length;
+                }
+                return sum;
+            });
+            double parse = median(rounds, () -> {
+                long sum = 0;
+                for (byte[] data : serialized) {
+                    sum += Row.readFrom(ByteBuffer.wrap(data)).columns().size();
+                }
+                return sum;
+            });
+            double scan = median(rounds, () -> {
+                long sum = 0;
+                int parsed = 0;
+                InputStream in = new BufferedInputStream(new ByteArrayInputStream(scanBody), 65536);
+                Row row;
+                while ((row = Row.readFrom(in)) != null) {
+                    sum += row.columns().size();
+                    parsed++;
+                }
+                if (parsed != rows.size()) {
+                    throw new IllegalStateException("Parsed " + parsed + " of " + rows.size() + " rows");
+                }
+                return sum;
+            });
+            System.out.printf("%-12s %-7s %12d %12.1f %12.1f %12.1f%n", name, binary ? "binary" : "text",
+                    bytes / rows.size(), mbPerSecond(bytes, write), mbPerSecond(bytes, parse),
+                    mbPerSecond(bytes, scan));
+        }
+    }
+
+    // Runs a pass for rounds rounds of warm-up and rounds measured rounds,
+    // and returns the median time of the measured ones, in nanoseconds.
+    static double median(int rounds, Pass pass) throws Exception {
+        long check = 0;
+        for (int i = 0; i < rounds; i++) {
+            check += pass.run();
+        }
+        long[] nanos = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            check += pass.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        if (check == 42) {
+            System.out.println();
+        }
+        Arrays.sort(nanos);
+        return nanos[rounds / 2];
+    }
+
+    static double mbPerSecond(long bytes, double nanos) {
+        return bytes / 1e6 / (nanos / 1e9);
+    }
+}
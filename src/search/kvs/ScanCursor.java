@@ -0,0 +1,79 @@
+package search.kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A ScanCursor is a record that a worker sends in the middle of a binary scan
+ * to tell the client how far it has got: every row up to and including the
+ * cursor's key has been sent or left out. Workers send one after every
+ * INTERVAL rows in a row that they leave out, because of a ScanFilter or
+ * because another worker sends them, so that a client whose scan breaks off
+ * can resume after the cursor rather than after the last row it got. Clients
+ * ask for cursors with the query parameter "cursors".
+ *
+ * A cursor starts with MAGIC, a byte that cannot begin a row (see Row), and
+ * is followed by the length of the key as a varint and the key in UTF-8.
+ */
+class ScanCursor {
+    static final byte MAGIC = (byte) 0xb8;
+    static final int INTERVAL = Integer.getInteger("kvs.scanCursorInterval", 1000);
+
+    private final boolean enabled;
+    private int skipped;
+
+    ScanCursor(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Notes that a row was left out; returns the cursor to send after it, or
+    // null.
+    byte[] skipped(String key) {
+        if (!enabled || ++skipped < INTERVAL) {
+            return null;
+        }
+        skipped = 0;
+        return encode(key);
+    }
+
+    // Notes that a row was sent.
+    void sent() {
+        skipped = 0;
+    }
+
+    static byte[] encode(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 6);
+        out.write(MAGIC);
+        int length = bytes.length;
+        while ((length & ~0x7f) != 0) {
+            out.write((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+    // Reads the key of a cursor whose MAGIC has already been consumed.
+    static String read(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0 || shift >= 35) {
+                throw new IOException("Malformed scan cursor");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] key = in.readNBytes(length);
+        if (key.length < length) {
+            throw new IOException("Premature end of stream while reading scan cursor");
+        }
+        return new String(key, StandardCharsets.UTF_8);
+    }
+}
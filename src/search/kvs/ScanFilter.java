@@ -0,0 +1,190 @@
+package search.kvs;
+
+import java.io.Serializable;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A ScanFilter tells a worker which rows of a scan to send and which of their
+ * columns, so that rows the client would throw away, and columns it does not
+ * look at, never leave the worker. A filter is built with chained calls, e.g.
+ *
+ * new ScanFilter().columns("url", "page").equalTo("responseCode", "200")
+ *
+ * A row is sent if it satisfies every predicate; a predicate on a column that
+ * the row does not have is not satisfied. Predicates are checked before the
+ * projection, so they may refer to columns that are not sent. Lengths are
+ * counted in characters.
+ *
+ * On the wire a filter is the query parameters "columns", a comma-separated
+ * list of column names, and "where", a semicolon-separated list of predicates
+ * of the form op:column:value with URL-encoded column names and values.
+ */
+public class ScanFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String[] OPS = { "eq", "contains", "notContains", "containsIgnoreCase", "minLength",
+            "maxLength" };
+
+    /**
+     * One condition on the value of a column.
+     */
+    private static class Predicate implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String op;
+        final String column;
+        final String value;
+
+        Predicate(String op, String column, String value) {
+            this.op = op;
+            this.column = column;
+            this.value = value;
+        }
+
+        boolean matches(Row row) {
+            String actual = row.get(column);
+            if (actual == null) {
+                return false;
+            }
+            switch (op) {
+                case "eq":
+                    return actual.equals(value);
+                case "contains":
+                    return actual.contains(value);
+                case "notContains":
+                    return !actual.contains(value);
+                case "containsIgnoreCase":
+                    return actual.toLowerCase().contains(value.toLowerCase());
+                case "minLength":
+                    return actual.length() >= Integer.parseInt(value);
+                case "maxLength":
+                    return actual.length() <= Integer.parseInt(value);
+                default:
+                    throw new IllegalStateException("Unknown predicate " + op);
+            }
+        }
+    }
+
+    private List<String> columns;
+    private final List<Predicate> predicates = new ArrayList<>();
+
+    // Sends only the given columns of each row.
+    public ScanFilter columns(String... columnNames) {
+        columns = new ArrayList<>(Arrays.asList(columnNames));
+        return this;
+    }
+
+    public ScanFilter equalTo(String column, String value) {
+        return where("eq", column, value);
+    }
+
+    public ScanFilter contains(String column, String value) {
+        return where("contains", column, value);
+    }
+
+    public ScanFilter notContains(String column, String value) {
+        return where("notContains", column, value);
+    }
+
+    public ScanFilter containsIgnoreCase(String column, String value) {
+        return where("containsIgnoreCase", column, value);
+    }
+
+    public ScanFilter minLength(String column, int length) {
+        return where("minLength", column, String.valueOf(length));
+    }
+
+    public ScanFilter maxLength(String column, int length) {
+        return where("maxLength", column, String.valueOf(length));
+    }
+
+    private ScanFilter where(String op, String column, String value) {
+        predicates.add(new Predicate(op, column, value));
+        return this;
+    }
+
+    // Returns the columns to send, or null for all of them.
+    public List<String> columns() {
+        return columns;
+    }
+
+    public boolean matches(Row row) {
+        for (Predicate predicate : predicates) {
+            if (!predicate.matches(row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the part of the row to send, or null if the row does not match.
+    public Row apply(Row row) {
+        if (!matches(row)) {
+            return null;
+        }
+        return columns == null ? row : row.project(columns);
+    }
+
+    // Returns the query parameters that describe this filter, without a
+    // leading '&', or "" if the filter lets every row through unchanged.
+    public String toQuery() {
+        StringBuilder query = new StringBuilder();
+        if (columns != null) {
+            query.append("columns=").append(encode(String.join(",", columns)));
+        }
+        if (!predicates.isEmpty()) {
+            StringBuilder where = new StringBuilder();
+            for (Predicate predicate : predicates) {
+                if (where.length() > 0) {
+                    where.append(';');
+                }
+                where.append(predicate.op).append(':').append(encode(predicate.column)).append(':')
+                        .append(encode(predicate.value));
+            }
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append("where=").append(encode(where.toString()));
+        }
+        return query.toString();
+    }
+
+    // Builds a filter from the decoded values of the query parameters that
+    // toQuery() produced. Returns null if both are missing. Throws an
+    // IllegalArgumentException if a predicate is malformed.
+    public static ScanFilter fromQuery(String columnsParam, String whereParam) {
+        if (columnsParam == null && whereParam == null) {
+            return null;
+        }
+        ScanFilter filter = new ScanFilter();
+        if (columnsParam != null) {
+            filter.columns(columnsParam.isEmpty() ? new String[0] : columnsParam.split(","));
+        }
+        if (whereParam != null && !whereParam.isEmpty()) {
+            for (String term : whereParam.split(";")) {
+                String[] parts = term.split(":", -1);
+                if (parts.length != 3 || !Arrays.asList(OPS).contains(parts[0])) {
+                    throw new IllegalArgumentException("Malformed predicate " + term);
+                }
+                String value = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+                if (parts[0].endsWith("Length")) {
+                    try {
+                        Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Malformed length in " + term);
+                    }
+                }
+                filter.where(parts[0], URLDecoder.decode(parts[1], StandardCharsets.UTF_8), value);
+            }
+        }
+        return filter;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
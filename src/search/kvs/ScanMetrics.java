@@ -0,0 +1,92 @@
+package search.kvs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ScanMetrics counts what the scans of a process have done: the rows they
+ * returned, how long their ranges were open, and how often a range had to be
+ * resumed on the same worker, taken over by the other replicas, or given up,
+ * and how often a ParallelScan had to wait for the workers.
+ * KVSClient keeps one for all its scans (see KVSClient.scanMetrics()).
+ */
+public class ScanMetrics {
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong ranges = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong cursors = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong takeovers = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+
+    void scanStarted() {
+        scans.incrementAndGet();
+    }
+
+    // Records a range that was read to its end, or given up, and how many
+    // rows it returned in how many nanoseconds.
+    void rangeRead(long rangeRows, long rangeNanos) {
+        ranges.incrementAndGet();
+        rows.addAndGet(rangeRows);
+        nanos.addAndGet(rangeNanos);
+    }
+
+    void cursorReceived() {
+        cursors.incrementAndGet();
+    }
+
+    void resumed() {
+        resumes.incrementAndGet();
+    }
+
+    void takenOver() {
+        takeovers.incrementAndGet();
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    // Records that a ParallelScan had no row read ahead when it was asked for
+    // the next one.
+    void stalled() {
+        stalls.incrementAndGet();
+    }
+
+    public long scans() {
+        return scans.get();
+    }
+
+    public long rows() {
+        return rows.get();
+    }
+
+    public long resumes() {
+        return resumes.get();
+    }
+
+    public long takeovers() {
+        return takeovers.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public long stalls() {
+        return stalls.get();
+    }
+
+    // Returns the rows per second that ranges returned while they were open.
+    public double rowsPerSecond() {
+        long elapsed = nanos.get();
+        return elapsed == 0 ? 0 : rows.get() * 1e9 / elapsed;
+    }
+
+    public String toString() {
+        return String.format("scans=%d ranges=%d rows=%d rowsPerSecond=%.0f cursors=%d resumes=%d takeovers=%d"
+                + " failures=%d stalls=%d", scans.get(), ranges.get(), rows.get(), rowsPerSecond(), cursors.get(),
+                resumes.get(), takeovers.get(), failures.get(), stalls.get());
+    }
+}
@@ -0,0 +1,78 @@
+package search.kvs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Snapshot of a persistent table holds the version that each worker gave
+ * the table when the snapshot was opened (see KVSClient.openSnapshot()).
+ * Scans as of the snapshot see the rows of each worker as they were at that
+ * version, however they have been written since. The versions of different
+ * workers are taken one after the other, so a row that moves between workers
+ * while the snapshot is being opened may be seen twice or not at all. A
+ * worker that did not have the table yet has no version, and is scanned as it
+ * is.
+ *
+ * On the wire a snapshot is a comma-separated list of worker:version pairs,
+ * so that it can be passed on to the workers of a job.
+ */
+public class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String table;
+    private final Map<String, Long> versions;
+
+    public Snapshot(String table, Map<String, Long> versions) {
+        this.table = table;
+        this.versions = new LinkedHashMap<>(versions);
+    }
+
+    public String table() {
+        return table;
+    }
+
+    // Returns the version of the table on a worker, or -1 if it has none.
+    public long version(String workerId) {
+        Long version = versions.get(workerId);
+        return version == null ? -1 : version;
+    }
+
+    // Returns the IDs of the workers that have a version of the table.
+    public Set<String> workers() {
+        return Collections.unmodifiableSet(versions.keySet());
+    }
+
+    public String toQuery() {
+        List<String> pairs = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            pairs.add(entry.getKey() + ":" + entry.getValue());
+        }
+        return String.join(",", pairs);
+    }
+
+    // Parses what toQuery() returned for a snapshot of the given table; null
+    // stays null.
+    public static Snapshot fromQuery(String table, String query) {
+        if (query == null) {
+            return null;
+        }
+        Map<String, Long> versions = new LinkedHashMap<>();
+        for (String pair : query.split(",")) {
+            int colon = pair.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Bad snapshot: " + query);
+            }
+            versions.put(pair.substring(0, colon), Long.parseLong(pair.substring(colon + 1)));
+        }
+        return new Snapshot(table, versions);
+    }
+
+    public String toString() {
+        return table + "@" + toQuery();
+    }
+}
@@ -0,0 +1,15 @@
+package search.kvs;
+
+import java.io.IOException;
+
+/**
+ * Thrown by reads as of a snapshot that has been released, has expired, or
+ * was given up to free memory (see UndoLog).
+ */
+public class SnapshotTooOldException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public SnapshotTooOldException(long snapshot) {
+        super("Snapshot " + snapshot + " is no longer available");
+    }
+}
@@ -0,0 +1,91 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The StorageEngine interface defines how the rows of a single persistent
+ * table are stored on disk. Table keeps one engine per open table and
+ * delegates all reads and writes of "pt-" tables to it.
+ */
+public interface StorageEngine {
+    // Inserts or replaces a row.
+    void put(Row row) throws IOException;
+
+    // Inserts or replaces several rows with a single write to the log.
+    void putAll(List<Row> rows) throws IOException;
+
+    // Sets the given columns of a row, leaving its other columns unchanged. The
+    // row is created if it does not exist.
+    void putColumns(Row columns) throws IOException;
+
+    // Like putColumns(), for several rows with a single write to the log.
+    void putColumnsAll(List<Row> columns) throws IOException;
+
+    // Removes the rows with the given keys with a single write to the log.
+    // Keys of rows that do not exist are ignored.
+    void deleteAll(List<String> keys) throws IOException;
+
+    // Like deleteAll(), but leaves rows alone that have been written at or
+    // after the given time, in milliseconds since the epoch. Returns the
+    // number of rows removed.
+    int deleteAll(List<String> keys, long writtenBefore) throws IOException;
+
+    // Returns the keys of the rows whose latest version was written before the
+    // given time.
+    List<String> writtenBefore(long timestamp) throws IOException;
+
+    // Returns the time of the latest write to the table, including deletes,
+    // or 0 if nothing was ever written.
+    long lastWriteTime();
+
+    // Retrieves a row by its key, or returns null if the row does not exist.
+    Row get(String key) throws IOException;
+
+    // Iterates over the rows whose keys fall in [startRow, endRowExclusive).
+    // Either bound may be null.
+    Iterator<Row> scan(String startRow, String endRowExclusive) throws IOException;
+
+    // Iterates over the same rows as scan(), but returns them as they are
+    // stored, so they can be passed on without being decoded. Each row is only
+    // valid until the next call to the iterator.
+    Iterator<StoredRow> scanStored(String startRow, String endRowExclusive) throws IOException;
+
+    // Opens a snapshot of the table and returns its version; reads as of the
+    // snapshot see the table as it is now, while later writes go ahead (see
+    // UndoLog).
+    long openSnapshot() throws IOException;
+
+    // Releases a snapshot, so that the versions it kept can be dropped.
+    // Returns false if it was not open.
+    boolean releaseSnapshot(long snapshot);
+
+    // Releases the snapshots whose lease has run out, and returns how many
+    // there were.
+    int expireSnapshots(long now);
+
+    // Like get(), but as of a snapshot. Throws a SnapshotTooOldException if
+    // the snapshot is no longer open.
+    Row get(String key, long snapshot) throws IOException;
+
+    // Like scan(), but as of a snapshot.
+    Iterator<Row> scan(String startRow, String endRowExclusive, long snapshot) throws IOException;
+
+    // Checks whether a row exists.
+    boolean exists(String key) throws IOException;
+
+    // Returns a Bloom filter that holds the keys of all rows in the table.
+    BloomFilter bloomFilter() throws IOException;
+
+    // Counts the number of rows in the table.
+    int count();
+
+    // Makes all writes durable and refuses further ones. Reads, including
+    // scans that are under way, go on until close(), so the engine's files
+    // may be moved or deleted in between.
+    void closeForWrites() throws IOException;
+
+    // Releases all open files. The engine must not be used afterwards.
+    void close() throws IOException;
+}
@@ -0,0 +1,60 @@
+package search.kvs;
+
+import java.io.IOException;
+
+/**
+ * A StorageHandle holds the storage engine of an open persistent table and
+ * counts the scans that are reading it. Scans pin the handle instead of
+ * holding the table's lock, since they may be read over the network for
+ * as long as a client likes; renaming or deleting the table retires the
+ * handle, which stops writes to the engine right away and closes it once
+ * the last scan is done.
+ */
+class StorageHandle {
+    private final StorageEngine storage;
+    private int scans;
+    private boolean retired;
+
+    StorageHandle(StorageEngine storage) {
+        this.storage = storage;
+    }
+
+    StorageEngine storage() {
+        return storage;
+    }
+
+    // Records that a scan is reading the engine. Called with the table's
+    // lock held, so the handle cannot have been retired yet.
+    synchronized void pin() {
+        scans++;
+    }
+
+    // Records that a scan is done, and closes the engine if it was the last
+    // one of a retired handle.
+    void unpin() throws IOException {
+        boolean close;
+        synchronized (this) {
+            scans--;
+            close = retired && scans == 0;
+        }
+        if (close) {
+            storage.close();
+        }
+    }
+
+    // Makes what was written durable and refuses further writes; the engine
+    // is closed now if no scan is reading it, or else by the last one.
+    // Called with the table's lock held exclusively, after the handle was
+    // removed from Table.persistentTables.
+    void retire() throws IOException {
+        storage.closeForWrites();
+        boolean close;
+        synchronized (this) {
+            retired = true;
+            close = scans == 0;
+        }
+        if (close) {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A StoredRow is a row as it is returned by StorageEngine.scanStored(): either
+ * an already decoded Row, a serialized row, or a region of a file that holds
+ * a serialized binary row. Callers that only pass rows on, such as a worker
+ * answering a scan, can send the stored bytes as they are instead of decoding
+ * and re-encoding every row.
+ *
+ * A file region is only valid until the iterator that returned it moves on.
+ */
+public class StoredRow {
+    private final String key;
+    private final Row row;
+    private final byte[] payload;
+    private final FileChannel channel;
+    private final long position;
+    private final int length;
+
+    private StoredRow(String key, Row row, byte[] payload, FileChannel channel, long position, int length) {
+        this.key = key;
+        this.row = row;
+        this.payload = payload;
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    static StoredRow of(Row row) {
+        return new StoredRow(row.key(), row, null, null, 0, 0);
+    }
+
+    // Wraps a serialized row, in either the binary or the text format.
+    static StoredRow of(String key, byte[] payload) {
+        return new StoredRow(key, null, payload, null, 0, payload.length);
+    }
+
+    // Refers to a binary row of the given length at the given position of a
+    // file.
+    static StoredRow of(String key, FileChannel channel, long position, int length) {
+        return new StoredRow(key, null, null, channel, position, length);
+    }
+
+    public String key() {
+        return key;
+    }
+
+    // Returns the row, decoding it if necessary.
+    public Row row() throws IOException {
+        if (row != null) {
+            return row;
+        }
+        return Memtable.decode(payload != null ? payload : readRegion());
+    }
+
+    // Returns the row in the binary format, or null if it is a file region,
+    // which has to be sent with channel(), position() and length() instead.
+    public byte[] binary() throws IOException {
+        if (row != null) {
+            return row.toBinary();
+        }
+        if (payload == null) {
+            return null;
+        }
+        return payload.length > 0 && payload[0] == Row.BINARY_MAGIC ? payload : row().toBinary();
+    }
+
+    public boolean inFile() {
+        return channel != null;
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    private byte[] readRegion() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file while reading row " + key);
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -3,135 +3,918 @@ package search.kvs;
 import search.tools.KeyEncoder;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Table class represents the data storage structure for a key-value store
  * system.
  * It provides methods for creating tables, adding and retrieving rows, and
  * counting rows.
- * Tables can be stored either in-memory or persistently on disk.
+ * Tables can be stored either in-memory or persistently on disk. Persistent
+ * tables are handled by a StorageEngine, which is opened on first use and kept
+ * open for the lifetime of the worker.
+ *
+ * None of the methods lock the whole class. In-memory tables are concurrent
+ * maps sorted by key and storage engines are thread-safe, so reads and writes only share a
+ * read lock on their table's stripe of tableLocks, which renaming or deleting
+ * the table takes exclusively. Scans only hold it while they start; after
+ * that they pin the engine's StorageHandle instead (see TableScan). Writes
+ * hold the stripes of their rows in rowLocks, which are taken before the
+ * table's lock, and so do callers that read a row, modify it and write it
+ * back, for the whole sequence, so that no other write to the row can slip
+ * in between.
+ *
+ * Rows can be given a time to live, either for the whole table (setTtl()) or
+ * when they are written; the Reaper removes them once it has passed.
+ *
+ * Persistent tables can be read as of a snapshot (openSnapshot()), which
+ * keeps the rows as they were while writes go on.
  */
 public class Table {
-    public static Map<String, Map<String, Row>> tables = new ConcurrentHashMap<>();
+    public static Map<String, ConcurrentNavigableMap<String, Row>> tables = new ConcurrentHashMap<>();
+    public static Map<String, StorageHandle> persistentTables = new ConcurrentHashMap<>();
+    // Shared by all persistent tables; null if caching is turned off.
+    static final RowCache rowCache = RowCache.DEFAULT_SIZE > 0
+            ? new RowCache(RowCache.DEFAULT_SIZE, RowCache.DEFAULT_POLICY)
+            : null;
+    // Deadlines of rows that expire, and the TTLs of in-memory tables, by
+    // table name (see Expiries).
+    static final Map<String, Expiries> expiries = new ConcurrentHashMap<>();
+    private static final LockStripes tableLocks = new LockStripes(64);
+    private static final LockStripes rowLocks = new LockStripes(1024);
+
+    // Returns the directory that holds a persistent table.
+    static Path tableDirectory(String tableName, String storageDirectory) {
+        return Paths.get(storageDirectory, KeyEncoder.encode(tableName));
+    }
+
+    // Opens the storage engine for a persistent table.
+    static StorageEngine openStorage(Path tableDirectory) throws IOException {
+        return new LogStructuredStorage(tableDirectory, rowCache);
+    }
+
+    // Returns the cache of rows read from persistent tables, or null if caching
+    // is turned off.
+    public static RowCache rowCache() {
+        return rowCache;
+    }
+
+    // Returns the storage engine of a persistent table, opening it if necessary.
+    // Returns null if the table does not exist.
+    static StorageEngine storage(String tableName, String storageDirectory) {
+        StorageHandle handle = handle(tableName, storageDirectory);
+        return handle == null ? null : handle.storage();
+    }
+
+    // Like storage(), but returns the handle that holds the engine.
+    static StorageHandle handle(String tableName, String storageDirectory) {
+        StorageHandle handle = persistentTables.get(tableName);
+        if (handle != null) {
+            return handle;
+        }
+        Path tableDir = tableDirectory(tableName, storageDirectory);
+        if (!Files.isDirectory(tableDir)) {
+            return null;
+        }
+        try {
+            return persistentTables.computeIfAbsent(tableName, name -> {
+                try {
+                    StorageEngine opened = openStorage(tableDir);
+                    Expiries loaded = Expiries.load(tableDir);
+                    if (loaded != null) {
+                        expiries.put(name, loaded);
+                    }
+                    return new StorageHandle(opened);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            e.getCause().printStackTrace();
+            return null;
+        }
+    }
+
+    // Returns the lock that must be held while reading or writing a row
+    // (shared) or while renaming or deleting the table (exclusive).
+    static ReadWriteLock tableLock(String tableName) {
+        return tableLocks.get(tableName);
+    }
+
+    // Returns the lock that serializes writes and read-modify-write sequences
+    // on a row.
+    public static Lock rowLock(String tableName, String rowKey) {
+        return rowLocks.get(tableName, rowKey).writeLock();
+    }
+
+    // Locks the rows with the given keys, as with rowLock(), in stripe order
+    // so that two writers of several rows cannot deadlock, and returns the
+    // locks for unlockRows().
+    private static List<ReentrantReadWriteLock> lockRows(String tableName, Collection<String> rowKeys) {
+        List<ReentrantReadWriteLock> locks = rowLocks.ordered(tableName, rowKeys);
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        return locks;
+    }
+
+    private static void unlockRows(List<ReentrantReadWriteLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).writeLock().unlock();
+        }
+    }
 
     /**
      * Creates a new table either in-memory or on disk based on the table name.
      * Tables prefixed with "pt-" are persisted on disk.
-     * 
+     *
      * @param tableName        The name of the table to create.
      * @param storageDirectory Directory for storing persistent tables.
      */
-    public static synchronized void createTable(String tableName, String storageDirectory) {
+    public static void createTable(String tableName, String storageDirectory) {
         if (tableName.startsWith(("pt-"))) {
-            if (!Files.exists(Paths.get(storageDirectory, KeyEncoder.encode(tableName)))) {
-                String fileName = storageDirectory + File.separator + KeyEncoder.encode(tableName);
-                File file = new File(fileName);
-                file.mkdirs();
+            if (persistentTables.containsKey(tableName)) {
+                return;
             }
-        } else {
-            if (tables.get(tableName) == null) {
-                tables.put(tableName, new HashMap<>());
+            Lock lock = tableLock(tableName).readLock();
+            lock.lock();
+            try {
+                File dir = tableDirectory(tableName, storageDirectory).toFile();
+                if (!dir.exists()) {
+                    dir.mkdirs();
+                }
+                storage(tableName, storageDirectory);
+            } finally {
+                lock.unlock();
             }
+        } else {
+            tables.computeIfAbsent(tableName, k -> new ConcurrentSkipListMap<>());
+        }
+    }
+
+    // Records that rows are about to be written with the given TTL, or with
+    // the TTL of the table if it is 0. This happens before the rows are
+    // written, so that the Reaper cannot remove a row that was just written
+    // because of the deadline it had before.
+    private static void written(String table, List<String> keys, long ttl, String storageDirectory) {
+        Expiries tableExpiries = ttl > 0
+                ? expiries.computeIfAbsent(table,
+                        name -> new Expiries(name.startsWith("pt-") ? tableDirectory(name, storageDirectory) : null))
+                : expiries.get(table);
+        if (tableExpiries == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            tableExpiries.written(key, ttl, now);
         }
     }
 
     // Adds or updates a row in the specified table.
-    public static synchronized void putRow(String table, String rowKey, Row row, String storageDirectory) {
+    public static void putRow(String table, String rowKey, Row row, String storageDirectory) {
+        Lock rowLock = rowLock(table, rowKey);
+        rowLock.lock();
+        try {
+            putRowLocked(table, rowKey, row, storageDirectory);
+        } finally {
+            rowLock.unlock();
+        }
+    }
+
+    private static void putRowLocked(String table, String rowKey, Row row, String storageDirectory) {
         if (table.startsWith("pt-")) {
-            Path tableDir = Paths.get(storageDirectory, KeyEncoder.encode(table));
-            if (!Files.exists(tableDir)) {
-                System.out.println("Fail to add Row " + rowKey + " to table " + table + " because it doesn't exist");
-                return;
+            Lock lock = tableLock(table).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(table, storageDirectory);
+                if (storage == null) {
+                    System.out.println("Fail to add Row " + rowKey + " to table " + table + " because it doesn't exist");
+                    return;
+                }
+                written(table, List.of(rowKey), 0, storageDirectory);
+                storage.put(row);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
             }
+        } else {
+            written(table, List.of(rowKey), 0, storageDirectory);
+            tables.computeIfAbsent(table, k -> new ConcurrentSkipListMap<>())
+                    .put(rowKey, row);
+        }
+    }
+
+    // Inserts or replaces several rows of a table at once. Unlike putRow(),
+    // failures are reported to the caller.
+    public static void putRows(String table, List<Row> rows, String storageDirectory) throws IOException {
+        putRows(table, rows, false, storageDirectory);
+    }
 
-            String encodedKey = search.tools.KeyEncoder.encode(rowKey);
-            Path rowPath = tableDir.resolve(encodedKey);
+    // Like putRows(), but if merge is true, only the columns of the given
+    // rows are set and the other columns of existing rows are kept, as in
+    // putColumn().
+    public static void putRows(String table, List<Row> rows, boolean merge, String storageDirectory)
+            throws IOException {
+        putRows(table, rows, merge, 0, storageDirectory);
+    }
+
+    // Like putRows(), but the rows expire ttl milliseconds from now, unless
+    // ttl is 0 (see Expiries.written()).
+    public static void putRows(String table, List<Row> rows, boolean merge, long ttl, String storageDirectory)
+            throws IOException {
+        List<String> keys = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            keys.add(row.key());
+        }
+        List<ReentrantReadWriteLock> locked = lockRows(table, keys);
+        try {
+            putRowsLocked(table, rows, keys, merge, ttl, storageDirectory);
+        } finally {
+            unlockRows(locked);
+        }
+    }
+
+    private static void putRowsLocked(String table, List<Row> rows, List<String> keys, boolean merge, long ttl,
+            String storageDirectory) throws IOException {
+        if (table.startsWith("pt-")) {
+            Lock lock = tableLock(table).readLock();
+            lock.lock();
             try {
-                Files.write(rowPath, row.toByteArray());
+                StorageEngine storage = storage(table, storageDirectory);
+                if (storage == null) {
+                    throw new IOException("Table " + table + " does not exist");
+                }
+                written(table, keys, ttl, storageDirectory);
+                if (merge) {
+                    storage.putColumnsAll(rows);
+                } else {
+                    storage.putAll(rows);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            written(table, keys, ttl, storageDirectory);
+            Map<String, Row> tableRows = tables.computeIfAbsent(table, k -> new ConcurrentSkipListMap<>());
+            for (Row row : rows) {
+                if (merge) {
+                    tableRows.computeIfAbsent(row.key(), Row::new).putAll(row);
+                } else {
+                    tableRows.put(row.key(), row);
+                }
+            }
+        }
+    }
+
+    // Adds rows that another worker hands over. Columns that an existing row
+    // already has are kept, since they were written here after the handoff
+    // began; only the missing ones are added. The rows are locked from the
+    // read to the write.
+    public static void fillRows(String table, List<Row> rows, String storageDirectory) throws IOException {
+        List<String> keys = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            keys.add(row.key());
+        }
+        List<ReentrantReadWriteLock> locked = lockRows(table, keys);
+        try {
+            fillRowsLocked(table, rows, storageDirectory);
+        } finally {
+            unlockRows(locked);
+        }
+    }
+
+    private static void fillRowsLocked(String table, List<Row> rows, String storageDirectory) throws IOException {
+        List<Row> missing = new ArrayList<>();
+        for (Row row : rows) {
+            Row existing = getRow(table, row.key(), storageDirectory);
+            if (existing == null) {
+                missing.add(row);
+                continue;
+            }
+            Row columns = new Row(row.key());
+            for (String column : row.columns()) {
+                if (existing.getBytes(column) == null) {
+                    columns.put(column, row.getBytes(column));
+                }
+            }
+            if (!columns.columns().isEmpty()) {
+                missing.add(columns);
+            }
+        }
+        putRows(table, missing, true, storageDirectory);
+    }
+
+    // Removes rows from a table. Keys of rows that do not exist are ignored.
+    public static void deleteRows(String table, List<String> keys, String storageDirectory) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<ReentrantReadWriteLock> locked = lockRows(table, keys);
+        try {
+            deleteRowsLocked(table, keys, storageDirectory);
+        } finally {
+            unlockRows(locked);
+        }
+    }
+
+    private static void deleteRowsLocked(String table, List<String> keys, String storageDirectory)
+            throws IOException {
+        Expiries tableExpiries = expiries.get(table);
+        if (tableExpiries != null) {
+            tableExpiries.deleted(keys);
+        }
+        if (table.startsWith("pt-")) {
+            Lock lock = tableLock(table).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(table, storageDirectory);
+                if (storage != null) {
+                    storage.deleteAll(keys);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            Map<String, Row> rows = tables.get(table);
+            if (rows != null) {
+                for (String key : keys) {
+                    rows.remove(key);
+                }
+            }
+        }
+    }
+
+    // Sets one column of a row, creating the row if necessary. For persistent
+    // tables only the new column is written, not the rest of the row.
+    public static void putColumn(String table, String rowKey, String column, byte[] value,
+            String storageDirectory) {
+        putColumn(table, rowKey, column, value, 0, storageDirectory);
+    }
+
+    // Like putColumn(), but the row expires ttl milliseconds from now, unless
+    // ttl is 0.
+    public static void putColumn(String table, String rowKey, String column, byte[] value, long ttl,
+            String storageDirectory) {
+        Lock rowLock = rowLock(table, rowKey);
+        rowLock.lock();
+        try {
+            putColumnLocked(table, rowKey, column, value, ttl, storageDirectory);
+        } finally {
+            rowLock.unlock();
+        }
+    }
+
+    private static void putColumnLocked(String table, String rowKey, String column, byte[] value, long ttl,
+            String storageDirectory) {
+        if (table.startsWith("pt-")) {
+            Lock lock = tableLock(table).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(table, storageDirectory);
+                if (storage == null) {
+                    System.out.println("Fail to add Row " + rowKey + " to table " + table + " because it doesn't exist");
+                    return;
+                }
+                written(table, List.of(rowKey), ttl, storageDirectory);
+                Row columns = new Row(rowKey);
+                columns.put(column, value);
+                storage.putColumns(columns);
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                lock.unlock();
             }
         } else {
-            tables.computeIfAbsent(table, k -> new ConcurrentHashMap<>())
-                    .put(rowKey, row);
-            // RowVersion.put(table, rowKey, row);
+            written(table, List.of(rowKey), ttl, storageDirectory);
+            tables.computeIfAbsent(table, k -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(rowKey, Row::new)
+                    .put(column, value);
         }
     }
 
     // Retrieves a row from a specified table.
-    public static synchronized Row getRow(String tableName, String rowKey, String storageDirectory) {
+    public static Row getRow(String tableName, String rowKey, String storageDirectory) {
+        if (tableName == null || rowKey == null) {
+            return null;
+        }
         if (tableName.startsWith("pt-")) {
-            Path rowPath = Paths.get(storageDirectory, tableName, search.tools.KeyEncoder.encode(rowKey));
-            if (Files.exists(rowPath)) {
-                try (InputStream in = Files.newInputStream(rowPath)) {
-                    return Row.readFrom(in);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } else {
+            Lock lock = tableLock(tableName).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(tableName, storageDirectory);
+                return storage == null ? null : storage.get(rowKey);
+            } catch (Exception e) {
+                e.printStackTrace();
                 return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        Map<String, Row> rows = tables.get(tableName);
+        return rows == null ? null : rows.get(rowKey);
+    }
+
+    // Checks whether a row exists, without reading it.
+    public static boolean existsRow(String tableName, String rowKey, String storageDirectory) {
+        if (tableName.startsWith("pt-")) {
+            Lock lock = tableLock(tableName).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(tableName, storageDirectory);
+                return storage != null && storage.exists(rowKey);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                lock.unlock();
             }
         }
-        if (tableName == null || rowKey == null || !tables.containsKey(tableName)
-                || !tables.get(tableName).containsKey(rowKey)) {
+        Map<String, Row> rows = tables.get(tableName);
+        return rows != null && rows.containsKey(rowKey);
+    }
+
+    // Returns a Bloom filter with the keys of a table, or null if the table
+    // does not exist. Persistent tables maintain theirs as rows are written;
+    // for in-memory tables it is built on demand.
+    public static BloomFilter bloomFilter(String tableName, String storageDirectory) {
+        if (tableName.startsWith("pt-")) {
+            Lock lock = tableLock(tableName).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(tableName, storageDirectory);
+                return storage == null ? null : storage.bloomFilter();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        Map<String, Row> rows = tables.get(tableName);
+        if (rows == null) {
             return null;
         }
-        return tables.get(tableName).get(rowKey);
+        List<String> keys = new ArrayList<>(rows.keySet());
+        BloomFilter filter = BloomFilter.create(keys.size(), LogStructuredStorage.BLOOM_FALSE_POSITIVE_RATE);
+        for (String key : keys) {
+            filter.add(key);
+        }
+        return filter;
+    }
 
+    // Opens the iterator of a scan on a persistent table's storage engine.
+    private interface ScanOpener<T> {
+        Iterator<T> open(StorageEngine storage) throws IOException;
     }
 
-    // Reads rows from a directory into a concurrent map. Used for persistent
-    // tables.
-    public static ConcurrentMap<String, Row> readRowsFromDirectory(String tableName, String storageDirectory) {
-        File tableDirectory = new File(storageDirectory + File.separator + tableName);
+    // Starts a scan of a persistent table that pins the table's storage until
+    // it is read to the end or closed (see TableScan). The table's lock is
+    // only held while the scan starts. Returns null if the table does not
+    // exist.
+    private static <T> TableScan<T> pinnedScan(String tableName, String storageDirectory, ScanOpener<T> opener)
+            throws IOException {
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageHandle handle = handle(tableName, storageDirectory);
+            if (handle == null) {
+                return null;
+            }
+            Iterator<T> rows = opener.open(handle.storage());
+            handle.pin();
+            return new TableScan<>(rows, handle);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        if (!tableDirectory.exists() || !tableDirectory.isDirectory()) {
-            return null;
+    // Iterates over the rows of a table whose keys fall in [startRow,
+    // endRowExclusive). Returns null if the table does not exist. The scan of
+    // a persistent table must be read to the end or closed (see TableScan).
+    public static TableScan<Row> scan(String tableName, String startRow, String endRowExclusive,
+            String storageDirectory) {
+        if (tableName.startsWith("pt-")) {
+            try {
+                return pinnedScan(tableName, storageDirectory, storage -> storage.scan(startRow, endRowExclusive));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
         }
 
-        File[] files = tableDirectory.listFiles();
-        if (files == null) {
+        ConcurrentNavigableMap<String, Row> rowsMap = tables.get(tableName);
+        if (rowsMap == null) {
             return null;
         }
+        return new TableScan<>(range(rowsMap, startRow, endRowExclusive).values().iterator(), null);
+    }
 
-        ConcurrentMap<String, Row> rows = new ConcurrentHashMap<String, Row>();
-        ;
-        for (File file : files) {
-            try (FileInputStream fis = new FileInputStream(file)) {
-                Row row = Row.readFrom(fis);
-                if (row != null) {
-                    rows.put(row.key, row);
-                }
-            } catch (Exception e) {
+    // Returns the rows of an in-memory table whose keys fall in [startRow,
+    // endRowExclusive), as a view that is read in key order while writes go
+    // on. Either bound may be null.
+    private static ConcurrentNavigableMap<String, Row> range(ConcurrentNavigableMap<String, Row> rows,
+            String startRow, String endRowExclusive) {
+        if (startRow != null && endRowExclusive != null && startRow.compareTo(endRowExclusive) >= 0) {
+            return new ConcurrentSkipListMap<>();
+        }
+        if (startRow != null) {
+            rows = rows.tailMap(startRow, true);
+        }
+        if (endRowExclusive != null) {
+            rows = rows.headMap(endRowExclusive, false);
+        }
+        return rows;
+    }
+
+    // Opens a snapshot of a persistent table and returns its version, or -1
+    // if the table does not exist. Only persistent tables have snapshots.
+    public static long openSnapshot(String tableName, String storageDirectory) throws IOException {
+        if (!tableName.startsWith("pt-")) {
+            throw new IllegalArgumentException("Only persistent tables have snapshots");
+        }
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            return storage == null ? -1 : storage.openSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Releases a snapshot of a persistent table. Returns false if it was not
+    // open.
+    public static boolean releaseSnapshot(String tableName, long snapshot, String storageDirectory) {
+        if (!tableName.startsWith("pt-")) {
+            return false;
+        }
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            return storage != null && storage.releaseSnapshot(snapshot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Releases the snapshots of the open persistent tables that have not
+    // been read for a while (see UndoLog), and returns how many there were.
+    static int expireSnapshots(long now) {
+        int expired = 0;
+        for (StorageHandle handle : persistentTables.values()) {
+            expired += handle.storage().expireSnapshots(now);
+        }
+        return expired;
+    }
+
+    // Like scan(), but as of a snapshot of a persistent table. Unlike scan(),
+    // failures are reported to the caller, including a SnapshotTooOldException
+    // if the snapshot is no longer open. Returns null if the table does not
+    // exist.
+    public static TableScan<Row> scan(String tableName, String startRow, String endRowExclusive, long snapshot,
+            String storageDirectory) throws IOException {
+        if (!tableName.startsWith("pt-")) {
+            throw new IllegalArgumentException("Only persistent tables have snapshots");
+        }
+        return pinnedScan(tableName, storageDirectory,
+                storage -> storage.scan(startRow, endRowExclusive, snapshot));
+    }
+
+    // Like scan(), but returns the rows as they are stored, so that rows of
+    // persistent tables can be sent without being decoded. Returns null if the
+    // table does not exist.
+    public static TableScan<StoredRow> scanStored(String tableName, String startRow, String endRowExclusive,
+            String storageDirectory) {
+        if (tableName.startsWith("pt-")) {
+            try {
+                return pinnedScan(tableName, storageDirectory,
+                        storage -> storage.scanStored(startRow, endRowExclusive));
+            } catch (IOException e) {
                 e.printStackTrace();
+                return null;
             }
         }
 
-        return rows;
+        Iterator<Row> rows = scan(tableName, startRow, endRowExclusive, storageDirectory);
+        if (rows == null) {
+            return null;
+        }
+        return new TableScan<>(new Iterator<StoredRow>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public StoredRow next() {
+                return StoredRow.of(rows.next());
+            }
+        }, null);
+    }
+
+    // Returns up to limit rows of a table, in key order, starting at fromRow
+    // (or at the first row if fromRow is null). Both kinds of tables are read
+    // from a range scan that stops after the last row of the page. Returns
+    // null if the table does not exist.
+    public static List<Row> page(String tableName, String fromRow, int limit, String storageDirectory) {
+        try (TableScan<Row> rows = scan(tableName, fromRow, null, storageDirectory)) {
+            if (rows == null) {
+                return null;
+            }
+            List<Row> page = new ArrayList<>();
+            while (page.size() < limit && rows.hasNext()) {
+                page.add(rows.next());
+            }
+            return page;
+        }
     }
 
     // Counts the number of rows in a table.
     public static int countRows(String tableName, String storageDirectory) {
-        File tableDirectory = new File(storageDirectory + File.separator + tableName);
+        if (tableName.startsWith("pt-")) {
+            Lock lock = tableLock(tableName).readLock();
+            lock.lock();
+            try {
+                StorageEngine storage = storage(tableName, storageDirectory);
+                return storage == null ? -1 : storage.count();
+            } finally {
+                lock.unlock();
+            }
+        }
+        Map<String, Row> rowsMap = tables.get(tableName);
+        return rowsMap == null ? -1 : rowsMap.size();
+    }
+
+    // Returns the names of the persistent tables in the storage directory.
+    public static List<String> persistentTableNames(String storageDirectory) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(storageDirectory), Files::isDirectory)) {
+            for (Path dir : dirs) {
+                names.add(KeyEncoder.decode(dir.getFileName().toString()));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
 
-        if (!tableDirectory.exists() || !tableDirectory.isDirectory()) {
-            return -1;
+    // Sets how durable the writes to a persistent table are: "none", "write" or
+    // "sync" (see TableConfig.Durability). The table is created if necessary.
+    public static void setDurability(String tableName, String durability, String storageDirectory)
+            throws IOException {
+        TableConfig.Durability value = TableConfig.Durability.valueOf(durability.trim().toUpperCase());
+        createTable(tableName, storageDirectory);
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            if (!(storage instanceof LogStructuredStorage)) {
+                throw new IOException("Table " + tableName + " does not support durability settings");
+            }
+            ((LogStructuredStorage) storage).config().setDurability(value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Turns memory-mapping of a persistent table's segments on or off. The
+    // table is created if necessary.
+    public static void setMapped(String tableName, boolean mapped, String storageDirectory) throws IOException {
+        createTable(tableName, storageDirectory);
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            if (!(storage instanceof LogStructuredStorage)) {
+                throw new IOException("Table " + tableName + " does not support memory-mapping");
+            }
+            ((LogStructuredStorage) storage).setMapped(mapped);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets how long, in milliseconds, the rows of a table are kept after they
+    // were last written; 0 keeps them until they are deleted. Rows that were
+    // written with a TTL of their own keep it. A table that is renamed loses
+    // its TTL, since jobs keep the tables they want by renaming them. The
+    // table is created if necessary.
+    public static void setTtl(String tableName, long ttl, String storageDirectory) throws IOException {
+        createTable(tableName, storageDirectory);
+        if (!tableName.startsWith("pt-")) {
+            Map<String, Row> rows = tables.get(tableName);
+            expiries.computeIfAbsent(tableName, name -> new Expiries(null)).setTtl(ttl,
+                    rows == null ? List.of() : rows.keySet(), System.currentTimeMillis());
+            return;
+        }
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            if (!(storage instanceof LogStructuredStorage)) {
+                throw new IOException("Table " + tableName + " does not support TTLs");
+            }
+            ((LogStructuredStorage) storage).config().setTtl(ttl);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        File[] files = tableDirectory.listFiles();
-        if (files == null) {
+    // Returns the TTL of a table, or 0 if it has none. The configuration of a
+    // persistent table that is not open is read without opening it.
+    public static long ttl(String tableName, String storageDirectory) {
+        if (!tableName.startsWith("pt-")) {
+            Expiries tableExpiries = expiries.get(tableName);
+            return tableExpiries == null ? 0 : tableExpiries.ttl();
+        }
+        StorageHandle handle = persistentTables.get(tableName);
+        StorageEngine storage = handle == null ? null : handle.storage();
+        if (storage instanceof LogStructuredStorage) {
+            return ((LogStructuredStorage) storage).config().ttl();
+        }
+        try {
+            return TableConfig.load(tableDirectory(tableName, storageDirectory)).ttl();
+        } catch (IOException e) {
+            e.printStackTrace();
             return 0;
         }
+    }
+
+    // Checks whether rows of a table can expire, i.e. whether the table has a
+    // TTL or rows with deadlines of their own.
+    static boolean expires(String tableName, String storageDirectory) {
+        return expiries.containsKey(tableName) || ttl(tableName, storageDirectory) > 0
+                || (tableName.startsWith("pt-")
+                        && Files.exists(tableDirectory(tableName, storageDirectory).resolve(Expiries.FILE_NAME)));
+    }
 
-        return files.length;
+    // Removes the rows of a table whose deadlines have passed and, for a
+    // persistent table with a TTL, the rows that have not been written for
+    // longer than that. Rows that are written again meanwhile are kept.
+    // Returns the number of rows removed.
+    static int expireRows(String tableName, long now, String storageDirectory) throws IOException {
+        if (!tableName.startsWith("pt-")) {
+            Expiries tableExpiries = expiries.get(tableName);
+            Map<String, Row> rows = tables.get(tableName);
+            if (tableExpiries == null || rows == null) {
+                return 0;
+            }
+            int removed = 0;
+            for (String key : tableExpiries.takeDue(now)) {
+                if (rows.remove(key) != null) {
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        Lock lock = tableLock(tableName).readLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            if (storage == null) {
+                return 0;
+            }
+            Expiries tableExpiries = expiries.get(tableName);
+            int removed = 0;
+            if (tableExpiries != null) {
+                removed += storage.deleteAll(tableExpiries.takeDue(now), now);
+            }
+            long ttl = storage instanceof LogStructuredStorage ? ((LogStructuredStorage) storage).config().ttl() : 0;
+            if (ttl > 0) {
+                List<String> keys = new ArrayList<>();
+                for (String key : storage.writtenBefore(now - ttl)) {
+                    // a row's own TTL takes precedence over the table's
+                    if (tableExpiries == null || !tableExpiries.hasDeadline(key)) {
+                        keys.add(key);
+                    }
+                }
+                removed += storage.deleteAll(keys, now - ttl);
+            }
+            if (tableExpiries != null) {
+                tableExpiries.save();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops a table with a TTL that has had no rows, and no writes, for
+    // longer than its TTL, together with its settings. Returns true if the
+    // table was dropped.
+    static boolean dropIfIdle(String tableName, long now, String storageDirectory) throws IOException {
+        if (!tableName.startsWith("pt-")) {
+            Expiries tableExpiries = expiries.get(tableName);
+            if (tableExpiries == null || tableExpiries.ttl() <= 0) {
+                return false;
+            }
+            // a write records itself in the expiries before it looks the
+            // table up, so it either keeps the table or creates a new one
+            boolean[] dropped = new boolean[1];
+            tables.computeIfPresent(tableName, (name, rows) -> {
+                dropped[0] = rows.isEmpty() && tableExpiries.lastWrite() + tableExpiries.ttl() <= now;
+                return dropped[0] ? null : rows;
+            });
+            if (dropped[0]) {
+                expiries.remove(tableName, tableExpiries);
+            }
+            return dropped[0];
+        }
+
+        Lock lock = tableLock(tableName).writeLock();
+        lock.lock();
+        try {
+            StorageEngine storage = storage(tableName, storageDirectory);
+            if (!(storage instanceof LogStructuredStorage)) {
+                return false;
+            }
+            long ttl = ((LogStructuredStorage) storage).config().ttl();
+            if (ttl <= 0 || storage.count() > 0) {
+                return false;
+            }
+            // a table whose TTL was set after its last write counts from then
+            long configured = Files.getLastModifiedTime(
+                    tableDirectory(tableName, storageDirectory).resolve(TableConfig.FILE_NAME)).toMillis();
+            if (Math.max(storage.lastWriteTime(), configured) + ttl > now) {
+                return false;
+            }
+            return deletePersistentTable(tableName, storageDirectory);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checks whether a table exists, either in memory or on disk.
+    public static boolean exists(String tableName, String storageDirectory) {
+        return tables.containsKey(tableName) || Files.isDirectory(tableDirectory(tableName, storageDirectory));
+    }
+
+    // Renames a persistent table. The storage engine is retired before the
+    // directory is moved, so that scans under way finish reading the old
+    // one (see StorageHandle), and reopened under the new name on next use;
+    // a memory-mapped table is reopened right away, so that its segments
+    // are mapped again before the first lookup. The stripes of both names
+    // are locked in stripe order, so that two renames cannot deadlock.
+    public static void renamePersistentTable(String oldName, String newName, String storageDirectory)
+            throws IOException {
+        List<ReentrantReadWriteLock> locks = tableLocks.ordered(oldName, newName);
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            StorageHandle handle = persistentTables.remove(oldName);
+            StorageEngine storage = handle == null ? null : handle.storage();
+            if (handle != null) {
+                handle.retire();
+            }
+            expiries.remove(oldName);
+            Files.move(tableDirectory(oldName, storageDirectory), tableDirectory(newName, storageDirectory));
+            TableConfig config = TableConfig.load(tableDirectory(newName, storageDirectory));
+            if (config.ttl() > 0) {
+                config.setTtl(0);
+            }
+            if (storage instanceof LogStructuredStorage && ((LogStructuredStorage) storage).isMapped()) {
+                storage(newName, storageDirectory);
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).writeLock().unlock();
+            }
+        }
+    }
+
+    // Deletes a persistent table together with all of its files; scans under
+    // way finish reading them first, as for renamePersistentTable(). Returns
+    // false if the table does not exist.
+    public static boolean deletePersistentTable(String tableName, String storageDirectory) throws IOException {
+        Lock lock = tableLock(tableName).writeLock();
+        lock.lock();
+        try {
+            StorageHandle handle = persistentTables.remove(tableName);
+            if (handle != null) {
+                handle.retire();
+            }
+            expiries.remove(tableName);
+            Path tablePath = tableDirectory(tableName, storageDirectory);
+            if (!Files.exists(tablePath)) {
+                return false;
+            }
+            try (java.util.stream.Stream<Path> paths = Files.walk(tablePath)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
-}
\ No newline at end of file
+}
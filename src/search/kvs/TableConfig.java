@@ -0,0 +1,96 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The TableConfig holds the settings of one persistent table. It is stored as
+ * a properties file in the table's directory, so it moves along with the
+ * table when the table is renamed.
+ */
+class TableConfig {
+    static final String FILE_NAME = "table.properties";
+
+    /**
+     * How far a put has to get before it is acknowledged. NONE keeps the row
+     * in the memtable only, so it is lost if the worker dies before the next
+     * flush. WRITE hands the row to the operating system, which survives a
+     * crash of the worker but not of the machine. SYNC waits until the row has
+     * been fsync'd.
+     */
+    enum Durability {
+        NONE, WRITE, SYNC
+    }
+
+    static final Durability DEFAULT_DURABILITY = Durability
+            .valueOf(System.getProperty("kvs.durability", "write").toUpperCase());
+    static final boolean DEFAULT_MAPPED = Boolean.getBoolean("kvs.mmap");
+
+    private final Path path;
+    private final Properties properties = new Properties();
+
+    private TableConfig(Path path) {
+        this.path = path;
+    }
+
+    // Reads the configuration of the table in the given directory. Settings
+    // that are not in the file take their default value.
+    static TableConfig load(Path tableDirectory) throws IOException {
+        TableConfig config = new TableConfig(tableDirectory.resolve(FILE_NAME));
+        if (Files.exists(config.path)) {
+            try (InputStream in = Files.newInputStream(config.path)) {
+                config.properties.load(in);
+            }
+        }
+        return config;
+    }
+
+    synchronized Durability durability() {
+        String value = properties.getProperty("durability");
+        return value == null ? DEFAULT_DURABILITY : Durability.valueOf(value.toUpperCase());
+    }
+
+    synchronized void setDurability(Durability durability) throws IOException {
+        properties.setProperty("durability", durability.name().toLowerCase());
+        save();
+    }
+
+    // Whether the table's SSTables are memory-mapped. Meant for tables that are
+    // read far more often than they are written.
+    synchronized boolean mapped() {
+        String value = properties.getProperty("mmap");
+        return value == null ? DEFAULT_MAPPED : Boolean.parseBoolean(value);
+    }
+
+    synchronized void setMapped(boolean mapped) throws IOException {
+        properties.setProperty("mmap", String.valueOf(mapped));
+        save();
+    }
+
+    // How long, in milliseconds, a row is kept after it was last written; 0
+    // keeps rows until they are deleted (see Reaper).
+    synchronized long ttl() {
+        String value = properties.getProperty("ttl");
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    synchronized void setTtl(long ttl) throws IOException {
+        properties.setProperty("ttl", String.valueOf(ttl));
+        save();
+    }
+
+    // Writes the file under a temporary name first, so a crash cannot leave a
+    // half-written configuration behind.
+    private void save() throws IOException {
+        Path temporary = path.resolveSibling(FILE_NAME + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            properties.store(out, null);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
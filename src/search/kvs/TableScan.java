@@ -0,0 +1,58 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A TableScan iterates over the rows of a table, as returned by Table.scan()
+ * and Table.scanStored(). The scan of a persistent table pins the table's
+ * StorageHandle until its rows run out or it is closed, so that renaming or
+ * deleting the table does not close its storage while the scan is still
+ * reading it. No lock is held meanwhile, so a scan may be read as slowly as
+ * its client likes, and from any thread. Callers that may stop early must
+ * close the scan.
+ */
+public class TableScan<T> implements Iterator<T>, AutoCloseable {
+    private final Iterator<T> rows;
+    private final StorageHandle handle; // The handle to unpin at the end, or null.
+    private boolean closed;
+
+    TableScan(Iterator<T> rows, StorageHandle handle) {
+        this.rows = rows;
+        this.handle = handle;
+    }
+
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (rows.hasNext()) {
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    public T next() {
+        if (closed) {
+            throw new NoSuchElementException();
+        }
+        return rows.next();
+    }
+
+    // Ends the scan and unpins its handle; later calls do nothing.
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (handle != null) {
+            try {
+                handle.unpin();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package search.kvs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * TableStress hammers Table from many threads of one process, without a
+ * worker around it, to show what the striped table locks buy and that they
+ * hold up:
+ *
+ * 1. Puts and gets of persistent tables, with every thread on the same table
+ * (one stripe) or on a table of its own (different stripes), once through
+ * the striped locks alone and once under one lock for the whole class, which
+ * is how Table used to be locked.
+ *
+ * 2. Renames of two pairs of tables whose names fall on the same two stripes
+ * in opposite order, so that two renames that took their locks by name
+ * rather than by stripe would deadlock, while other threads get and scan the
+ * same tables and put rows into tables on the same stripes. The run fails if
+ * any thread makes no progress for STALL_MILLIS (or the whole run, if that
+ * is shorter), if the JVM finds a deadlock, or if a scan fails or returns the
+ * wrong number of rows.
+ *
+ * Usage: TableStress [storageDirectory [threads [seconds]]]
+ */
+public class TableStress {
+    private static final long STALL_MILLIS = 10000;
+    private static final int ROWS = 2000;
+    private static final Object GLOBAL = new Object();
+
+    private final String storageDirectory;
+    private final int threads;
+    private final long millis;
+
+    TableStress(String storageDirectory, int threads, long millis) {
+        this.storageDirectory = storageDirectory;
+        this.threads = threads;
+        this.millis = millis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String storageDirectory = args.length > 0 ? args[0]
+                : Files.createTempDirectory("table-stress").toString();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        TableStress stress = new TableStress(storageDirectory, threads, seconds * 1000);
+        System.out.println("Storage in " + storageDirectory + ", " + threads + " threads, " + seconds
+                + " s per run");
+
+        for (boolean sameTable : new boolean[] { true, false }) {
+            for (boolean global : new boolean[] { true, false }) {
+                long ops = stress.putsAndGets(sameTable, global);
+                System.out.printf("%-16s %-14s %,12d ops/s%n", sameTable ? "same stripe" : "different stripes",
+                        global ? "global lock" : "striped locks", ops * 1000 / stress.millis);
+            }
+        }
+
+        boolean ok = stress.renames();
+        System.out.println(ok ? "Renames: no deadlock, no failed scans" : "Renames: FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // Runs puts and gets from all threads for the length of a run and returns
+    // how many there were.
+    long putsAndGets(boolean sameTable, boolean global) throws InterruptedException {
+        List<String> names = distinctStripes("pt-stress-" + (sameTable ? "same" : "own") + (global ? "g" : "s"),
+                sameTable ? 1 : threads);
+        for (String name : names) {
+            Table.createTable(name, storageDirectory);
+        }
+        AtomicLong ops = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String table = names.get(sameTable ? 0 : t);
+            int thread = t;
+            workers.add(new Thread(() -> {
+                long done = 0;
+                for (int i = 0; !stop.get(); i++) {
+                    String key = "row" + thread + "-" + (i % ROWS);
+                    Row row = new Row(key);
+                    row.put("value", "v" + i);
+                    if (global) {
+                        synchronized (GLOBAL) {
+                            Table.putRow(table, key, row, storageDirectory);
+                        }
+                        synchronized (GLOBAL) {
+                            Table.getRow(table, key, storageDirectory);
+                        }
+                    } else {
+                        Table.putRow(table, key, row, storageDirectory);
+                        Table.getRow(table, key, storageDirectory);
+                    }
+                    done += 2;
+                }
+                ops.addAndGet(done);
+            }));
+        }
+        workers.forEach(Thread::start);
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.get();
+    }
+
+    // Renames a -> b and back on one thread and c -> d and back on another,
+    // where a and d share a stripe and so do b and c, while the other threads
+    // read and scan the four tables and write next to them. Returns false if
+    // anything stalled or failed.
+    boolean renames() throws Exception {
+        String[] names = crossedPairs();
+        String a = names[0], b = names[1], c = names[2], d = names[3];
+        System.out.println("Renaming " + a + " <-> " + b + " and " + c + " <-> " + d);
+        for (String name : new String[] { a, c }) {
+            Table.createTable(name, storageDirectory);
+            for (int i = 0; i < ROWS; i++) {
+                Row row = new Row("row" + i);
+                row.put("value", "v" + i);
+                Table.putRow(name, row.key(), row, storageDirectory);
+            }
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong failures = new AtomicLong();
+        ConcurrentHashMap<Thread, AtomicLong> progress = new ConcurrentHashMap<>();
+        List<Thread> workers = new ArrayList<>();
+        workers.add(renamer(a, b, stop, failures, progress));
+        workers.add(renamer(c, d, stop, failures, progress));
+        String[] neighbours = { neighbour(a), neighbour(c) };
+        for (String name : neighbours) {
+            Table.createTable(name, storageDirectory);
+        }
+        for (int t = 0; t < Math.max(2, threads - 2); t++) {
+            String[] pair = t % 2 == 0 ? new String[] { a, b } : new String[] { c, d };
+            workers.add(reader(pair, neighbours[t % 2], t, stop, failures, progress));
+        }
+        // threads that are stuck must not keep the JVM from exiting
+        workers.forEach(worker -> worker.setDaemon(true));
+        workers.forEach(Thread::start);
+
+        boolean ok = true;
+        long end = System.currentTimeMillis() + millis;
+        long interval = Math.min(STALL_MILLIS, millis);
+        long renames = 0;
+        while (System.currentTimeMillis() < end && ok) {
+            long[] before = counts(workers, progress);
+            Thread.sleep(interval);
+            long[] after = counts(workers, progress);
+            for (int i = 0; i < workers.size(); i++) {
+                if (after[i] == before[i]) {
+                    System.out.println(workers.get(i).getName() + " made no progress for " + interval + " ms");
+                    ok = false;
+                }
+            }
+            long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+            if (deadlocked != null) {
+                System.out.println("Deadlocked threads: " + deadlocked.length);
+                ok = false;
+            }
+            renames = after[0] + after[1];
+        }
+        stop.set(true);
+        long deadline = System.currentTimeMillis() + STALL_MILLIS;
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        System.out.println(renames + " renames, " + failures.get() + " failures");
+        return ok && failures.get() == 0;
+    }
+
+    private Thread renamer(String from, String to, AtomicBoolean stop, AtomicLong failures,
+            ConcurrentHashMap<Thread, AtomicLong> progress) {
+        Thread thread = new Thread(() -> {
+            AtomicLong done = progress.get(Thread.currentThread());
+            String source = from, target = to;
+            while (!stop.get()) {
+                try {
+                    Table.renamePersistentTable(source, target, storageDirectory);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+                String swap = source;
+                source = target;
+                target = swap;
+                done.incrementAndGet();
+            }
+        }, "rename " + from);
+        progress.put(thread, new AtomicLong());
+        return thread;
+    }
+
+    // Reads and scans whichever of two names a table has at the moment, and
+    // writes to another table on the same stripe as one of them.
+    private Thread reader(String[] pair, String neighbour, int number, AtomicBoolean stop, AtomicLong failures,
+            ConcurrentHashMap<Thread, AtomicLong> progress) {
+        Thread thread = new Thread(() -> {
+            AtomicLong done = progress.get(Thread.currentThread());
+            for (int i = 0; !stop.get(); i++) {
+                String table = pair[i % 2];
+                try {
+                    if (i % 50 == 0) {
+                        try (TableScan<Row> rows = Table.scan(table, "row", "row:", storageDirectory)) {
+                            if (rows != null) {
+                                int count = 0;
+                                while (rows.hasNext()) {
+                                    rows.next();
+                                    count++;
+                                }
+                                if (count != ROWS) {
+                                    System.out.println("Scan of " + table + " returned " + count + " rows");
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        }
+                    } else if (i % 2 == 0) {
+                        Table.getRow(table, "row" + (i % ROWS), storageDirectory);
+                    } else {
+                        Row row = new Row("row" + number + "-" + (i % ROWS));
+                        row.put("value", "v" + i);
+                        Table.putRow(neighbour, row.key(), row, storageDirectory);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+                done.incrementAndGet();
+            }
+        }, "reader " + number);
+        progress.put(thread, new AtomicLong());
+        return thread;
+    }
+
+    private static long[] counts(List<Thread> workers, ConcurrentHashMap<Thread, AtomicLong> progress) {
+        long[] counts = new long[workers.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = progress.get(workers.get(i)).get();
+        }
+        return counts;
+    }
+
+    // Returns count table names with the given prefix that are on different
+    // stripes.
+    private static List<String> distinctStripes(String prefix, int count) {
+        List<String> names = new ArrayList<>();
+        Set<ReadWriteLock> used = new HashSet<>();
+        for (int i = 0; names.size() < count; i++) {
+            String name = prefix + "-" + i;
+            if (used.add(Table.tableLock(name))) {
+                names.add(name);
+            }
+            if (i > 100000) {
+                throw new IllegalStateException("Fewer than " + count + " stripes");
+            }
+        }
+        return names;
+    }
+
+    // Returns another table name on the same stripe as the given one.
+    private static String neighbour(String name) {
+        for (int i = 0;; i++) {
+            String other = "pt-stress-neighbour-" + i;
+            if (Table.tableLock(other) == Table.tableLock(name)) {
+                return other;
+            }
+        }
+    }
+
+    // Returns names a < b and c < d, where a and d are on one stripe and b
+    // and c on another, so that locking by name takes the two stripes in
+    // opposite order for the renames of a and of c.
+    private static String[] crossedPairs() {
+        List<String> candidates = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            candidates.add("pt-stress-rename-" + i);
+        }
+        for (String a : candidates) {
+            for (String b : candidates) {
+                ReadWriteLock first = Table.tableLock(a), second = Table.tableLock(b);
+                if (a.compareTo(b) >= 0 || first == second) {
+                    continue;
+                }
+                for (String c : candidates) {
+                    if (Table.tableLock(c) != second || c.equals(b)) {
+                        continue;
+                    }
+                    for (String d : candidates) {
+                        if (Table.tableLock(d) == first && c.compareTo(d) < 0 && !d.equals(a)) {
+                            return new String[] { a, b, c, d };
+                        }
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("No crossed pairs of table names");
+    }
+}
@@ -0,0 +1,196 @@
+package search.kvs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * W-TinyLFU eviction. New entries go into a small LRU window (1% of the
+ * weight); entries that fall out of the window only enter the main area if
+ * they have been requested more often than the entry they would displace.
+ * The main area is a segmented LRU: entries start in the probation segment
+ * and move to the protected segment (80% of the main area) on their next hit.
+ *
+ * Request frequencies are estimated with a count-min sketch of 4-bit counters
+ * that counts misses as well as hits, so a key that keeps being asked for is
+ * admitted even if it is evicted again and again. All counters are halved
+ * periodically, so that keys that were popular a long time ago fade out.
+ * This keeps one-off lookups, such as the rows read by a large scan, from
+ * flushing the frequently read rows out of the cache.
+ */
+class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+    // Rough size of a cached row, used to size the frequency sketch.
+    private static final int TYPICAL_WEIGHT = 512;
+
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+    private final LinkedHashMap<K, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Integer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Integer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+    private final FrequencySketch sketch;
+
+    TinyLfuPolicy(long maxWeight) {
+        this.windowMax = Math.max(1, maxWeight / 100);
+        this.mainMax = maxWeight - windowMax;
+        this.protectedMax = mainMax * 4 / 5;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(64, maxWeight / TYPICAL_WEIGHT)));
+    }
+
+    public void recordHit(K key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedSegment.get(key) != null) {
+            return;
+        }
+        Integer weight = probation.remove(key);
+        if (weight != null) {
+            probationWeight -= weight;
+            protectedSegment.put(key, weight);
+            protectedWeight += weight;
+            // Demote the least recently used protected entries to make room.
+            Iterator<Map.Entry<K, Integer>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedWeight > protectedMax && eldest.hasNext()) {
+                Map.Entry<K, Integer> entry = eldest.next();
+                if (entry.getKey().equals(key)) {
+                    break;
+                }
+                eldest.remove();
+                protectedWeight -= entry.getValue();
+                probation.put(entry.getKey(), entry.getValue());
+                probationWeight += entry.getValue();
+            }
+        }
+    }
+
+    public void recordMiss(K key) {
+        sketch.increment(key);
+    }
+
+    public void add(K key, int weight, List<K> evicted) {
+        window.put(key, weight);
+        windowWeight += weight;
+        Iterator<Map.Entry<K, Integer>> eldest = window.entrySet().iterator();
+        while (windowWeight > windowMax && eldest.hasNext()) {
+            Map.Entry<K, Integer> entry = eldest.next();
+            eldest.remove();
+            windowWeight -= entry.getValue();
+            probation.put(entry.getKey(), entry.getValue());
+            probationWeight += entry.getValue();
+            evictFromMain(entry.getKey(), evicted);
+        }
+    }
+
+    // Shrinks the main area back to its limit after a candidate has moved in
+    // from the window. The candidate stays only if it is requested more often
+    // than the entry that would be evicted for it.
+    private void evictFromMain(K candidate, List<K> evicted) {
+        while (probationWeight + protectedWeight > mainMax) {
+            LinkedHashMap<K, Integer> segment = probation.isEmpty() ? protectedSegment : probation;
+            K victim = segment.keySet().iterator().next();
+            if (candidate != null && !candidate.equals(victim)
+                    && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                victim = candidate;
+                candidate = null;
+            }
+            remove(victim);
+            evicted.add(victim);
+        }
+    }
+
+    public void remove(K key) {
+        Integer weight = window.remove(key);
+        if (weight != null) {
+            windowWeight -= weight;
+            return;
+        }
+        weight = probation.remove(key);
+        if (weight != null) {
+            probationWeight -= weight;
+            return;
+        }
+        weight = protectedSegment.remove(key);
+        if (weight != null) {
+            protectedWeight -= weight;
+        }
+    }
+
+    public long weight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    /**
+     * A count-min sketch with four 4-bit counters per key. Once the number of
+     * increments reaches ten times the number of counters per row, every
+     * counter is halved.
+     */
+    static class FrequencySketch {
+        private static final int[] SEEDS = { 0x97cb3127, 0xb1c55f2d, 0xc2b2ae35, 0x85ebca6b };
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedKeys) {
+            int counters = Integer.highestOneBit(Math.max(16, expectedKeys - 1) << 1);
+            // 16 counters per long.
+            this.table = new long[counters / 16];
+            this.mask = counters - 1;
+            this.sampleSize = 10 * counters;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                added |= incrementAt(index(hash, i));
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = index(hash, i);
+                frequency = Math.min(frequency, (int) (table[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        private boolean incrementAt(int counter) {
+            int shift = (counter & 15) << 2;
+            long value = (table[counter >>> 4] >>> shift) & 15;
+            if (value == 15) {
+                return false;
+            }
+            table[counter >>> 4] += 1L << shift;
+            return true;
+        }
+
+        private int index(int hash, int i) {
+            int h = hash * SEEDS[i];
+            h ^= h >>> 15;
+            return h & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45d9f3b;
+            return hash ^ (hash >>> 16);
+        }
+
+        // Halves every counter.
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+}
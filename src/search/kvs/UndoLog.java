@@ -0,0 +1,233 @@
+package search.kvs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The UndoLog of a persistent table keeps what it takes to read the table as
+ * it was when a snapshot was opened, while writers keep going. A snapshot is
+ * the timestamp of a point between two writes. As long as a snapshot is open,
+ * every write first records the old values of the columns it changes, with
+ * its timestamp: a DELTA records the columns it sets, a PUT the columns in
+ * which the old and the new row differ, and a DELETE the whole row. A write
+ * that creates a row records that the row did not exist. A read as of a
+ * snapshot takes the latest version of a row and undoes the writes that came
+ * after the snapshot, newest first; rows that were not written since the
+ * snapshot cost nothing extra.
+ *
+ * Undo records are only kept in memory, as no snapshot survives a restart.
+ * Records that are older than the oldest open snapshot are dropped whenever a
+ * snapshot goes away, and all of them when the last one does. A snapshot goes
+ * away when it is released, when it has not been read for LEASE milliseconds,
+ * or, the oldest first, when the undo records of its table take up more than
+ * MAX_BYTES. Reads as of a snapshot that is gone fail with a
+ * SnapshotTooOldException.
+ *
+ * Records are added while the table's storage holds its lock, and before the
+ * write they belong to is applied, so that a reader that sees the write also
+ * sees its record; see LogStructuredStorage.get(String, long).
+ */
+class UndoLog {
+    static final long LEASE = Long.getLong("kvs.snapshotLease", 10L * 60 * 1000);
+    static final long MAX_BYTES = Long.getLong("kvs.snapshotMemory", 64L * 1024 * 1024);
+
+    /**
+     * The old values of the columns that one write changed; a null value
+     * means the column did not exist. If columns is null, the row did not
+     * exist.
+     */
+    private static class Undo {
+        final long timestamp;
+        final Map<String, byte[]> columns;
+        final int size;
+
+        Undo(long timestamp, Map<String, byte[]> columns, int size) {
+            this.timestamp = timestamp;
+            this.columns = columns;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The undo records of one row, oldest first. appended() counts every
+     * record ever added, so that a reader can tell whether the row was
+     * written while it was reading it.
+     */
+    static class Chain {
+        private final List<Undo> undos = new ArrayList<>();
+        private long appended;
+
+        synchronized long appended() {
+            return appended;
+        }
+
+        synchronized long newest() {
+            return undos.isEmpty() ? -1 : undos.get(undos.size() - 1).timestamp;
+        }
+
+        private synchronized void add(Undo undo) {
+            undos.add(undo);
+            appended++;
+        }
+
+        // Drops the records at or before the given time and returns their
+        // size.
+        private synchronized long dropThrough(long timestamp) {
+            long dropped = 0;
+            Iterator<Undo> it = undos.iterator();
+            while (it.hasNext()) {
+                Undo undo = it.next();
+                if (undo.timestamp > timestamp) {
+                    break;
+                }
+                dropped += undo.size;
+                it.remove();
+            }
+            return dropped;
+        }
+
+        private synchronized boolean isEmpty() {
+            return undos.isEmpty();
+        }
+
+        // Turns the given version of a row (null if it does not exist) into
+        // the version as of the snapshot, by undoing the writes after it.
+        synchronized Row undo(String key, Row current, long snapshot) {
+            Row row = current;
+            for (int i = undos.size() - 1; i >= 0 && undos.get(i).timestamp > snapshot; i--) {
+                Map<String, byte[]> columns = undos.get(i).columns;
+                if (columns == null) {
+                    row = null;
+                    continue;
+                }
+                Row older = new Row(key);
+                if (row != null) {
+                    for (String column : row.columns()) {
+                        if (!columns.containsKey(column)) {
+                            older.put(column, row.getBytes(column));
+                        }
+                    }
+                }
+                for (Map.Entry<String, byte[]> column : columns.entrySet()) {
+                    if (column.getValue() != null) {
+                        older.put(column.getKey(), column.getValue());
+                    }
+                }
+                row = older;
+            }
+            return row;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Chain> chains = new ConcurrentSkipListMap<>();
+    // The open snapshots, and when each of them was last read.
+    private final ConcurrentSkipListMap<Long, Long> snapshots = new ConcurrentSkipListMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+
+    // Whether writes have to be recorded, i.e. whether a snapshot is open.
+    boolean recording() {
+        return !snapshots.isEmpty();
+    }
+
+    void open(long snapshot, long now) {
+        snapshots.put(snapshot, now);
+    }
+
+    // Releases a snapshot; returns false if it was not open. The caller
+    // drops the records it no longer needs with prune().
+    boolean release(long snapshot) {
+        return snapshots.remove(snapshot) != null;
+    }
+
+    // Releases the snapshots that have not been read for LEASE milliseconds,
+    // and returns how many there were.
+    int expire(long now) {
+        int expired = 0;
+        for (Map.Entry<Long, Long> snapshot : snapshots.entrySet()) {
+            if (snapshot.getValue() + LEASE < now && snapshots.remove(snapshot.getKey(), snapshot.getValue())) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    // Checks that a snapshot is still open, and extends its lease.
+    void check(long snapshot) throws SnapshotTooOldException {
+        if (snapshots.replace(snapshot, System.currentTimeMillis()) == null) {
+            throw new SnapshotTooOldException(snapshot);
+        }
+    }
+
+    // Records the old values of the columns that a write of the given kind
+    // changes. before is the latest version of the row, or null if it does
+    // not exist; written is the row or the columns being written. If the
+    // records take up too much memory, the oldest snapshots are given up.
+    void record(String key, long timestamp, Row before, Row written, byte kind) {
+        Map<String, byte[]> columns = null;
+        int size = 32 + key.length();
+        if (before != null) {
+            columns = new HashMap<>();
+            Set<String> names = new TreeSet<>(before.columns());
+            if (kind == LogSegment.DELTA) {
+                names = written.columns();
+            } else if (kind == LogSegment.PUT) {
+                names.addAll(written.columns());
+            }
+            for (String name : names) {
+                byte[] old = before.getBytes(name);
+                if (kind == LogSegment.PUT && Arrays.equals(old, written.getBytes(name))) {
+                    continue;
+                }
+                columns.put(name, old);
+                size += name.length() + (old == null ? 0 : old.length);
+            }
+        }
+        chains.computeIfAbsent(key, k -> new Chain()).add(new Undo(timestamp, columns, size));
+        while (bytes.addAndGet(size) > MAX_BYTES && !snapshots.isEmpty()) {
+            snapshots.pollFirstEntry();
+            size = 0;
+            prune();
+        }
+    }
+
+    // Drops the records that no open snapshot needs. Must be called while
+    // holding the storage's lock, so that no record is added to a chain that
+    // is being dropped.
+    void prune() {
+        long oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+        for (Map.Entry<String, Chain> entry : chains.entrySet()) {
+            Chain chain = entry.getValue();
+            bytes.addAndGet(-chain.dropThrough(oldest));
+            if (chain.isEmpty()) {
+                chains.remove(entry.getKey(), chain);
+            }
+        }
+    }
+
+    // Returns the undo records of a row, or null if it has none.
+    Chain chain(String key) {
+        return chains.get(key);
+    }
+
+    // Returns the smallest key after the given one (or at or after startRow,
+    // if after is null) that has undo records and is before endRowExclusive,
+    // or null if there is none.
+    String nextKey(String after, String startRow, String endRowExclusive) {
+        String key = after != null ? chains.higherKey(after)
+                : startRow != null ? chains.ceilingKey(startRow) : firstKey();
+        return key == null || (endRowExclusive != null && key.compareTo(endRowExclusive) >= 0) ? null : key;
+    }
+
+    private String firstKey() {
+        Map.Entry<String, Chain> first = chains.firstEntry();
+        return first == null ? null : first.getKey();
+    }
+}
@@ -1,15 +1,16 @@
 package search.kvs;
 
 import java.io.*;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.locks.Lock;
 
-import search.tools.KeyEncoder;
+import search.tools.HTTP;
 import search.tools.Logger;
+import search.webserver.Request;
+import search.webserver.Response;
 import search.webserver.Server;
 
 /**
@@ -31,6 +32,8 @@ import search.webserver.Server;
  */
 public class Worker extends search.generic.Worker {
 	public static Logger logger = Logger.getLogger(Worker.class);
+	static final int BULK_BATCH_SIZE = Integer.getInteger("kvs.bulkBatchSize", 1000);
+	static final int VIEW_PAGE_SIZE = 10;
 
 	public static void main(String[] args) {
 
@@ -77,6 +80,20 @@ public class Worker extends search.generic.Worker {
 		Server.port(port);
 		startPingThread(ipPort, workerId, port);
 
+		// Start the background thread that compacts the segments of persistent tables.
+		Compactor compactor = new Compactor();
+		compactor.start();
+
+		// Start the background thread that removes rows whose TTL has passed.
+		Reaper reaper = new Reaper(storageDirectory);
+		reaper.start();
+
+		// Start the background thread that moves rows to the workers that own
+		// them on the hash ring. The coordinator knows this worker by its ID
+		// followed by its port.
+		Rebalancer rebalancer = new Rebalancer(workerId + port, ipPort, storageDirectory);
+		rebalancer.start();
+
 		// HTTP GET route for the root. Displays stored tables and their key counts.
 		Server.get("/", (req, res) -> {
 			StringBuilder html = new StringBuilder("<html><body>");
@@ -88,34 +105,30 @@ public class Worker extends search.generic.Worker {
 						.append("<td>").append(Table.tables.get(tableName).size()).append("</td></tr>");
 			}
 
-			try (Stream<Path> paths = Files.walk(Paths.get(storageDirectory), 1)) {
-				paths
-						.filter(Files::isDirectory)
-						.filter(path -> !path.equals(Paths.get(storageDirectory)))
-						.map(path -> path.getFileName().toString())
-						.forEach(tableName -> {
-							try (Stream<Path> filePaths = Files.list(Paths.get(storageDirectory).resolve(tableName))) {
-								long numberOfKeys = filePaths.filter(Files::isRegularFile).count();
-								html.append("<tr><td><a href='/view/").append(tableName).append("'>").append(tableName)
-										.append("</a></td>")
-										.append("<td>").append(numberOfKeys).append("</td></tr>");
-
-							} catch (IOException e) {
-								e.printStackTrace();
-							}
-						});
+			try {
+				for (String tableName : Table.persistentTableNames(storageDirectory)) {
+					html.append("<tr><td><a href='/view/").append(tableName).append("'>").append(tableName)
+							.append("</a></td>")
+							.append("<td>").append(Table.countRows(tableName, storageDirectory)).append("</td></tr>");
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 				res.status(500, "Internal Error - Listing Tables");
 				return null;
 			}
 
-			html.append("</table></body></html>");
+			html.append("</table>");
+			html.append(compactor.status());
+			html.append(reaper.status());
+			if (Table.rowCache() != null) {
+				html.append(Table.rowCache().status());
+			}
+			html.append("</body></html>");
 			res.type("text/html");
 			return html.toString();
 		});
 
-		// HTTP GET route for listing tables.
+		// HTTP GET route for listing tables, in memory and on disk.
 		Server.get("/tables", (req, res) -> {
 
 			String result = "";
@@ -124,6 +137,9 @@ public class Worker extends search.generic.Worker {
 			for (Iterator iter = Table.tables.keySet().iterator(); iter.hasNext(); result = result + next + "\n") {
 				next = (String) iter.next();
 			}
+			for (String name : Table.persistentTableNames(storageDirectory)) {
+				result = result + name + "\n";
+			}
 
 			return result;
 		});
@@ -141,48 +157,35 @@ public class Worker extends search.generic.Worker {
 			StringBuilder html = new StringBuilder("<html><body><h1>Table: ").append(tableName).append("</h1>");
 			html.append("<table border='1'><tr><th>Row Key</th>");
 
-			Map<String, Row> rowsMap = null;
-
-			if (tableName.contains("pt-")) {
-				rowsMap = Table.readRowsFromDirectory(tableName, storageDirectory);
-			} else {
-				rowsMap = Table.tables.get(tableName);
-			}
+			// one more row than is shown, whose key is the cursor for the next
+			// page
+			List<Row> rows = Table.page(tableName, fromRow, VIEW_PAGE_SIZE + 1, storageDirectory);
 
-			if (rowsMap == null) {
+			if (rows == null) {
 				res.status(404, "Table Not Found");
 				return "Table Not Found";
 			}
 
-			List<String> rowKeys = new ArrayList<>(rowsMap.keySet());
-			Collections.sort(rowKeys);
-
-			int startIndex = 0;
-			if (fromRow != null) {
-				startIndex = Collections.binarySearch(rowKeys, fromRow);
-				startIndex = startIndex < 0 ? ~startIndex : startIndex;
-			}
-
-			int endIndex = Math.min(startIndex + 10, rowKeys.size());
+			int endIndex = Math.min(VIEW_PAGE_SIZE, rows.size());
 
 			Set<String> columns = new TreeSet<>();
-			for (int i = startIndex; i < endIndex; i++) {
-				columns.addAll(rowsMap.get(rowKeys.get(i)).columns());
+			for (int i = 0; i < endIndex; i++) {
+				columns.addAll(rows.get(i).columns());
 			}
 			columns.forEach(column -> html.append("<th>").append(column).append("</th>"));
 			html.append("</tr>");
 
-			for (int i = startIndex; i < endIndex; i++) {
-				String rowKey = rowKeys.get(i);
-				Row row = rowsMap.get(rowKey);
-				html.append("<tr><td>").append(rowKey).append("</td>");
+			for (int i = 0; i < endIndex; i++) {
+				Row row = rows.get(i);
+				html.append("<tr><td>").append(row.key()).append("</td>");
 				columns.forEach(column -> html.append("<td>").append(row.get(column)).append("</td>"));
 				html.append("</tr>");
 			}
 
 			html.append("</table>");
-			if (endIndex < rowKeys.size()) {
-				html.append("<a href='/view/").append(tableName).append("?fromRow=").append(rowKeys.get(endIndex))
+			if (endIndex < rows.size()) {
+				html.append("<a href='/view/").append(tableName).append("?fromRow=")
+						.append(java.net.URLEncoder.encode(rows.get(endIndex).key(), StandardCharsets.UTF_8))
 						.append("'>Next</a>");
 			}
 			html.append("</body></html>");
@@ -190,7 +193,22 @@ public class Worker extends search.generic.Worker {
 			return html.toString();
 		});
 
+		// HTTP PUT route for the placement of rows, which the coordinator sends
+		// whenever it changes (see RingView).
+		Server.put("/ring", (req, res) -> {
+			try {
+				rebalancer.install(RingView.parse(req.body()));
+			} catch (IllegalArgumentException e) {
+				res.status(400, "Bad request");
+				return e.getMessage();
+			}
+			return "OK";
+		});
+
 		// HTTP PUT route for inserting or updating a column at a row in a table.
+		// A client that does not know yet that the row has moved to another
+		// worker is served by that worker. With ttl, the row expires that many
+		// milliseconds after this write.
 		Server.put("/data/:table/:row/:column", (req, res) -> {
 			String table = req.params("table");
 			String rowKey = req.params("row");
@@ -201,33 +219,147 @@ public class Worker extends search.generic.Worker {
 				return "Bad request";
 			}
 
+			String owner = req.queryParams("forwarded") == null ? rebalancer.ownerElsewhere(rowKey) : null;
+			if (owner != null) {
+				return forward(req, res, owner);
+			}
+
 			String ifColumn = req.queryParams("ifcolumn");
 			String equals = req.queryParams("equals");
+			long ttl;
+			try {
+				ttl = ttlParam(req);
+			} catch (NumberFormatException e) {
+				res.status(400, "Bad request");
+				return "Bad ttl";
+			}
 
 			// create table if not exist
 			Table.createTable(table, storageDirectory);
-			Row row = Table.getRow(table, rowKey, storageDirectory);
-
-			if (ifColumn != null && equals != null) {
-				byte[] value = row.getBytes(ifColumn);
-				if (value == null || !Arrays.equals(value, equals.getBytes())) {
-					res.status(200, "OK");
-					return "FAIL";
+			// hold the row lock so a conditional put cannot interleave with
+			// other writes or atomic updates of the same row
+			Lock rowLock = Table.rowLock(table, rowKey);
+			rowLock.lock();
+			try {
+				if (ifColumn != null && equals != null) {
+					Row row = Table.getRow(table, rowKey, storageDirectory);
+					byte[] value = row == null ? null : row.getBytes(ifColumn);
+					if (value == null || !Arrays.equals(value, equals.getBytes())) {
+						res.status(200, "OK");
+						return "FAIL";
+					}
 				}
+
+				// only the new column is written; the row is created if it
+				// does not exist
+				Table.putColumn(table, rowKey, column, req.bodyAsBytes(), ttl, storageDirectory);
+			} finally {
+				rowLock.unlock();
 			}
 
-			// create row if not exist
-			if (row == null) {
-				row = new Row(rowKey);
+			res.status(200, "OK");
+			return "OK";
+		});
+
+		// HTTP POST route for updating a column atomically. op=cas sets the
+		// column to a new value if it holds an expected one: the body is the
+		// expected value followed by the new one, and expectedLength is the
+		// length of the expected value, or -1 if the column must not exist.
+		// op=increment adds the integer in the body to the column, op=add adds
+		// the decimal number in the body, and both answer with the new value;
+		// a column that does not exist counts as 0. op=append appends the body
+		// to the column. The row's lock is held from the read to the write, so
+		// that these updates and all other writes of the row are applied one
+		// at a time. The new value is copied to the row's other replicas once
+		// the lock is released, so that rows on the same stripe do not wait
+		// for the network; if two updates of a row race, a replica may keep
+		// the older value until a read repairs it.
+		Server.post("/data/:table/:row/:column", (req, res) -> {
+			String table = req.params("table");
+			String rowKey = req.params("row");
+			String column = req.params("column");
+			String op = req.queryParams("op");
+
+			if (table == null || rowKey == null || column == null || op == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+
+			String owner = req.queryParams("forwarded") == null ? rebalancer.ownerElsewhere(rowKey) : null;
+			if (owner != null) {
+				return forward(req, res, owner);
 			}
-			row.put(column, req.bodyAsBytes());
-			Table.putRow(table, rowKey, row, storageDirectory);
 
+			long ttl;
+			int expectedLength;
+			try {
+				ttl = ttlParam(req);
+				String length = req.queryParams("expectedLength");
+				expectedLength = length == null ? -1 : Integer.parseInt(length);
+			} catch (NumberFormatException e) {
+				res.status(400, "Bad request");
+				return "Bad parameter";
+			}
+			byte[] body = req.bodyAsBytes();
+			if (body == null) {
+				body = new byte[0];
+			}
+
+			Table.createTable(table, storageDirectory);
+			byte[] updated;
+			Lock rowLock = Table.rowLock(table, rowKey);
+			rowLock.lock();
+			try {
+				Row row = Table.getRow(table, rowKey, storageDirectory);
+				byte[] current = row == null ? null : row.getBytes(column);
+				switch (op) {
+				case "cas":
+					if (expectedLength > body.length) {
+						res.status(400, "Bad request");
+						return "Bad expectedLength";
+					}
+					byte[] expected = expectedLength < 0 ? null : Arrays.copyOf(body, expectedLength);
+					if (!Arrays.equals(current, expected)) {
+						res.status(409, "Conflict");
+						return "FAIL";
+					}
+					updated = Arrays.copyOfRange(body, Math.max(expectedLength, 0), body.length);
+					break;
+				case "increment":
+				case "add":
+					try {
+						updated = addNumbers(current, body, op.equals("increment"));
+					} catch (NumberFormatException | ArithmeticException e) {
+						res.status(400, "Bad request");
+						return "FAIL " + e.getMessage();
+					}
+					break;
+				case "append":
+					updated = current == null ? body : Arrays.copyOf(current, current.length + body.length);
+					System.arraycopy(body, 0, updated, updated.length - body.length, body.length);
+					break;
+				default:
+					res.status(400, "Bad request");
+					return "Unknown op " + op;
+				}
+
+				Table.putColumn(table, rowKey, column, updated, ttl, storageDirectory);
+			} finally {
+				rowLock.unlock();
+			}
+
+			copyToReplicas(req.url(), updated, ttl, rebalancer.otherReplicas(rowKey));
 			res.status(200, "OK");
+			if (op.equals("increment") || op.equals("add")) {
+				res.bodyAsBytes(updated);
+				return null;
+			}
 			return "OK";
 		});
 
-		// HTTP GET route for reading a column of a row in a table.
+		// HTTP GET route for reading a column of a row in a table. A row that is
+		// not here may not have been moved here yet, or may have been moved
+		// away; the request is then passed on to the worker that may have it.
 		Server.get("/data/:table/:row/:column", (req, res) -> {
 			String table = req.params("table");
 			String rowKey = req.params("row");
@@ -241,6 +373,10 @@ public class Worker extends search.generic.Worker {
 			Row row = Table.getRow(table, rowKey, storageDirectory);
 
 			if (row == null) {
+				String elsewhere = req.queryParams("forwarded") == null ? rebalancer.elsewhere(rowKey) : null;
+				if (elsewhere != null) {
+					return forward(req, res, elsewhere);
+				}
 				res.status(404, "Not Found");
 				return "Table or Row not found";
 			}
@@ -255,7 +391,8 @@ public class Worker extends search.generic.Worker {
 			return null;
 		});
 
-		// HTTP GET route for reading a row in a table.
+		// HTTP GET route for reading a row in a table; a missing row is looked
+		// for elsewhere as above.
 		Server.get("/data/:table/:row", (req, res) -> {
 			String table = req.params("table");
 			String rowKey = req.params("row");
@@ -268,73 +405,209 @@ public class Worker extends search.generic.Worker {
 			Row row = Table.getRow(table, rowKey, storageDirectory);
 			if (row != null) {
 				res.status(200, "OK");
-				res.type("text/plain");
-				res.bodyAsBytes(row.toByteArray());
+				if (acceptsBinary(req)) {
+					res.type(Row.BINARY_CONTENT_TYPE);
+					res.bodyAsBytes(row.toBinary());
+				} else {
+					res.type("text/plain");
+					res.bodyAsBytes(row.toByteArray());
+				}
 			} else {
+				String elsewhere = req.queryParams("forwarded") == null ? rebalancer.elsewhere(rowKey) : null;
+				if (elsewhere != null) {
+					return forward(req, res, elsewhere);
+				}
 				res.status(404, "Table/row not found");
 			}
 			return null;
 		});
 
-		// HTTP GET route for reading all rows in a table.
+		// HTTP POST route for checking which of a list of rows exist. The body
+		// holds one row key per line; the response has a '1' or a '0' for each
+		// of them, in the same order. Rows of a table that does not exist do
+		// not exist either.
+		Server.post("/exists/:table", (req, res) -> {
+			String tableName = req.params("table");
+			if (tableName == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+			String body = req.body();
+			StringBuilder result = new StringBuilder();
+			if (body != null && !body.isEmpty()) {
+				for (String rowKey : body.split("\n", -1)) {
+					result.append(Table.existsRow(tableName, rowKey, storageDirectory) ? '1' : '0');
+				}
+			}
+			return result.toString();
+		});
+
+		// HTTP POST route for reading many rows of a table at once. The body
+		// holds one row key per line; the optional columns and where
+		// parameters select columns and rows as in a scan (see ScanFilter).
+		// The rows that exist are sent in the order of the body, followed by
+		// an empty line, as in a scan.
+		Server.post("/mget/:table", (req, res) -> {
+			String tableName = req.params("table");
+			if (tableName == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+			ScanFilter filter;
+			try {
+				filter = ScanFilter.fromQuery(req.queryParams("columns"), req.queryParams("where"));
+			} catch (IllegalArgumentException e) {
+				res.status(400, "Bad request");
+				return e.getMessage();
+			}
+			boolean binary = acceptsBinary(req);
+			res.type(binary ? Row.BINARY_CONTENT_TYPE : "text/plain");
+
+			String body = req.body();
+			if (body != null && !body.isEmpty()) {
+				for (String rowKey : body.split("\n", -1)) {
+					Row row = Table.getRow(tableName, rowKey, storageDirectory);
+					if (row == null) {
+						continue;
+					}
+					if (filter != null && (row = filter.apply(row)) == null) {
+						continue;
+					}
+					if (binary) {
+						res.write(row.toBinary());
+					} else {
+						res.write(row.toByteArray());
+						res.write("\n".getBytes(StandardCharsets.UTF_8));
+					}
+				}
+			}
+			res.write("\n".getBytes(StandardCharsets.UTF_8));
+			return null;
+		});
+
+		// HTTP GET route for downloading the Bloom filter of a table's row keys
+		// (see BloomFilter.toBytes()).
+		Server.get("/bloom/:table", (req, res) -> {
+			String tableName = req.params("table");
+			BloomFilter filter = tableName == null ? null : Table.bloomFilter(tableName, storageDirectory);
+			if (filter == null) {
+				res.status(404, "Table not found");
+				return "Table not found";
+			}
+			res.type("application/octet-stream");
+			res.bodyAsBytes(filter.toBytes());
+			return null;
+		});
+
+		// HTTP GET route for reading all rows in a table. The optional columns
+		// and where parameters restrict the rows and columns that are sent
+		// (see ScanFilter). When rows have several replicas, clients ask each
+		// worker for the rows of one owner (replicaOf) of which it holds the
+		// first copy that is not on a worker in down (see
+		// Rebalancer.inScan()); these rows come in key order, so that a
+		// client can go on elsewhere after the last row it got. With holder,
+		// only the rows of which that worker is a replica are sent. With asOf,
+		// the rows are sent as they were when that snapshot was opened (see
+		// the /snapshot route). The rows of every table come in key order, as
+		// they are stored: a client that resumes a scan after the last key it
+		// got would otherwise miss the rows with smaller keys that were still
+		// to come, and one that merges the rows of several workers (see
+		// ParallelScan) needs them in order.
 		Server.get("/data/:table", (req, res) -> {
 			String tableName = req.params("table");
 			String startRow = req.queryParams("startRow");
 			String endRowExclusive = req.queryParams("endRowExclusive");
+			String replicaOf = req.queryParams("replicaOf");
+			Set<String> down = idSet(req.queryParams("down"));
+			String holder = req.queryParams("holder");
+			String asOf = req.queryParams("asOf");
 
-			res.type("text/plain");
+			boolean binary = acceptsBinary(req);
+			res.type(binary ? Row.BINARY_CONTENT_TYPE : "text/plain");
 			// ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
 			if (tableName == null) {
 				res.status(400, "Bad request");
 				return "Bad request";
 			}
+			ScanFilter filter;
+			try {
+				filter = ScanFilter.fromQuery(req.queryParams("columns"), req.queryParams("where"));
+			} catch (IllegalArgumentException e) {
+				res.status(400, "Bad request");
+				return e.getMessage();
+			}
 			// Map<String, Row> rowsMap = null;
 
-			if (tableName.contains("pt-")) {
-				// rowsMap = Table.readRowsFromDirectory(tableName, storageDirectory);
-				File tableDirectory = new File(storageDirectory + File.separator + tableName);
-
-				if (!tableDirectory.exists() || !tableDirectory.isDirectory()) {
+			// binary rows are self-delimiting and are sent as they are stored;
+			// rows that are still on disk go from the file to the socket
+			// without being read into memory, unless they have to be filtered.
+			// Text rows end with a newline. The body is sent in chunks, so
+			// that a client can tell a scan that broke off, and with cursors,
+			// binary scans tell the client how far they got through the rows
+			// they left out (see ScanCursor).
+			res.header("Transfer-Encoding", "chunked");
+			ScanCursor cursor = new ScanCursor(binary && req.queryParams("cursors") != null);
+			if (asOf != null) {
+				// Rows as of a snapshot are read through the UndoLog, and only
+				// exist for persistent tables. If the snapshot goes away during
+				// the scan, the response ends without the final newline.
+				TableScan<Row> rows;
+				try {
+					rows = Table.scan(tableName, startRow, endRowExclusive, Long.parseLong(asOf), storageDirectory);
+				} catch (IllegalArgumentException e) {
+					res.status(400, "Bad request");
+					return "Bad request";
+				} catch (SnapshotTooOldException e) {
+					res.status(410, "Snapshot Too Old");
+					return e.getMessage();
+				}
+				if (rows == null) {
 					res.status(404, "Table not found");
 					return "Table not found";
 				}
-
-				File[] files = tableDirectory.listFiles();
-				if (files == null) {
+				try {
+					writeRows(res, rows, rebalancer, filter, replicaOf, down, holder, binary, cursor);
+				} catch (UncheckedIOException e) {
+					logger.warn("Scan of " + tableName + " as of " + asOf + " stopped: " + e.getCause().getMessage());
 					return null;
+				} finally {
+					rows.close();
 				}
-
-				// ConcurrentMap<String, Row> rows = new ConcurrentHashMap<String, Row>();;
-				for (File file : files) {
-					try (FileInputStream fis = new FileInputStream(file)) {
-						Row row = Row.readFrom(fis);
-						if (row != null) {
-							if ((startRow == null || row.key.compareTo(startRow) >= 0) &&
-									(endRowExclusive == null || row.key.compareTo(endRowExclusive) < 0)) {
-								res.write(row.toByteArray());
-								res.write("\n".getBytes(StandardCharsets.UTF_8));
-							}
+			} else if (binary && filter == null) {
+				TableScan<StoredRow> rows = Table.scanStored(tableName, startRow, endRowExclusive, storageDirectory);
+				if (rows == null) {
+					res.status(404, "Table not found");
+					return "Table not found";
+				}
+				try {
+					while (rows.hasNext()) {
+						StoredRow row = rows.next();
+						if ((replicaOf != null && !rebalancer.inScan(row.key(), replicaOf, down))
+								|| (holder != null && !rebalancer.isReplica(holder, row.key()))) {
+							skipped(res, cursor, row.key());
+							continue;
+						}
+						if (row.inFile()) {
+							res.write(row.channel(), row.position(), row.length());
+						} else {
+							res.write(row.binary());
 						}
-					} catch (Exception e) {
-						e.printStackTrace();
+						cursor.sent();
 					}
+				} finally {
+					rows.close();
 				}
 			} else {
-				Map<String, Row> rowsMap = Table.tables.get(tableName);
-				if (rowsMap == null) {
+				TableScan<Row> scan = Table.scan(tableName, startRow, endRowExclusive, storageDirectory);
+				if (scan == null) {
 					res.status(404, "Table not found");
 					return "Table not found";
 				}
-				Iterator<String> keyIterator = rowsMap.keySet().iterator();
-
-				while (keyIterator.hasNext()) {
-					String rowKey = keyIterator.next();
-					if ((startRow == null || startRow.compareTo(rowKey) <= 0) &&
-							(endRowExclusive == null || endRowExclusive.compareTo(rowKey) > 0)) {
-						res.write(rowsMap.get(rowKey).toByteArray());
-						res.write("\n".getBytes(StandardCharsets.UTF_8));
-					}
+				try {
+					writeRows(res, scan, rebalancer, filter, replicaOf, down, holder, binary, cursor);
+				} finally {
+					scan.close();
 				}
 			}
 
@@ -343,30 +616,65 @@ public class Worker extends search.generic.Worker {
 			return null;
 		});
 
-		// HTTP PUT route for adding a row in a table.
+		// HTTP PUT route for adding rows to a table. The body holds any number
+		// of rows, which are written in batches of BULK_BATCH_SIZE with one
+		// write to the table's log per batch. The response has one line per
+		// row, in the order of the body: "OK", or "FAIL" and the reason. A row
+		// that cannot be parsed ends the body; the rows before it are written.
+		// With merge=true, only the columns in the body are set, and the other
+		// columns of existing rows are kept. With ttl, the rows expire that
+		// many milliseconds after this write.
 		Server.put("/data/:table/", (req, res) -> {
 			String table = req.params("table");
 			if (table == null) {
 				res.status(400, "Bad request");
 				return "Bad request";
 			}
+			long ttl;
+			try {
+				ttl = ttlParam(req);
+			} catch (NumberFormatException e) {
+				res.status(400, "Bad request");
+				return "Bad ttl";
+			}
 			// create table if not exist
 			Table.createTable(table, storageDirectory);
+			String merge = req.queryParams("merge");
 			ByteArrayInputStream in = new ByteArrayInputStream(req.bodyAsBytes());
 
+			List<String> statuses = new ArrayList<>();
+			List<Row> batch = new ArrayList<>();
+			res.status(200, "OK");
 			while (true) {
-				Row row = Row.readFrom(in);
+				Row row;
+				try {
+					row = Row.readFrom(in);
+				} catch (Exception e) {
+					writeBatch(table, batch, merge, ttl, statuses, res, storageDirectory);
+					statuses.add("FAIL malformed row: " + e.getMessage());
+					res.status(400, "Bad request");
+					break;
+				}
 				if (row == null) {
-					return "OK";
+					writeBatch(table, batch, merge, ttl, statuses, res, storageDirectory);
+					break;
+				}
+				batch.add(row);
+				if (!rebalancer.isReplica(row.key())) {
+					// from a client that does not know yet that the row has
+					// moved; it is passed on in the background
+					rebalancer.requestPass();
+				}
+				if (batch.size() >= BULK_BATCH_SIZE) {
+					writeBatch(table, batch, merge, ttl, statuses, res, storageDirectory);
 				}
-
-				Table.putRow(table, row.key, row, storageDirectory);
-				res.status(200, "OK");
-				return "OK";
 			}
+			return String.join("\n", statuses);
 		});
 
-		// HTTP GET route for counting rows in a table.
+		// HTTP GET route for counting rows in a table. With replicaOf and down,
+		// only the rows that a scan with the same parameters would return are
+		// counted, which takes a scan.
 		Server.get("/count/:table", (req, res) -> {
 			String tableName = req.params("table");
 			if (tableName == null) {
@@ -374,13 +682,24 @@ public class Worker extends search.generic.Worker {
 				return "Bad request";
 			}
 
-			int count = -1;
-			if (tableName.contains("pt-")) {
+			String replicaOf = req.queryParams("replicaOf");
+			int count;
+			if (replicaOf == null) {
 				count = Table.countRows(tableName, storageDirectory);
 			} else {
-				Map<String, Row> rowsMap = Table.tables.get(tableName);
-				if (rowsMap != null) {
-					count = rowsMap.size();
+				Set<String> down = idSet(req.queryParams("down"));
+				TableScan<Row> rows = Table.scan(tableName, null, null, storageDirectory);
+				count = rows == null ? -1 : 0;
+				try {
+					while (rows != null && rows.hasNext()) {
+						if (rebalancer.inScan(rows.next().key(), replicaOf, down)) {
+							count++;
+						}
+					}
+				} finally {
+					if (rows != null) {
+						rows.close();
+					}
 				}
 			}
 
@@ -391,6 +710,19 @@ public class Worker extends search.generic.Worker {
 			return count;
 		});
 
+		// HTTP GET route for the number of rows in all tables, which the
+		// coordinator shows next to the share of the hash ring of each worker.
+		Server.get("/count", (req, res) -> {
+			int count = 0;
+			for (String tableName : Table.tables.keySet()) {
+				count += Table.countRows(tableName, storageDirectory);
+			}
+			for (String tableName : Table.persistentTableNames(storageDirectory)) {
+				count += Table.countRows(tableName, storageDirectory);
+			}
+			return count;
+		});
+
 		// HTTP PUT route for saving/renaming a table.
 		Server.put("/rename/:table", (req, res) -> {
 			String oldName = req.params("table");
@@ -401,14 +733,12 @@ public class Worker extends search.generic.Worker {
 				return "Bad request";
 			}
 
-			if (!Table.tables.containsKey(oldName)
-					&& !Files.exists(Paths.get(storageDirectory, KeyEncoder.encode(oldName)))) {
+			if (!Table.exists(oldName, storageDirectory)) {
 				res.status(404, "Table Not Found");
 				return "Table Not Found";
 			}
 
-			if (Table.tables.containsKey(newName)
-					|| Files.exists(Paths.get(storageDirectory, KeyEncoder.encode(newName)))) {
+			if (Table.exists(newName, storageDirectory)) {
 				res.status(409, "Name Already Exists");
 				return "Name Already Exists";
 			}
@@ -419,9 +749,11 @@ public class Worker extends search.generic.Worker {
 			}
 
 			if (!oldName.startsWith("pt-")) {
-				Map removedMap = Table.tables.remove(oldName);
+				// the table is kept under its new name, without a TTL
+				Table.expiries.remove(oldName);
+				ConcurrentNavigableMap<String, Row> removedMap = Table.tables.remove(oldName);
 				if (newName.startsWith("pt-")) {
-					(new File(storageDirectory + File.separator + KeyEncoder.encode(newName))).mkdirs();
+					Table.createTable(newName, storageDirectory);
 					Iterator iter = removedMap.keySet().iterator();
 
 					while (iter.hasNext()) {
@@ -432,22 +764,143 @@ public class Worker extends search.generic.Worker {
 					Table.tables.put(newName, removedMap);
 				}
 			} else {
-				Path oldPath = Paths.get(storageDirectory, KeyEncoder.encode(oldName));
-				if (Files.exists(oldPath)) {
-					Path newPath = Paths.get(storageDirectory, KeyEncoder.encode(newName));
-					try {
-						Files.move(oldPath, newPath);
-					} catch (IOException e) {
-						e.printStackTrace();
-						res.status(500, "Internal Error- Rename");
-						return "Internal Error- Rename";
-					}
+				try {
+					Table.renamePersistentTable(oldName, newName, storageDirectory);
+				} catch (IOException e) {
+					e.printStackTrace();
+					res.status(500, "Internal Error- Rename");
+					return "Internal Error- Rename";
 				}
 			}
 			res.status(200, "OK");
 			return "OK";
 		});
 
+		// HTTP PUT route for setting the durability of a persistent table. The
+		// body is "none", "write" or "sync".
+		Server.put("/durability/:table", (req, res) -> {
+			String tableName = req.params("table");
+			String durability = req.body();
+			if (tableName == null || durability == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+			if (!tableName.startsWith("pt-")) {
+				res.status(400, "Only persistent tables have a durability setting");
+				return "Only persistent tables have a durability setting";
+			}
+
+			try {
+				Table.setDurability(tableName, durability, storageDirectory);
+			} catch (IllegalArgumentException e) {
+				res.status(400, "Unknown durability");
+				return "Unknown durability";
+			} catch (IOException e) {
+				e.printStackTrace();
+				res.status(500, "Internal Error- Durability");
+				return "Internal Error- Durability";
+			}
+			res.status(200, "OK");
+			return "OK";
+		});
+
+		// HTTP PUT route for memory-mapping a persistent table. The body is
+		// "true" or "false".
+		Server.put("/mmap/:table", (req, res) -> {
+			String tableName = req.params("table");
+			String mapped = req.body();
+			if (tableName == null || mapped == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+			if (!tableName.startsWith("pt-")) {
+				res.status(400, "Only persistent tables can be memory-mapped");
+				return "Only persistent tables can be memory-mapped";
+			}
+
+			try {
+				Table.setMapped(tableName, Boolean.parseBoolean(mapped.trim()), storageDirectory);
+			} catch (IOException e) {
+				e.printStackTrace();
+				res.status(500, "Internal Error- Mmap");
+				return "Internal Error- Mmap";
+			}
+			res.status(200, "OK");
+			return "OK";
+		});
+
+		// HTTP PUT route for setting the TTL of a table, in milliseconds; the
+		// body is the TTL, and 0 removes it (see Table.setTtl()).
+		Server.put("/ttl/:table", (req, res) -> {
+			String tableName = req.params("table");
+			String ttl = req.body();
+			if (tableName == null || ttl == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+
+			try {
+				Table.setTtl(tableName, Long.parseLong(ttl.trim()), storageDirectory);
+			} catch (NumberFormatException e) {
+				res.status(400, "Bad ttl");
+				return "Bad ttl";
+			} catch (IOException e) {
+				e.printStackTrace();
+				res.status(500, "Internal Error- TTL");
+				return "Internal Error- TTL";
+			}
+			res.status(200, "OK");
+			return "OK";
+		});
+
+		// HTTP POST route for opening a snapshot of a persistent table; the
+		// response is its version, which scans pass as asOf to read the table
+		// as it is now (see UndoLog).
+		Server.post("/snapshot/:table", (req, res) -> {
+			String tableName = req.params("table");
+			if (tableName == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+
+			long snapshot;
+			try {
+				snapshot = Table.openSnapshot(tableName, storageDirectory);
+			} catch (IllegalArgumentException e) {
+				res.status(400, "Bad request");
+				return e.getMessage();
+			} catch (IOException e) {
+				e.printStackTrace();
+				res.status(500, "Internal Error- Snapshot");
+				return "Internal Error- Snapshot";
+			}
+			if (snapshot < 0) {
+				res.status(404, "Table not found");
+				return "Table not found";
+			}
+			res.status(200, "OK");
+			return String.valueOf(snapshot);
+		});
+
+		// HTTP POST route for releasing a snapshot; the body is its version.
+		Server.post("/release/:table", (req, res) -> {
+			String tableName = req.params("table");
+			String snapshot = req.body();
+			if (tableName == null || snapshot == null) {
+				res.status(400, "Bad request");
+				return "Bad request";
+			}
+
+			try {
+				Table.releaseSnapshot(tableName, Long.parseLong(snapshot.trim()), storageDirectory);
+			} catch (NumberFormatException e) {
+				res.status(400, "Bad snapshot");
+				return "Bad snapshot";
+			}
+			res.status(200, "OK");
+			return "OK";
+		});
+
 		// HTTP PUT route for deleting a table.
 		Server.put("/delete/:table", (req, res) -> {
 			String tableName = req.params("table");
@@ -457,6 +910,7 @@ public class Worker extends search.generic.Worker {
 			}
 
 			if (!tableName.contains("pt-")) {
+				Table.expiries.remove(tableName);
 				if (Table.tables.remove(tableName) != null) {
 					return "OK";
 				} else {
@@ -465,14 +919,11 @@ public class Worker extends search.generic.Worker {
 				}
 			}
 
-			Path tablePath = Paths.get(storageDirectory + File.separator + tableName);
-			if (!Files.exists(tablePath)) {
-				res.status(404, "Table Not Found");
-				return "Table Not Found";
-			}
 			try {
-				Files.walk(tablePath).map(Path::toFile).forEach(File::delete);
-				Files.deleteIfExists(tablePath);
+				if (!Table.deletePersistentTable(tableName, storageDirectory)) {
+					res.status(404, "Table Not Found");
+					return "Table Not Found";
+				}
 				res.status(200, "OK");
 				return "OK";
 			} catch (IOException e) {
@@ -484,6 +935,140 @@ public class Worker extends search.generic.Worker {
 
 	}
 
+	// Writes a batch of rows from a bulk PUT, adds a status line for each row,
+	// and empties the batch. merge is the parameter of the request: "true"
+	// keeps the other columns of existing rows, "missing" only adds the
+	// columns they do not have, and anything else replaces the rows.
+	static void writeBatch(String table, List<Row> batch, String merge, long ttl, List<String> statuses,
+			Response res, String storageDirectory) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		String status = "OK";
+		try {
+			if ("missing".equals(merge)) {
+				Table.fillRows(table, batch, storageDirectory);
+			} else {
+				Table.putRows(table, batch, "true".equals(merge), ttl, storageDirectory);
+			}
+		} catch (IOException e) {
+			logger.error("Bulk write to " + table + " failed", e);
+			status = "FAIL " + e.getMessage();
+			res.status(500, "Internal Error- Bulk Write");
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			statuses.add(status);
+		}
+		batch.clear();
+	}
+
+	// Adds the decimal number delta to current, which is 0 if it is null. With
+	// integer, both must be integers, and the sum must fit into a long.
+	static byte[] addNumbers(byte[] current, byte[] delta, boolean integer) {
+		String a = current == null ? "0" : new String(current, StandardCharsets.UTF_8).trim();
+		String b = new String(delta, StandardCharsets.UTF_8).trim();
+		if (integer) {
+			return String.valueOf(Math.addExact(Long.parseLong(a), Long.parseLong(b))).getBytes();
+		}
+		return String.valueOf(Double.parseDouble(a) + Double.parseDouble(b)).getBytes();
+	}
+
+	// Sets a column that was updated atomically on the row's other replicas,
+	// with a put to the column's URL. A replica that cannot be reached catches
+	// up later, through read repair or when it restarts.
+	static void copyToReplicas(String url, byte[] value, long ttl, List<String> addresses) {
+		for (String address : addresses) {
+			try {
+				HTTP.Response r = HTTP.doRequest("PUT",
+						"http://" + address + url + "?forwarded=true" + (ttl > 0 ? "&ttl=" + ttl : ""), value);
+				if (r == null || r.statusCode() != 200) {
+					logger.warn("Copying " + url + " to " + address + " failed");
+				}
+			} catch (IOException e) {
+				logger.warn("Copying " + url + " to " + address + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	// Returns the ttl parameter of a write, or 0 if there is none.
+	static long ttlParam(Request req) {
+		String ttl = req.queryParams("ttl");
+		return ttl == null ? 0 : Long.parseLong(ttl);
+	}
+
+	// Parses a comma-separated list of worker IDs.
+	static Set<String> idSet(String ids) {
+		return ids == null || ids.isEmpty() ? Set.of() : new HashSet<>(Arrays.asList(ids.split(",")));
+	}
+
+	// Sends the rows of a scan that the worker sends (see the GET route for
+	// /data/:table), after applying the filter, if any.
+	static void writeRows(Response res, Iterator<Row> rows, Rebalancer rebalancer, ScanFilter filter,
+			String replicaOf, Set<String> down, String holder, boolean binary, ScanCursor cursor) throws Exception {
+		while (rows.hasNext()) {
+			Row row = rows.next();
+			if ((replicaOf != null && !rebalancer.inScan(row.key(), replicaOf, down))
+					|| (holder != null && !rebalancer.isReplica(holder, row.key()))) {
+				skipped(res, cursor, row.key());
+				continue;
+			}
+			Row sent = filter == null ? row : filter.apply(row);
+			if (sent == null) {
+				skipped(res, cursor, row.key());
+				continue;
+			}
+			if (binary) {
+				res.write(sent.toBinary());
+			} else {
+				res.write(sent.toByteArray());
+				res.write("\n".getBytes(StandardCharsets.UTF_8));
+			}
+			cursor.sent();
+		}
+	}
+
+	// Notes a row that a scan leaves out, and sends a cursor if it is time for
+	// one.
+	static void skipped(Response res, ScanCursor cursor, String key) throws Exception {
+		byte[] record = cursor.skipped(key);
+		if (record != null) {
+			res.write(record);
+		}
+	}
+
+	// Passes a request on to another worker, marked so that it is not passed
+	// on again, and copies its response.
+	static Object forward(Request req, Response res, String address) throws IOException {
+		StringBuilder url = new StringBuilder("http://").append(address).append(req.url()).append("?forwarded=true");
+		for (String param : req.queryParams()) {
+			url.append('&').append(URLEncoder.encode(param, StandardCharsets.UTF_8)).append('=')
+					.append(URLEncoder.encode(req.queryParams(param), StandardCharsets.UTF_8));
+		}
+		Map<String, String> headers = new HashMap<>();
+		if (req.headers("accept") != null) {
+			headers.put("Accept", req.headers("accept"));
+		}
+		HTTP.Response r = HTTP.doRequest(req.requestMethod(), url.toString(),
+				req.requestMethod().equals("GET") ? null : req.bodyAsBytes(), headers);
+		if (r == null) {
+			res.status(502, "Bad Gateway");
+			return "No response from " + address;
+		}
+		res.status(r.statusCode(), r.statusCode() == 200 ? "OK" : "Forwarded");
+		String type = r.headers().get("content-type");
+		if (type != null) {
+			res.type(type);
+		}
+		res.bodyAsBytes(r.body());
+		return null;
+	}
+
+	// Checks whether the client asked for rows in the binary format.
+	static boolean acceptsBinary(Request req) {
+		String accept = req.headers("accept");
+		return accept != null && accept.contains(Row.BINARY_CONTENT_TYPE);
+	}
+
 	// Utility method to generate a unique ID for the worker.
 	public static String generateId() {
 		Random random = new Random();
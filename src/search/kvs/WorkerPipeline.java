@@ -0,0 +1,272 @@
+package search.kvs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import search.tools.HTTP;
+
+/**
+ * A WorkerPipeline sends requests to one KVS worker without waiting for the
+ * responses to earlier ones. It keeps a few keep-alive connections to the
+ * worker; each request goes out on one of them right behind the requests
+ * that are already outstanding there (HTTP pipelining), and a
+ * reader thread per connection completes the futures in the order in which
+ * the worker answers, which is the order of the requests.
+ *
+ * Requests for the same row always use the same connection, so the worker
+ * carries them out in the order in which they were sent.
+ *
+ * At most maxInFlight requests are outstanding at a time. send() blocks while
+ * that many are, so a caller that produces requests faster than the worker
+ * answers them is slowed down to the worker's pace.
+ *
+ * The futures are completed on the reader threads, so callbacks that block,
+ * e.g. by sending more requests, must be added with the *Async methods of
+ * CompletableFuture. Only requests whose responses have a Content-Length can
+ * be pipelined; the streamed responses of scans and multi-gets cannot.
+ */
+class WorkerPipeline {
+    static final int CONNECTIONS = Integer.getInteger("kvs.pipelineConnections", 2);
+    static final int MAX_IN_FLIGHT = Integer.getInteger("kvs.maxInFlight", 64);
+    // A connection without outstanding requests is closed after this long, so
+    // that it does not tie up one of the worker's handler threads.
+    static final int IDLE_MILLIS = Integer.getInteger("kvs.pipelineIdleMillis", 5000);
+
+    private final String host;
+    private final int port;
+    private final Connection[] connections;
+    private final Semaphore inFlight;
+
+    WorkerPipeline(String address, int numConnections, int maxInFlight) {
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.connections = new Connection[numConnections];
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    // Sends a request about the given row and returns a future for its
+    // response. The future fails with an IOException if the connection breaks
+    // before the response has been read.
+    CompletableFuture<HTTP.Response> send(String row, String method, String path, byte[] body,
+            Map<String, String> headers) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<HTTP.Response> response;
+        try {
+            response = connection(row).send(encode(method, path, body, headers));
+        } catch (IOException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        // Callbacks that the caller adds run after the release.
+        return response.whenComplete((r, e) -> inFlight.release());
+    }
+
+    // Returns the connection for a row, replacing it if it is broken.
+    private Connection connection(String row) throws IOException {
+        int i = Math.floorMod(row.hashCode(), connections.length);
+        synchronized (connections) {
+            if (connections[i] == null || connections[i].broken) {
+                connections[i] = new Connection(new Socket(host, port));
+            }
+            return connections[i];
+        }
+    }
+
+    private byte[] encode(String method, String path, byte[] body, Map<String, String> headers) {
+        StringBuilder header = new StringBuilder();
+        header.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+        if (body != null) {
+            header.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> field : headers.entrySet()) {
+                header.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+            }
+        }
+        header.append("Connection: keep-alive\r\n\r\n");
+        ByteArrayOutputStream request = new ByteArrayOutputStream(header.length() + (body == null ? 0 : body.length));
+        request.writeBytes(header.toString().getBytes(StandardCharsets.UTF_8));
+        if (body != null) {
+            request.writeBytes(body);
+        }
+        return request.toByteArray();
+    }
+
+    /**
+     * One connection with the futures of its outstanding requests, oldest
+     * first.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        // Guarded by this.
+        private final ArrayDeque<CompletableFuture<HTTP.Response>> pending = new ArrayDeque<>();
+        // Held while writing a request. Separate from the lock on this, so
+        // that the reader can take responses off the queue while a large
+        // request is being written.
+        private final Object writeLock = new Object();
+        volatile boolean broken;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_MILLIS);
+            this.out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+            Thread reader = new Thread(() -> read(in), "kvs-pipeline-" + socket.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // Writes a request. Its future is queued while the write lock is
+        // held, so that the queue is in the order of the requests.
+        CompletableFuture<HTTP.Response> send(byte[] request) throws IOException {
+            CompletableFuture<HTTP.Response> response = new CompletableFuture<>();
+            synchronized (writeLock) {
+                synchronized (this) {
+                    if (broken) {
+                        throw new IOException("Connection to " + socket.getRemoteSocketAddress() + " is broken");
+                    }
+                    pending.add(response);
+                }
+                try {
+                    out.write(request);
+                    out.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            return response;
+        }
+
+        private void read(InputStream in) {
+            try {
+                while (true) {
+                    if (!awaitResponse(in)) {
+                        return;
+                    }
+                    HTTP.Response response = readResponse(in);
+                    CompletableFuture<HTTP.Response> future;
+                    synchronized (this) {
+                        future = pending.poll();
+                    }
+                    if (future == null) {
+                        throw new IOException("Response without a request");
+                    }
+                    future.complete(response);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // Waits for the first byte of the next response. Returns false, after
+        // closing the connection, if the connection has been idle for
+        // IDLE_MILLIS. A response that stalls once it has started fails the
+        // connection instead.
+        private boolean awaitResponse(InputStream in) throws IOException {
+            while (true) {
+                try {
+                    in.mark(1);
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    in.reset();
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    synchronized (this) {
+                        if (pending.isEmpty()) {
+                            broken = true;
+                            socket.close();
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Marks the connection as broken and fails the outstanding requests;
+        // the worker may or may not have carried them out. The futures are
+        // completed outside the lock, since completing them runs the
+        // callers' callbacks.
+        private void fail(IOException cause) {
+            List<CompletableFuture<HTTP.Response>> failed;
+            synchronized (this) {
+                broken = true;
+                failed = new ArrayList<>(pending);
+                pending.clear();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            for (CompletableFuture<HTTP.Response> future : failed) {
+                future.completeExceptionally(cause);
+            }
+        }
+
+        private static HTTP.Response readResponse(InputStream in) throws IOException {
+            String statusLine = readLine(in);
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            Map<String, String> headers = new HashMap<>();
+            int contentLength = -1;
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                String[] field = line.split(":", 2);
+                if (field.length == 2) {
+                    headers.put(field[0].trim().toLowerCase(), field[1].trim());
+                }
+            }
+            if (headers.containsKey("content-length")) {
+                contentLength = Integer.parseInt(headers.get("content-length"));
+            }
+            if (contentLength < 0) {
+                throw new IOException("Response without a Content-Length cannot be pipelined");
+            }
+            byte[] body = in.readNBytes(contentLength);
+            if (body.length < contentLength) {
+                throw new EOFException();
+            }
+            try {
+                return new HTTP.Response(body, headers, Integer.parseInt(status[1]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package search.kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A WriteAheadLog holds the rows of a LogStructuredStorage that are still in
+ * its memtable, so they can be recovered if the worker dies before the
+ * memtable is flushed. Records use the same layout as a LogSegment, so the
+ * log is replayed with the ordinary segment recovery code.
+ *
+ * Appends only copy the record into an in-memory buffer. The buffer is written
+ * to the file by group commit: the first writer that calls commit() writes and
+ * (optionally) fsyncs everything that has been appended so far, including the
+ * records of other writers, who then find their records already committed
+ * when they get their turn.
+ */
+class WriteAheadLog {
+    final int id;
+    final Path path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Object commitLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // End of the appended data, of the data written to the file, and of the
+    // data that has been fsync'd.
+    private long appended;
+    private volatile long written;
+    private volatile long synced;
+
+    WriteAheadLog(Path directory, int id) throws IOException {
+        this.id = id;
+        this.path = directory.resolve(fileName(id));
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        this.channel = file.getChannel();
+        file.setLength(0);
+    }
+
+    static String fileName(int id) {
+        return String.format("wal-%06d.log", id);
+    }
+
+    // Buffers a record and returns the position just after it, which can be
+    // passed to commit().
+    synchronized long append(byte[] payload, long timestamp, byte kind) {
+        ByteBuffer header = ByteBuffer.allocate(LogSegment.HEADER_SIZE);
+        header.putInt(LogSegment.checksum(timestamp, kind, payload));
+        header.putLong(timestamp);
+        header.put(kind);
+        header.putInt(payload.length);
+        pending.write(header.array(), 0, header.capacity());
+        pending.write(payload, 0, payload.length);
+        appended += header.capacity() + payload.length;
+        return appended;
+    }
+
+    // Waits until the log has been written up to the given position, and
+    // fsync'd as well if sync is set.
+    void commit(long position, boolean sync) throws IOException {
+        if (position <= (sync ? synced : written)) {
+            return;
+        }
+        synchronized (commitLock) {
+            if (position > written) {
+                byte[] batch;
+                long end;
+                synchronized (this) {
+                    batch = pending.toByteArray();
+                    pending = new ByteArrayOutputStream();
+                    end = appended;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                long offset = end - batch.length;
+                while (buffer.hasRemaining()) {
+                    offset += channel.write(buffer, offset);
+                }
+                written = end;
+            }
+            if (sync && position > synced) {
+                long end = written;
+                channel.force(false);
+                synced = end;
+            }
+        }
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    // Deletes the log once its rows are safely in an SSTable. Writers that
+    // have not committed their records yet find them committed.
+    void delete() throws IOException {
+        synchronized (commitLock) {
+            written = Long.MAX_VALUE;
+            synced = Long.MAX_VALUE;
+            close();
+        }
+        Files.deleteIfExists(path);
+    }
+}
@@ -192,6 +192,10 @@ class Coordinator extends search.generic.Coordinator {
           .append("&from=").append(request.queryParams("from")).append("&to=").append(request.queryParams("to"))
           .append("&input=").append(request.queryParams("input"))
           .append("&output=").append(request.queryParams("output")).append("&jar=").append(request.queryParams("jar"));
+      for (String param : new String[] { "columns", "where", "snapshot" }) {
+        if (request.queryParams(param) != null)
+          url.append("&").append(param).append("=").append(URLEncoder.encode(request.queryParams(param), "UTF-8"));
+      }
 
       Response res = HTTP.doRequest("POST", url.toString(), request.bodyAsBytes());
       return res;
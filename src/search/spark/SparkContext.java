@@ -4,6 +4,7 @@ import java.util.*;
 import java.io.*;
 import search.kvs.Row;
 import search.kvs.KVSClient;
+import search.kvs.ScanFilter;
 
 public interface SparkContext {
   public KVSClient getKVS();
@@ -40,6 +41,12 @@ public interface SparkContext {
 
   public SparkRDD fromTable(String tableName, RowToString lambda, boolean persistent) throws Exception;
 
+  // Like fromTable() above, but the KVS workers only send the rows and
+  // columns that the filter selects, so the lambda sees projected rows.
+
+  public SparkRDD fromTable(String tableName, RowToString lambda, boolean persistent, ScanFilter filter)
+      throws Exception;
+
   // This function should control how many separate key ranges each worker should
   // be assigned. If this function is never called, each worker should just get
   // a single key range. But if setConcurrencyLevel(k) is called, each worker
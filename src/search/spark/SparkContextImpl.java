@@ -2,18 +2,27 @@ package search.spark;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import search.kvs.BufferedKVSWriter;
 import search.kvs.KVSClient;
 import search.kvs.Row;
+import search.kvs.ScanFilter;
+import search.kvs.Snapshot;
 import search.tools.*;
 import static search.spark.Coordinator.getServer;
 
 public class SparkContextImpl implements SparkContext, Serializable {
+    // How long, in milliseconds, the tables that jobs create are kept after
+    // their last write, unless the job saves them under another name or
+    // destroys them first; 0 keeps them until then.
+    static final long JOB_TABLE_TTL = Long.getLong("spark.jobTableTtl", 24L * 60 * 60 * 1000);
 
     private String jarName;
     private StringBuilder output;
@@ -48,21 +57,33 @@ public class SparkContextImpl implements SparkContext, Serializable {
     @Override
     public SparkRDD parallelize(List<String> list) throws Exception {
         String tableName = "job_" + System.currentTimeMillis() + "_" + (sequenceNumber++);
+        expireJobTable(tableName);
 
-        for (int i = 0; i < list.size(); i++) {
-            String rowKey = Hasher.hash(tableName + String.valueOf(i + 1));
-            System.out.println("RDD parallelize, table name: " + tableName + " row key: " + rowKey);
-            Coordinator.kvs.put(tableName, rowKey, "value", list.get(i));
+        try (BufferedKVSWriter writer = new BufferedKVSWriter(Coordinator.kvs, tableName)) {
+            for (int i = 0; i < list.size(); i++) {
+                String rowKey = Hasher.hash(tableName + String.valueOf(i + 1));
+                System.out.println("RDD parallelize, table name: " + tableName + " row key: " + rowKey);
+                writer.put(rowKey, "value", list.get(i));
+            }
         }
         return new SparkRDDImpl(this, tableName);
     }
 
+    // Gives a table that a job creates a TTL, so that the workers drop it if
+    // the job never destroys it.
+    private void expireJobTable(String tableName) throws IOException {
+        if (JOB_TABLE_TTL > 0) {
+            Coordinator.kvs.setTtl(tableName, JOB_TABLE_TTL);
+        }
+    }
+
     public Object invokeOperation(String inputTable, byte[] lambda, String operation, String argument, String route,
             boolean persistent) throws Exception {
         String outputTable = "output_" + System.currentTimeMillis() + "_" + (sequenceNumber++);
         if (persistent) {
             outputTable = "pt-" + outputTable;
         }
+        expireJobTable(outputTable);
         Partitioner partitionerHandler = new Partitioner();
         partitionerHandler.setKeyRangesPerWorker(concurrencyLevel);
 
@@ -122,6 +143,9 @@ public class SparkContextImpl implements SparkContext, Serializable {
                     case "join":
                         url.append("&otherTable=" + argument);
                         break;
+                    case "fromTable":
+                        url.append("&" + argument);
+                        break;
                 }
             }
 
@@ -162,8 +186,29 @@ public class SparkContextImpl implements SparkContext, Serializable {
 
     @Override
     public SparkRDD fromTable(String tableName, RowToString lambda, boolean persistent) throws Exception {
+        return fromTable(tableName, lambda, persistent, null);
+    }
+
+    // Persistent tables are read as of a snapshot, so that a job sees a
+    // table like pt-crawl as it was when the job started reading it, while
+    // the crawler keeps writing to it.
+    @Override
+    public SparkRDD fromTable(String tableName, RowToString lambda, boolean persistent, ScanFilter filter)
+            throws Exception {
         byte[] lambdaAsBytes = Serializer.objectToByteArray(lambda);
-        return (SparkRDD) invokeOperation(tableName, lambdaAsBytes, null, null, "fromTable", persistent);
+        String query = filter == null || filter.toQuery().isEmpty() ? null : filter.toQuery();
+        Snapshot snapshot = tableName.startsWith("pt-") ? Coordinator.kvs.openSnapshot(tableName) : null;
+        if (snapshot != null) {
+            String parameter = "snapshot=" + URLEncoder.encode(snapshot.toQuery(), StandardCharsets.UTF_8);
+            query = query == null ? parameter : query + "&" + parameter;
+        }
+        try {
+            return (SparkRDD) invokeOperation(tableName, lambdaAsBytes, "fromTable", query, "fromTable", persistent);
+        } finally {
+            if (snapshot != null) {
+                Coordinator.kvs.releaseSnapshot(snapshot);
+            }
+        }
     }
 
     @Override
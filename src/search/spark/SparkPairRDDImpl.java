@@ -26,7 +26,7 @@ public class SparkPairRDDImpl implements SparkPairRDD {
 	public List<SparkPair> collect() throws Exception {
 		checkIfDestroyed();
 		List<SparkPair> results = new ArrayList<>();
-		Iterator<Row> rows = kvs.scan(tableName);
+		Iterator<Row> rows = kvs.parallelScan(tableName, false);
 		while (rows.hasNext()) {
 			Row row = rows.next();
 			for (String column : row.columns()) {
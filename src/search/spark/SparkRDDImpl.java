@@ -8,6 +8,8 @@ import java.util.Set;
 import java.util.Vector;
 
 import search.spark.SparkPairRDD.TwoStringsToString;
+import search.kvs.BufferedKVSWriter;
+import search.kvs.ParallelScan;
 import search.kvs.Row;
 import search.tools.Hasher;
 import search.tools.Serializer;
@@ -27,11 +29,12 @@ public class SparkRDDImpl implements SparkRDD {
 		return tableName;
 	}
 
+	// The rows are read from all workers at once, in no particular order.
 	@Override
 	public List<String> collect() throws Exception {
 		checkIfDestroyed();
 		List<String> results = new LinkedList<>();
-		Iterator<Row> iter = context.getKVS().scan(tableName);
+		Iterator<Row> iter = context.getKVS().parallelScan(tableName, false);
 		while (iter.hasNext()) {
 			Row row = iter.next();
 			results.add(row.get("value"));
@@ -87,12 +90,14 @@ public class SparkRDDImpl implements SparkRDD {
 		String newTableName = "distinct_" + tableName;
 		Set<String> uniqueValues = new HashSet<>();
 		int index = 1;
-		while (iter.hasNext()) {
-			Row row = iter.next();
-			String value = row.get("value");
-			if (uniqueValues.add(value)) {
-				String rowKey = Hasher.hash(newTableName + String.valueOf(index++));
-				context.getKVS().put(newTableName, rowKey, "value", value);
+		try (BufferedKVSWriter writer = new BufferedKVSWriter(context.getKVS(), newTableName)) {
+			while (iter.hasNext()) {
+				Row row = iter.next();
+				String value = row.get("value");
+				if (uniqueValues.add(value)) {
+					String rowKey = Hasher.hash(newTableName + String.valueOf(index++));
+					writer.put(rowKey, "value", value);
+				}
 			}
 		}
 		return new SparkRDDImpl(context, newTableName);
@@ -105,18 +110,21 @@ public class SparkRDDImpl implements SparkRDD {
 		isDestroyed = true;
 	}
 
+	// Takes the rows with the smallest keys, which are merged from all
+	// workers at once, so the same rows come back every time.
 	@Override
 	public Vector<String> take(int num) throws Exception {
 		checkIfDestroyed();
 		Vector<String> elements = new Vector<>();
-		Iterator<Row> iter = context.getKVS().scan(tableName);
-		int i = 0;
-		while (iter.hasNext() && i < num) {
-			Row row = iter.next();
-			for (String column : row.columns()) {
-				elements.add(row.get(column));
+		try (ParallelScan iter = context.getKVS().parallelScan(tableName, true)) {
+			int i = 0;
+			while (iter.hasNext() && i < num) {
+				Row row = iter.next();
+				for (String column : row.columns()) {
+					elements.add(row.get(column));
+				}
+				i++;
 			}
-			i++;
 		}
 		return elements;
 	}
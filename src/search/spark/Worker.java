@@ -27,6 +27,13 @@ class Worker extends search.generic.Worker {
 
         port(port);
 
+        // the counters of the KVS scans that this worker's jobs ran (see
+        // ScanMetrics)
+        get("/scans", (request, response) -> {
+            response.type("text/plain");
+            return KVSClient.scanMetrics().toString();
+        });
+
         post("/useJAR", (request, response) -> {
             FileOutputStream fos = new FileOutputStream(myJAR);
             fos.write(request.bodyAsBytes());
@@ -63,221 +70,207 @@ class Worker extends search.generic.Worker {
             }
 
             Iterator<Row> rows = Coordinator.kvs.scan(inputTable, fromKey, toKeyExclusive);
+            // the output is written in bulk, and flushed before the response;
+            // the writer is closed even if the lambda throws, so that its timer
+            // does not keep running
+            try (BufferedKVSWriter writer = new BufferedKVSWriter(Coordinator.kvs, outputTable)) {
+                int index = 1;
+                String prefix = inputTable + System.currentTimeMillis();
+                switch (operation) {
+                    case "flatMap":
+                        SparkRDD.StringToIterable flatMap = (SparkRDD.StringToIterable) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
+                        index = 1;
 
-            int index = 1;
-            String prefix = inputTable + System.currentTimeMillis();
-            switch (operation) {
-                case "flatMap":
-                    SparkRDD.StringToIterable flatMap = (SparkRDD.StringToIterable) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    index = 1;
-
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        Iterable<String> iter = flatMap.op(row.get("value"));
-                        if (iter != null) {
-                            for (String val : iter) {
-                                String rowKey = Hasher.hash(prefix + index++);
-                                Coordinator.kvs.put(outputTable, rowKey, "value", val);
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            Iterable<String> iter = flatMap.op(row.get("value"));
+                            if (iter != null) {
+                                for (String val : iter) {
+                                    String rowKey = Hasher.hash(prefix + index++);
+                                    writer.put(rowKey, "value", val);
+                                }
                             }
                         }
-                    }
-                    break;
-
-                case "mapToPair":
-                    SparkRDD.StringToPair mapToPair = (SparkRDD.StringToPair) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    index = 1;
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        SparkPair pair = mapToPair.op(row.get("value"));
-                        // String rowKey = Hasher.hash(prefix + index++);
-                        Coordinator.kvs.put(outputTable, pair._1(), row.key(), pair._2());
-                    }
-                    break;
-                // SparkRDD.StringToPair mapToPair = (SparkRDD.StringToPair)
-                // Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
-                // index = 1;
-                // HashMap<String, Row> cache = new HashMap<>();
-                // while (rows.hasNext()) {
-                // Row row = rows.next();
-                // SparkPair pair = mapToPair.op(row.get("value"));
-                // String rowKey = Hasher.hash(prefix + index++);
-                // Row newRow = new Row(pair._1());
-                // newRow.put(rowKey, pair._2().getBytes(StandardCharsets.UTF_8));
-                // cache.put(rowKey, newRow);
-                // if (cache.size() > 1000) {
-                // Coordinator.kvs.putRows(outputTable, cache);
-                // cache = new HashMap<>();
-                // }
-                // }
-                // if (cache.size() > 0) {
-                // Coordinator.kvs.putRows(outputTable, cache);
-                // }
-                // break;
-
-                case "foldByKey":
-                    String zeroElement = request.queryParams("zero");
-                    if (zeroElement == null) {
-                        zeroElement = "";
-                    }
-                    if (zeroElement == null) {
-                        response.status(400, "Bad request");
-                        return "400 Bad Request- missing zeroElement param for foldByKey";
-                    }
-                    SparkPairRDD.TwoStringsToString foldByKey = (SparkPairRDD.TwoStringsToString) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        String value = zeroElement;
+                        break;
+
+                    case "mapToPair":
+                        SparkRDD.StringToPair mapToPair = (SparkRDD.StringToPair) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
                         index = 1;
-                        for (String column : row.columns()) {
-                            value = foldByKey.op(value, row.get(column));
-                            index++;
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            SparkPair pair = mapToPair.op(row.get("value"));
+                            // String rowKey = Hasher.hash(prefix + index++);
+                            writer.put(pair._1(), row.key(), pair._2());
                         }
-                        Coordinator.kvs.put(outputTable, row.key(), "acc", value.getBytes());
-                    }
-                    return index;
+                        break;
 
-                case "fold":
-
-                    SparkPairRDD.TwoStringsToString fold = (SparkPairRDD.TwoStringsToString) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    String zero = request.queryParams("zero2");
-                    if (zero == null) {
-                        response.status(400, "Bad request");
-                        return "400 Bad Request - missing zeroElement param for fold";
-                    }
-                    String accumulatedValue = zero;
-
-                    rows = Coordinator.kvs.scan(inputTable);
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        for (String column : row.columns()) {
-                            String columnValue = row.get(column);
-                            accumulatedValue = fold.op(accumulatedValue, row.get(column));
+                    case "foldByKey":
+                        String zeroElement = request.queryParams("zero");
+                        if (zeroElement == null) {
+                            zeroElement = "";
                         }
-                    }
-                    Coordinator.kvs.put(outputTable, prefix, "value", accumulatedValue);
-                    break;
-
-                case "intersection":
-                    String other = request.queryParams("that");
-                    if (other == null) {
-                        response.status(400, "Bad request");
-                        return "400 Bad Request- missing parameter";
-                    }
-                    Set<String> thisValues = new HashSet<>();
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        thisValues.add(row.get("value"));
-                    }
+                        if (zeroElement == null) {
+                            response.status(400, "Bad request");
+                            return "400 Bad Request- missing zeroElement param for foldByKey";
+                        }
+                        SparkPairRDD.TwoStringsToString foldByKey = (SparkPairRDD.TwoStringsToString) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            String value = zeroElement;
+                            index = 1;
+                            for (String column : row.columns()) {
+                                value = foldByKey.op(value, row.get(column));
+                                index++;
+                            }
+                            writer.put(row.key(), "acc", value.getBytes());
+                        }
+                        return index;
 
-                    Iterator<Row> otherRows = Coordinator.kvs.scan(other);
-                    Set<String> otherValues = new HashSet<>();
-                    while (otherRows.hasNext()) {
-                        Row row = otherRows.next();
-                        otherValues.add(row.get("value"));
-                    }
+                    case "fold":
 
-                    thisValues.retainAll(otherValues);
-                    index = 1;
-                    for (String value : thisValues) {
-                        String rowKey = Hasher.hash(prefix + index++);
-                        Coordinator.kvs.put(outputTable, rowKey, "value", value);
-                    }
-                    break;
+                        SparkPairRDD.TwoStringsToString fold = (SparkPairRDD.TwoStringsToString) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
+                        String zero = request.queryParams("zero2");
+                        if (zero == null) {
+                            response.status(400, "Bad request");
+                            return "400 Bad Request - missing zeroElement param for fold";
+                        }
+                        String accumulatedValue = zero;
+
+                        // the whole table is folded, with all KVS workers read at once;
+                        // the scan is closed if the lambda throws, so that its threads stop
+                        try (ParallelScan all = Coordinator.kvs.parallelScan(inputTable, false)) {
+                            while (all.hasNext()) {
+                                Row row = all.next();
+                                for (String column : row.columns()) {
+                                    String columnValue = row.get(column);
+                                    accumulatedValue = fold.op(accumulatedValue, row.get(column));
+                                }
+                            }
+                        }
+                        writer.put(prefix, "value", accumulatedValue);
+                        break;
+
+                    case "intersection":
+                        String other = request.queryParams("that");
+                        if (other == null) {
+                            response.status(400, "Bad request");
+                            return "400 Bad Request- missing parameter";
+                        }
+                        Set<String> thisValues = new HashSet<>();
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            thisValues.add(row.get("value"));
+                        }
 
-                case "sample":
-                    String possibility = request.queryParams("prob");
-                    if (possibility == null) {
-                        response.status(400, "Bad request");
-                        return "400 Bad Request- missing possiblility param for sample";
-                    }
-                    index = 1;
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        if (Math.random() < Double.parseDouble(possibility)) {
+                        Iterator<Row> otherRows = Coordinator.kvs.scan(other);
+                        Set<String> otherValues = new HashSet<>();
+                        while (otherRows.hasNext()) {
+                            Row row = otherRows.next();
+                            otherValues.add(row.get("value"));
+                        }
+
+                        thisValues.retainAll(otherValues);
+                        index = 1;
+                        for (String value : thisValues) {
                             String rowKey = Hasher.hash(prefix + index++);
-                            Coordinator.kvs.put(outputTable, rowKey, "value", row.get("value"));
+                            writer.put(rowKey, "value", value);
                         }
-                    }
-                    break;
-
-                case "flatMapToPair":
-                    SparkRDD.StringToPairIterable flatMapToPair = (SparkRDD.StringToPairIterable) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    index = 1;
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        Iterable<SparkPair> pairs = flatMapToPair.op(row.get("value"));
-                        for (SparkPair pair : pairs) {
-                            String hash = row.key() + "-" + index++;
-                            Coordinator.kvs.put(outputTable, pair._1(), hash, pair._2());
+                        break;
+
+                    case "sample":
+                        String possibility = request.queryParams("prob");
+                        if (possibility == null) {
+                            response.status(400, "Bad request");
+                            return "400 Bad Request- missing possiblility param for sample";
                         }
-                    }
-                    break;
-                case "flatMapFromPair":
-                    SparkPairRDD.PairToStringIterable flatMapFromPair = (SparkPairRDD.PairToStringIterable) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    index = 1;
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        for (String column : row.columns()) {
-                            SparkPair pair = new SparkPair(row.key(), row.get(column));
-                            Iterable<String> iter = flatMapFromPair.op(pair);
-                            if (iter != null) {
-                                for (String result : iter) {
-                                    if (result != null) {
-                                        String rowKey = Hasher.hash(prefix + index++);
-                                        Coordinator.kvs.put(outputTable, rowKey, "value", result);
+                        index = 1;
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            if (Math.random() < Double.parseDouble(possibility)) {
+                                String rowKey = Hasher.hash(prefix + index++);
+                                writer.put(rowKey, "value", row.get("value"));
+                            }
+                        }
+                        break;
+
+                    case "flatMapToPair":
+                        SparkRDD.StringToPairIterable flatMapToPair = (SparkRDD.StringToPairIterable) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
+                        index = 1;
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            Iterable<SparkPair> pairs = flatMapToPair.op(row.get("value"));
+                            for (SparkPair pair : pairs) {
+                                String hash = row.key() + "-" + index++;
+                                writer.put(pair._1(), hash, pair._2());
+                            }
+                        }
+                        break;
+                    case "flatMapFromPair":
+                        SparkPairRDD.PairToStringIterable flatMapFromPair = (SparkPairRDD.PairToStringIterable) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
+                        index = 1;
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            for (String column : row.columns()) {
+                                SparkPair pair = new SparkPair(row.key(), row.get(column));
+                                Iterable<String> iter = flatMapFromPair.op(pair);
+                                if (iter != null) {
+                                    for (String result : iter) {
+                                        if (result != null) {
+                                            String rowKey = Hasher.hash(prefix + index++);
+                                            writer.put(rowKey, "value", result);
+                                        }
                                     }
                                 }
                             }
                         }
-                    }
-                    break;
-                case "flatMapToPairFromPair":
-                    SparkPairRDD.PairToPairIterable flatMapToPair2 = (SparkPairRDD.PairToPairIterable) Serializer
-                            .byteArrayToObject(request.bodyAsBytes(), myJAR);
-                    index = 1;
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        for (String column : row.columns()) {
-                            SparkPair pair = new SparkPair(row.key(), row.get(column));
-                            Iterable<SparkPair> pairs = flatMapToPair2.op(pair);
-                            for (SparkPair p : pairs) {
-                                String hash = row.key() + "-" + index++;
-                                Coordinator.kvs.put(outputTable, p._1(), hash, p._2());
+                        break;
+                    case "flatMapToPairFromPair":
+                        SparkPairRDD.PairToPairIterable flatMapToPair2 = (SparkPairRDD.PairToPairIterable) Serializer
+                                .byteArrayToObject(request.bodyAsBytes(), myJAR);
+                        index = 1;
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            for (String column : row.columns()) {
+                                SparkPair pair = new SparkPair(row.key(), row.get(column));
+                                Iterable<SparkPair> pairs = flatMapToPair2.op(pair);
+                                for (SparkPair p : pairs) {
+                                    String hash = row.key() + "-" + index++;
+                                    writer.put(p._1(), hash, p._2());
+                                }
                             }
                         }
-                    }
-                    break;
-
-                case "join":
-                    String otherTable = request.queryParams("otherTable");
-                    if (otherTable == null) {
-                        System.out.println("400!!!");
-                        response.status(400, "Bad request");
-                        return "400 Bad Request - missing other table parameter for join";
-                    }
-                    while (rows.hasNext()) {
-                        Row row = rows.next();
-                        Row otherRow = Coordinator.kvs.getRow(otherTable, row.key());
-                        if (otherRow != null) {
-                            for (String col : row.columns()) {
-                                for (String otherCol : otherRow.columns()) {
-                                    String joinedValue = row.get(col) + "," + otherRow.get(otherCol);
-                                    String hash = prefix + joinedValue;
-                                    Coordinator.kvs.put(outputTable, row.key(), hash, joinedValue);
+                        break;
+
+                    case "join":
+                        String otherTable = request.queryParams("otherTable");
+                        if (otherTable == null) {
+                            System.out.println("400!!!");
+                            response.status(400, "Bad request");
+                            return "400 Bad Request - missing other table parameter for join";
+                        }
+                        while (rows.hasNext()) {
+                            Row row = rows.next();
+                            Row otherRow = Coordinator.kvs.getRow(otherTable, row.key());
+                            if (otherRow != null) {
+                                for (String col : row.columns()) {
+                                    for (String otherCol : otherRow.columns()) {
+                                        String joinedValue = row.get(col) + "," + otherRow.get(otherCol);
+                                        String hash = prefix + joinedValue;
+                                        writer.put(row.key(), hash, joinedValue);
+                                    }
                                 }
                             }
                         }
-                    }
-                    break;
+                        break;
 
+                }
             }
-
             return "OK";
         });
 
@@ -300,32 +293,34 @@ class Worker extends search.generic.Worker {
                 return "404 Not found- jar file not found";
             }
 
+            // only crawled html pages in UTF-8 with short urls are passed to
+            // the lambda; the KVS workers drop the other rows, and the columns
+            // the job did not ask for, before sending them
+            ScanFilter filter = ScanFilter.fromQuery(request.queryParams("columns"), request.queryParams("where"));
+            if (filter == null) {
+                filter = new ScanFilter();
+            }
+            filter.notContains("url", "..").maxLength("url", 100).equalTo("responseCode", "200")
+                    .contains("contentType", "text/html").containsIgnoreCase("contentType", "utf-8");
+            // persistent tables are read as of the job's snapshot (see
+            // SparkContextImpl.fromTable())
+            Snapshot snapshot = Snapshot.fromQuery(inputTable, request.queryParams("snapshot"));
             Iterator<Row> rows = kvs.scan(inputTable, fromKey.equals("!!") ? null : fromKey,
-                    toKeyExclusive.equals("!!") ? null : toKeyExclusive);
+                    toKeyExclusive.equals("!!") ? null : toKeyExclusive, filter, snapshot);
             RowToString lambda = (RowToString) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
 
-            int index = 1;
-            String res200 = "200";
-            while (rows.hasNext()) {
-                Row row = rows.next();
-                if (row.get("url").contains("..")) {
-                    continue;
-                }
-                if (row.get("url").length() > 100) {
-                    continue;
-                }
-                if (res200.equals(row.get("responseCode")) && row.get("contentType") != null
-                        && row.get("contentType").contains("text/html")
-                        && row.get("contentType").toLowerCase().contains("utf-8")) {
+            try (BufferedKVSWriter writer = new BufferedKVSWriter(kvs, outputTable)) {
+                int index = 1;
+                while (rows.hasNext()) {
+                    Row row = rows.next();
                     String result = lambda.op(row);
                     if (result != null) {
                         String rowKey = Hasher.hash(inputTable + System.currentTimeMillis() + index++);
                         // String rowKey = Hasher.hash(inputTable + index++);
-                        kvs.put(outputTable, rowKey, "value", result);
+                        writer.put(rowKey, "value", result);
                     }
                 }
             }
-
             return "OK";
         });
 
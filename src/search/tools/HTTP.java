@@ -59,7 +59,11 @@ public class HTTP {
         } catch (KeyManagementException kme) {
         }
       } else if (protocol.equals("http")) {
-        return new Socket(host, port);
+        // The request header and body are written separately; do not let
+        // the body wait for the server to acknowledge the header.
+        Socket sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        return sock;
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -72,8 +76,19 @@ public class HTTP {
     return doRequestWithTimeout(method, urlArg, uploadOrNull, -1, false);
   }
 
+  // Sends a request with additional header fields, e.g. Accept.
+  public static Response doRequest(String method, String urlArg, byte uploadOrNull[], Map<String, String> headersOrNull)
+      throws IOException {
+    return doRequestWithTimeout(method, urlArg, uploadOrNull, -1, false, headersOrNull);
+  }
+
   public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis,
       boolean isHeadRequest) throws IOException {
+    return doRequestWithTimeout(method, urlArg, uploadOrNull, timeoutMillis, isHeadRequest, null);
+  }
+
+  public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis,
+      boolean isHeadRequest, Map<String, String> headersOrNull) throws IOException {
     String protocol = "http";
     int pos = urlArg.indexOf("://");
     if (pos >= 0) {
@@ -123,6 +138,9 @@ public class HTTP {
         // System.out.println((usingCached ? "[CACHED]" : "[FRESH]")+request);
         if (uploadOrNull != null)
           request = request + "Content-Length: " + uploadOrNull.length + "\r\n";
+        if (headersOrNull != null)
+          for (Map.Entry<String, String> header : headersOrNull.entrySet())
+            request = request + header.getKey() + ": " + header.getValue() + "\r\n";
         request = request + "Connection: keep-alive\r\n\r\n";
         out.write(request.getBytes());
         if (uploadOrNull != null)
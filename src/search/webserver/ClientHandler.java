@@ -16,7 +16,7 @@ public class ClientHandler extends Thread {
 	private BlockingQueue<Socket> queue;
 	private Server server;
 	final Set<String> ALLOWEDMETHOD = new HashSet<>(Arrays.asList("GET", "PUT", "POST", "HEAD"));
-	final String SPLITTER = "\r\n\r\n";
+	final byte[] SPLITTER_BYTES = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 	public static Logger logger = Logger.getLogger(ClientHandler.class);
 
 	public ClientHandler(int id, BlockingQueue<Socket> queue, Server server) {
@@ -52,25 +52,24 @@ public class ClientHandler extends Thread {
 
 			InetSocketAddress remoteAddr = (InetSocketAddress) clientSocket.getRemoteSocketAddress();
 
-			StringBuilder sb = new StringBuilder();
 			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
 			byte[] buf = new byte[10000];
 			int b = 0;
 
+			// the buffer holds the bytes that have been read but not parsed yet;
+			// a client that pipelines its requests may have sent several
 			while ((b = in.read(buf)) != -1) {
 
 				buffer.write(buf, 0, b);
-				String current = new String(buf, 0, b);
-				sb.append(current);
 
 				while (true) {
-					if (sb.indexOf(SPLITTER) == -1) {
+					if (indexOf(buffer.toByteArray(), SPLITTER_BYTES) == -1) {
 						break;
 					}
 
-					RequestImpl request = generateRequest(sb, buffer, remoteAddr, in);
-					ResponseImpl response = new ResponseImpl(writer, request.method);
+					RequestImpl request = generateRequest(buffer, remoteAddr, in);
+					ResponseImpl response = new ResponseImpl(writer, out, clientSocket.getChannel(), request.method);
 
 					response.header("Connection", "close");
 
@@ -108,6 +107,7 @@ public class ClientHandler extends Thread {
 								if (response.bodyAsBytes() != null) {
 									response.write(response.bodyAsBytes());
 								}
+								response.finish();
 								requestSent = true;
 							} catch (Exception e) {
 								sendResponse(writer, 500, "Internal Server Error");
@@ -177,6 +177,20 @@ public class ClientHandler extends Thread {
 
 	}
 
+	// Returns the position of the first occurrence of pattern in bytes, or -1.
+	static int indexOf(byte[] bytes, byte[] pattern) {
+		for (int i = 0; i + pattern.length <= bytes.length; i++) {
+			int j = 0;
+			while (j < pattern.length && bytes[i + j] == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	public void sendResponse(PrintWriter writer, int statusCode, String reasonPhrase) {
 		writer.write("HTTP/1.1 " + statusCode + " " + reasonPhrase + "\r\nContent-Length: " +
 				(4 + reasonPhrase.length()) + "\r\n\r\n" + statusCode + " " + reasonPhrase);
@@ -206,7 +220,10 @@ public class ClientHandler extends Thread {
 		return true;
 	}
 
-	public RequestImpl generateRequest(StringBuilder sb, ByteArrayOutputStream buffer, InetSocketAddress remoteAddr,
+	// Parses the request at the start of the buffer, reading the rest of its
+	// body from the stream if necessary, and leaves the bytes that follow it
+	// in the buffer.
+	public RequestImpl generateRequest(ByteArrayOutputStream buffer, InetSocketAddress remoteAddr,
 			InputStream in) throws IOException {
 		byte[] bytes = buffer.toByteArray();
 		buffer.reset();
@@ -217,10 +234,9 @@ public class ClientHandler extends Thread {
 		byte[] bodyAsBytes = null;
 		int contentLength = -1;
 
-		int endOfHeader = sb.indexOf(SPLITTER);
+		int endOfHeader = indexOf(bytes, SPLITTER_BYTES);
 		BufferedReader reader = new BufferedReader(
-				new InputStreamReader(new ByteArrayInputStream(sb.substring(0, endOfHeader).getBytes())));
-		sb.delete(0, endOfHeader + 4);
+				new InputStreamReader(new ByteArrayInputStream(bytes, 0, endOfHeader), StandardCharsets.UTF_8));
 		buffer.write(bytes, endOfHeader + 4, bytes.length - endOfHeader - 4);
 
 		String[] requestLine = reader.readLine().split(" ");
@@ -246,8 +262,6 @@ public class ClientHandler extends Thread {
 			int b = 0;
 			while (contentLength > buffer.size() && (b = in.read(buf)) != -1) {
 				buffer.write(buf, 0, b);
-				String current = new String(buf, 0, b);
-				sb.append(current);
 			}
 
 			// transfer the body content from buffer to bodyAsBytes
@@ -257,7 +271,6 @@ public class ClientHandler extends Thread {
 			for (int i = 0; i < contentLength; i++) {
 				bodyAsBytes[i] = bytes[i];
 			}
-			sb.delete(0, contentLength);
 
 			// write the remaining bytes [bytes-body] back to buffer
 			buffer.write(bytes, contentLength, bytes.length - contentLength);
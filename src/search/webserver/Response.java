@@ -1,5 +1,7 @@
 package search.webserver;
 
+import java.nio.channels.FileChannel;
+
 public interface Response {
 
   // The methods below are used to set the body, either as a string or as an array
@@ -54,8 +56,17 @@ public interface Response {
   // 2) NOT add a Content-Length header in this case. Then, and in any subsequent
   // calls,
   // it should simply write the provided bytes directly to the connection.
+  // If the route has set the header "Transfer-Encoding: chunked", each write
+  // is sent as a chunk, and the body is only complete once the route has
+  // returned, so that a client can tell a body that broke off.
   void write(byte[] b) throws Exception;
 
+  // Like write(), but sends count bytes of a file, starting at position. On
+  // plain connections the bytes go from the file to the socket's channel
+  // without being copied into the heap; TLS sockets have no channel, so
+  // there they are copied through the output stream.
+  void write(FileChannel channel, long position, long count) throws Exception;
+
   // EXTRA CREDIT ONLY - please see the handout for details. If you are not doing
   // the extra
   // credit, please implement this with a dummy method that does nothing.
@@ -3,24 +3,42 @@ package search.webserver;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class ResponseImpl implements Response {
+	private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
 	private PrintWriter writer;
+	private OutputStream out;
+	private WritableByteChannel channel;
 	private int statusCode = 200;
 	private String reasonPhrase = "OK";
 	private String reqMethod;
 	private Map<String, String> headers = new HashMap<String, String>();
 	private byte body[] = null;
 	private boolean hasWritten = false;
+	// Whether the body is sent in chunks, because the route set the header
+	// "Transfer-Encoding: chunked"; only possible with an output stream.
+	private boolean chunked = false;
 
 	public ResponseImpl(PrintWriter writer, String reqMethod) {
 		this.writer = writer;
 		this.reqMethod = reqMethod;
 	}
 
+	// The body is written to out, or to the socket's channel if it has one,
+	// rather than through the writer, so that binary data is not re-encoded.
+	public ResponseImpl(PrintWriter writer, OutputStream out, WritableByteChannel channel, String reqMethod) {
+		this(writer, reqMethod);
+		this.out = out;
+		this.channel = channel != null ? channel : Channels.newChannel(out);
+	}
+
 	public String body() {
 		return new String(body, StandardCharsets.UTF_8);
 	}
@@ -67,11 +85,15 @@ public class ResponseImpl implements Response {
 	public void writeHeader() {
 		if (!hasWritten) {
 			hasWritten = true;
+			chunked = out != null && "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
 			writer.write("HTTP/1.1 " + statusCode + " " + reasonPhrase + "\r\n");
 
 			for (Map.Entry<String, String> entry : headers.entrySet()) {
 				String key = entry.getKey();
 				String value = entry.getValue();
+				if (key.equals("transfer-encoding") ? !chunked : (chunked && key.equals("content-length"))) {
+					continue;
+				}
 				writer.write(key + ": " + value + "\r\n");
 			}
 
@@ -90,8 +112,59 @@ public class ResponseImpl implements Response {
 			writeHeader();
 		}
 		if (!reqMethod.equals("HEAD")) {
-			writer.write(new String(b, StandardCharsets.UTF_8));
-			writer.flush();
+			if (out == null) {
+				writer.write(new String(b, StandardCharsets.UTF_8));
+				writer.flush();
+			} else if (chunked) {
+				// an empty chunk would end the body
+				if (b.length > 0) {
+					out.write((Integer.toHexString(b.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+					out.write(b);
+					out.write(CRLF);
+					out.flush();
+				}
+			} else {
+				out.write(b);
+				out.flush();
+			}
+		}
+	}
+
+	@Override
+	public void write(FileChannel file, long position, long count) throws Exception {
+		if (!hasWritten) {
+			writeHeader();
+		}
+		if (reqMethod.equals("HEAD")) {
+			return;
+		}
+		if (chunked) {
+			if (count == 0) {
+				return;
+			}
+			out.write((Long.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		}
+		out.flush();
+		long end = position + count;
+		while (position < end) {
+			long sent = file.transferTo(position, end - position, channel);
+			if (sent <= 0 && position >= file.size()) {
+				throw new EOFException("File ended before " + count + " bytes were sent");
+			}
+			position += sent;
+		}
+		if (chunked) {
+			out.write(CRLF);
+		}
+	}
+
+	// Ends a chunked body with the empty chunk, which tells the client that
+	// the body is complete. A body that breaks off without it, e.g. because
+	// the route threw an exception, is seen as incomplete.
+	public void finish() throws IOException {
+		if (chunked && !reqMethod.equals("HEAD")) {
+			out.write(LAST_CHUNK);
+			out.flush();
 		}
 	}
 
@@ -3,6 +3,7 @@ package search.webserver;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -38,7 +39,9 @@ public class Server implements Runnable {
 		KeyStore keyStore;
 
 		try {
-			ServerSocket serverSocket = new ServerSocket(port);
+			// Opened through a channel, so that the accepted sockets have channels
+			// that files can be transferred to directly.
+			ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 
 			// handle https
 			keyStore = KeyStore.getInstance("JKS");
@@ -77,6 +80,10 @@ public class Server implements Runnable {
 		while (true) {
 			try {
 				Socket connection = socket.accept();
+				// responses are written in several pieces (header, body); without
+				// this, each piece after the first waits for the client's
+				// delayed ACK
+				connection.setTcpNoDelay(true);
 				queue.put(connection);
 			} catch (Exception e) {
 				e.printStackTrace();